@@ -0,0 +1,57 @@
+package com.rizato.gameclient;
+
+import android.util.Log;
+
+import com.rizato.gameview.FrameStats;
+
+import java.util.Locale;
+
+/**
+ * Logs the time from logging in to the first frame drawn with every tile on screen, once. Until
+ * the tiles are decoded the view draws what it has, so this is when the player first sees the
+ * whole map.
+ *
+ * Listens on the view's FrameStats, so samples come from whichever thread draws.
+ */
+class FirstScreenTimer implements FrameStats.Listener {
+    private static final String TAG = FirstScreenTimer.class.getSimpleName();
+
+    private final String mName;
+    private volatile long mStart;
+    //Drawing thread only
+    private long mTilesDrawn;
+    private int mFrames;
+    private boolean mIsDone;
+
+    /**
+     * @param name what the run is, for the log
+     */
+    FirstScreenTimer(String name) {
+        mName = name;
+    }
+
+    //Call right before logging in
+    void start(FrameStats stats) {
+        mStart = System.nanoTime();
+        stats.setListener(this);
+    }
+
+    void stop(FrameStats stats) {
+        stats.setListener(null);
+    }
+
+    @Override
+    public void onSample(@FrameStats.Metric int metric, long value) {
+        if (mIsDone) {
+            return;
+        }
+        if (metric == FrameStats.TILES_DRAWN) {
+            mTilesDrawn = value;
+            mFrames++;
+        } else if (metric == FrameStats.TILES_MISSING && value == 0 && mTilesDrawn > 0) {
+            mIsDone = true;
+            Log.i(TAG, String.format(Locale.US, "%s: first full screen %.1fms after login, "
+                    + "%d frames drawn", mName, (System.nanoTime() - mStart) / 1e6, mFrames));
+        }
+    }
+}
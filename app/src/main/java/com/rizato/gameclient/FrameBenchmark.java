@@ -0,0 +1,142 @@
+package com.rizato.gameclient;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.rizato.gameview.FrameStats;
+
+import java.util.Arrays;
+
+/**
+ * Logs the draw times, and the time from one frame to the next, in rounds of a fixed number of
+ * frames. Also the tiles drawn and bitmap switches, the draw calls a hardware canvas makes, per
+ * frame. Before each round the setup gets a chance to change a setting, so the log lines
+ * compare the view with it on and off. Point it at a steady source, like the stand-in server,
+ * so the rounds see the same screens.
+ *
+ * Listens on the view's FrameStats, so samples come from whichever thread draws. The setup is
+ * called on the UI thread, and frames drawn until it returns aren't counted.
+ */
+class FrameBenchmark implements FrameStats.Listener {
+    private static final String TAG = FrameBenchmark.class.getSimpleName();
+    //Frames left out at the start of each round, while the caches fill back up
+    private static final int WARM_UP_FRAMES = 10;
+
+    interface Setup {
+        /**
+         * Called on the UI thread before each round, starting at 0.
+         *
+         * @return what the round is, for the log
+         */
+        String onRound(int round);
+    }
+
+    private final Setup mSetup;
+    private final Handler mHandler;
+    private final long[] mDrawTimes;
+    private final long[] mIntervals;
+    //Set while the setup is being changed, so those frames are skipped
+    private volatile boolean mIsSwitching;
+    private volatile String mName;
+    private int mRound;
+    //Drawing thread only
+    private int mWarmUp;
+    private int mCount;
+    private long mLastFrame;
+    //Whether the samples that follow a draw time belong to a counted frame
+    private boolean mIsCounted;
+    private long mTilesDrawn;
+    private long mBitmapSwitches;
+
+    /**
+     * @param frames frames in each round
+     */
+    FrameBenchmark(int frames, Setup setup) {
+        mSetup = setup;
+        mHandler = new Handler(Looper.getMainLooper());
+        mDrawTimes = new long[frames];
+        mIntervals = new long[frames];
+    }
+
+    //Call on the UI thread
+    void start(FrameStats stats) {
+        mIsSwitching = true;
+        nextRound();
+        stats.setListener(this);
+    }
+
+    //Call on the UI thread
+    void stop(FrameStats stats) {
+        stats.setListener(null);
+        mIsSwitching = true;
+    }
+
+    @Override
+    public void onSample(@FrameStats.Metric int metric, long value) {
+        if (mIsSwitching) {
+            return;
+        }
+        if (metric == FrameStats.TILES_DRAWN && mIsCounted) {
+            mTilesDrawn += value;
+        } else if (metric == FrameStats.BITMAP_SWITCHES && mIsCounted) {
+            mBitmapSwitches += value;
+        }
+        if (metric != FrameStats.DRAW_TIME) {
+            return;
+        }
+        mIsCounted = false;
+        if (mCount == mDrawTimes.length) {
+            //Only now, so the last frame's counts are in
+            log();
+            mIsSwitching = true;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    nextRound();
+                }
+            });
+            return;
+        }
+        long now = System.nanoTime();
+        long interval = now - mLastFrame;
+        mLastFrame = now;
+        if (mWarmUp < WARM_UP_FRAMES) {
+            mWarmUp++;
+            return;
+        }
+        mDrawTimes[mCount] = value;
+        mIntervals[mCount] = interval;
+        mCount++;
+        mIsCounted = true;
+    }
+
+    private void nextRound() {
+        mName = mSetup.onRound(mRound++);
+        mWarmUp = 0;
+        mCount = 0;
+        mIsCounted = false;
+        mTilesDrawn = 0;
+        mBitmapSwitches = 0;
+        //Published to the drawing thread by the volatile write
+        mIsSwitching = false;
+    }
+
+    private void log() {
+        Arrays.sort(mDrawTimes);
+        Arrays.sort(mIntervals);
+        Log.i(TAG, mName + ": draw " + percentiles(mDrawTimes)
+                + ", frame to frame " + percentiles(mIntervals)
+                + String.format(", %.1f tiles & %.1f bitmap switches a frame",
+                        (double) mTilesDrawn / mCount, (double) mBitmapSwitches / mCount)
+                + " over " + mCount + " frames");
+    }
+
+    //p50/p90/p99/max of sorted nanoseconds, in milliseconds
+    private static String percentiles(long[] sorted) {
+        int last = sorted.length - 1;
+        return String.format("p50 %.2f p90 %.2f p99 %.2f max %.2f ms",
+                sorted[last / 2] / 1e6, sorted[last * 9 / 10] / 1e6,
+                sorted[last * 99 / 100] / 1e6, sorted[last] / 1e6);
+    }
+}
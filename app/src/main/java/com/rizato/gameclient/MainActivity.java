@@ -1,6 +1,5 @@
 package com.rizato.gameclient;
 
-import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -8,33 +7,103 @@ import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
-import android.util.SparseArray;
+import android.view.Choreographer;
 import android.view.View;
+import android.view.ViewStub;
 import android.widget.Button;
 import android.widget.TextView;
 
 import com.rizato.gameclient.networking.NetworkHandlerThread;
 import com.rizato.gameclient.networking.Protocol;
+import com.rizato.gameclient.networking.ScreenMailbox;
+import com.rizato.gameview.FrameStats;
+import com.rizato.gameview.GameSurfaceView;
 import com.rizato.gameview.GameView;
+import com.rizato.gameview.ItemTile;
+import com.rizato.gameview.TileCache;
+import com.rizato.protocol.CaptureTransport;
+import com.rizato.protocol.Command;
+import com.rizato.protocol.ReplayTransport;
+import com.rizato.protocol.SocketTransport;
+import com.rizato.protocol.Transport;
 
-import java.util.Locale;
+import java.io.File;
+import java.util.List;
 
 /**
  * Main Activity for the demo. Handles the callbacks from the game view, manages the recyclerview with
  * chat & commands. Also,
  */
-public class MainActivity extends AppCompatActivity implements GameView.GameViewCallbacks{
+public class MainActivity extends AppCompatActivity implements GameView.GameViewCallbacks,
+        GameView.OnItemsClickedListener {
 
     private static final String TAG = MainActivity.class.getSimpleName();
+    //Records everything the server sends to session-<time>.cap in the app's files dir
+    private static final boolean CAPTURE_SESSION = false;
+    //Plays this capture from the files dir instead of connecting. Null to connect.
+    private static final String REPLAY_SESSION = null;
+    //1 plays at the recorded pace. ReplayTransport.AS_FAST_AS_POSSIBLE doesn't wait.
+    private static final float REPLAY_SPEED = 1f;
+    //Draws the frame stats over the game view
+    private static final boolean SHOW_FRAME_STATS = false;
+    //Trace sections for systrace, and logging of missing tiles & such, every frame
+    private static final boolean TRACE_FRAMES = false;
+    //Moves the map as soon as a move is written, instead of waiting for the server's next screen
+    private static final boolean PREDICT_MOVES = false;
+    //Borders between terrain tiles. BENCHMARK_BORDERS compares the draw times.
+    private static final boolean DRAW_BORDERS = false;
+    //One BENCHMARK_ switch at a time. They all listen on the frame stats.
+    //Logs the draw times with borders off & on, in turns of BENCHMARK_FRAMES frames each
+    private static final boolean BENCHMARK_BORDERS = false;
+    private static final int BENCHMARK_FRAMES = 300;
+    //Draws from a render thread with the GameSurfaceView. It doesn't predict moves.
+    private static final boolean USE_SURFACE_VIEW = false;
+    //Logs the draw & frame to frame times of whichever view is in use, BENCHMARK_FRAMES at a
+    //time. Run it with each view against the stand-in server, with a high --chat-rate so the
+    //UI thread is busy too.
+    private static final boolean BENCHMARK_PACING = false;
+    //Logs the draw times held still & mid pinch, in turns of BENCHMARK_FRAMES frames each. The
+    //pinch sweeps the scale from 1 to 2, down to 0.5 and back, every ZOOM_PERIOD_MS, redrawing
+    //every frame like a real one. Compare the draw times; while still, frames only come with
+    //the screens.
+    private static final boolean BENCHMARK_ZOOM = false;
+    private static final long ZOOM_PERIOD_MS = 2000;
+    //Logs the draw times & bitmap switches with the tile atlas off & on, at 13x13 and then at
+    //ATLAS_BIG_VIEW tiles a side, in turns of BENCHMARK_FRAMES frames each
+    private static final boolean BENCHMARK_ATLAS = false;
+    private static final int ATLAS_BIG_VIEW = 50;
+    //Logs the time from login to the first frame with every tile on screen. Run the stand-in
+    //server with --extra-mappings 300 for a big mapping burst.
+    private static final boolean BENCHMARK_FIRST_SCREEN = false;
+    //Empties the tile disk cache before connecting, for the cold start time. Off, the start is
+    //warm if an earlier run filled the cache. Log both to compare.
+    private static final boolean COLD_START = false;
+    //Numpad keys for the swipe directions, in the order of the GameViewCallbacks constants
+    private static final String[] MOVE_KEYS = {"numpad-8", "numpad-9", "numpad-7", "numpad-2",
+            "numpad-3", "numpad-1", "numpad-4", "numpad-6"};
     private NetworkHandlerThread networkThread;
+    //One of the two is set, see USE_SURFACE_VIEW
     private GameView game;
+    private GameSurfaceView surface;
     private ChatViewAdapter mAdapter;
+    private FrameStats mFrameStats;
+    private FrameBenchmark mBenchmark;
+    private FirstScreenTimer mFirstScreen;
+    //Set for BENCHMARK_ZOOM, while pinching
+    private Choreographer.FrameCallback mZoomSweep;
 
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        ViewStub stub = (ViewStub) findViewById(R.id.game_stub);
+        if (USE_SURFACE_VIEW) {
+            stub.setLayoutResource(R.layout.game_surface_view);
+            surface = (GameSurfaceView) stub.inflate();
+        } else {
+            game = (GameView) stub.inflate();
+        }
     }
 
     @Override
@@ -46,10 +115,130 @@ public class MainActivity extends AppCompatActivity implements GameView.GameView
         prepareGameConnection();
     }
 
-    //Grabs the game view
+    //Sets up the game view
     private void prepareGameView() {
-        game = (GameView) findViewById(R.id.game);
-        game.addGameViewCallbacks(this);
+        FrameStats.setTracingEnabled(TRACE_FRAMES);
+        if (surface != null) {
+            surface.addGameViewCallbacks(this);
+            surface.setOnItemsClickedListener(this);
+            surface.setBordersEnabled(DRAW_BORDERS);
+            if (SHOW_FRAME_STATS) {
+                surface.setOverlayEnabled(true);
+            }
+            mFrameStats = surface.getFrameStats();
+        } else {
+            game.addGameViewCallbacks(this);
+            game.setOnItemsClickedListener(this);
+            game.setPredictionEnabled(PREDICT_MOVES);
+            game.setBordersEnabled(DRAW_BORDERS);
+            if (SHOW_FRAME_STATS) {
+                game.setOverlayEnabled(true);
+            }
+            mFrameStats = game.getFrameStats();
+        }
+        //The network side records into the same stats, so the overlay shows the whole pipeline
+        if (mFrameStats == null) {
+            mFrameStats = new FrameStats();
+            if (surface != null) {
+                surface.setFrameStats(mFrameStats);
+            } else {
+                game.setFrameStats(mFrameStats);
+            }
+        }
+        if (BENCHMARK_BORDERS) {
+            mBenchmark = new FrameBenchmark(BENCHMARK_FRAMES, new FrameBenchmark.Setup() {
+                @Override
+                public String onRound(int round) {
+                    boolean borders = round % 2 == 1;
+                    if (surface != null) {
+                        surface.setBordersEnabled(borders);
+                    } else {
+                        game.setBordersEnabled(borders);
+                    }
+                    return borders ? "borders on" : "borders off";
+                }
+            });
+            mBenchmark.start(mFrameStats);
+        } else if (BENCHMARK_PACING) {
+            mBenchmark = new FrameBenchmark(BENCHMARK_FRAMES, new FrameBenchmark.Setup() {
+                @Override
+                public String onRound(int round) {
+                    return surface != null ? "GameSurfaceView" : "GameView";
+                }
+            });
+            mBenchmark.start(mFrameStats);
+        } else if (BENCHMARK_ZOOM) {
+            mBenchmark = new FrameBenchmark(BENCHMARK_FRAMES, new FrameBenchmark.Setup() {
+                @Override
+                public String onRound(int round) {
+                    boolean pinching = round % 2 == 1;
+                    stopZoomSweep();
+                    if (pinching) {
+                        startZoomSweep();
+                    }
+                    return pinching ? "pinching" : "still";
+                }
+            });
+            mBenchmark.start(mFrameStats);
+        } else if (BENCHMARK_ATLAS) {
+            mBenchmark = new FrameBenchmark(BENCHMARK_FRAMES, new FrameBenchmark.Setup() {
+                @Override
+                public String onRound(int round) {
+                    boolean atlas = round % 2 == 1;
+                    int tiles = round % 4 < 2 ? 13 : ATLAS_BIG_VIEW;
+                    if (surface != null) {
+                        surface.setAtlasEnabled(atlas);
+                        setBenchmarkTileCount(surface.getHorizontalTileCount(), tiles);
+                        surface.setTileCount(tiles, tiles);
+                    } else {
+                        game.setAtlasEnabled(atlas);
+                        setBenchmarkTileCount(game.getHorizontalTileCount(), tiles);
+                        game.setTileCount(tiles, tiles);
+                    }
+                    return (atlas ? "atlas on " : "atlas off ") + tiles + "x" + tiles;
+                }
+            });
+            mBenchmark.start(mFrameStats);
+        }
+    }
+
+    //Asks the server for the view size too, so the screens fill it
+    private void setBenchmarkTileCount(int current, int tiles) {
+        if (current != tiles && networkThread != null) {
+            networkThread.send(Command.view(tiles, tiles));
+        }
+    }
+
+    //Changes the scale every frame, like a pinch that never ends. No new tile count is sent.
+    private void startZoomSweep() {
+        final long start = System.nanoTime();
+        mZoomSweep = new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                double phase = 2 * Math.PI * (frameTimeNanos - start) / (ZOOM_PERIOD_MS * 1e6);
+                float scale = (float) Math.pow(2, Math.sin(phase));
+                if (surface != null) {
+                    surface.setScale(scale);
+                } else {
+                    game.setScale(scale);
+                }
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        };
+        Choreographer.getInstance().postFrameCallback(mZoomSweep);
+    }
+
+    private void stopZoomSweep() {
+        if (mZoomSweep == null) {
+            return;
+        }
+        Choreographer.getInstance().removeFrameCallback(mZoomSweep);
+        mZoomSweep = null;
+        if (surface != null) {
+            surface.setScale(1f);
+        } else {
+            game.setScale(1f);
+        }
     }
 
     /**
@@ -88,17 +277,39 @@ public class MainActivity extends AppCompatActivity implements GameView.GameView
         ClientApplication app = (ClientApplication) getApplication();
         Handler handler = new Handler(new DisplayCallbacks());
         if (app.getNetworkThread() == null) {
+            if (COLD_START) {
+                //Before the network thread opens it
+                NetworkHandlerThread.clearTileCache(this);
+            }
+            Transport transport;
+            if (REPLAY_SESSION != null) {
+                transport = new ReplayTransport(new File(getFilesDir(), REPLAY_SESSION), REPLAY_SPEED);
+            } else if (CAPTURE_SESSION) {
+                transport = new CaptureTransport(new SocketTransport(), new File(getFilesDir(),
+                        "session-" + System.currentTimeMillis() + ".cap"));
+            } else {
+                transport = new SocketTransport();
+            }
             app.setNetworkThread(new NetworkHandlerThread(this,
                     "Network",
                     handler,
 //                    "192.168.1.157",
                     "map.rizato.com",
-                    2222));
+                    2222,
+                    transport));
+            //Before it starts, so the first reader records too
+            app.getNetworkThread().setFrameStats(mFrameStats);
             app.getNetworkThread().start();
             app.getNetworkThread().prepare();
+            if (BENCHMARK_FIRST_SCREEN) {
+                mFirstScreen = new FirstScreenTimer(NetworkHandlerThread.hasTileCache(this)
+                        ? "warm start" : "cold start");
+                mFirstScreen.start(mFrameStats);
+            }
             app.getNetworkThread().login("paladin", " ");
         } else {
             app.getNetworkThread().setUiHandler(handler);
+            app.getNetworkThread().setFrameStats(mFrameStats);
         }
         networkThread = app.getNetworkThread();
     }
@@ -106,64 +317,47 @@ public class MainActivity extends AppCompatActivity implements GameView.GameView
     @Override
     protected void onStop() {
         super.onStop();
-        game.removeGameViewCallbacks(this);
+        if (surface != null) {
+            surface.removeGameViewCallbacks(this);
+            surface.setOnItemsClickedListener(null);
+        } else {
+            game.removeGameViewCallbacks(this);
+            game.setOnItemsClickedListener(null);
+        }
+        if (mBenchmark != null) {
+            mBenchmark.stop(mFrameStats);
+            mBenchmark = null;
+        }
+        stopZoomSweep();
+        if (mFirstScreen != null) {
+            mFirstScreen.stop(mFrameStats);
+            mFirstScreen = null;
+        }
     }
 
     @Override
     public void onTileCountChanged(int horizontal, int vertical) {
-        networkThread.sendCommand(String.format(Locale.getDefault(),
-                "#view %d %d",
-                horizontal,
-                vertical));
+        //Replaces any #view still waiting to go out, mid pinch
+        networkThread.send(Command.view(horizontal, vertical));
         Log.d(TAG, "onTileCountChanged: "+ horizontal + " "+ vertical);
     }
 
     @Override
     public void onTileClicked(int x, int y) {
-        networkThread.sendCommand(String.format(Locale.getDefault(),
-                "mouse %d %d",
-                x,
-                y));
+        networkThread.send(Command.mouse(x, y));
         Log.d(TAG, "onTileClicked: "+ x + " " + y);
     }
 
+    @Override
+    public void onItemsClicked(int x, int y, List<ItemTile> items) {
+        Log.d(TAG, "onItemsClicked: " + items.size() + " at " + x + " " + y);
+    }
+
     @Override
     public void onSwipe(@GameView.GameViewCallbacks.Direction int direction) {
-        switch (direction) {
-
-            case GameView.GameViewCallbacks.EAST:
-                networkThread.sendCommand("numpad-6");
-                Log.d(TAG, "onSwipe: EAST");
-                break;
-            case GameView.GameViewCallbacks.NORTHEAST:
-                networkThread.sendCommand("numpad-9");
-                Log.d(TAG, "onSwipe: NORTHEAST");
-                break;
-            case GameView.GameViewCallbacks.NORTHWEST:
-                networkThread.sendCommand("numpad-7");
-                Log.d(TAG, "onSwipe: NW");
-                break;
-            case GameView.GameViewCallbacks.NORTH:
-                networkThread.sendCommand("numpad-8");
-                Log.d(TAG, "onSwipe: n");
-                break;
-            case GameView.GameViewCallbacks.SOUTHEAST:
-                networkThread.sendCommand("numpad-3");
-                Log.d(TAG, "onSwipe: SE");
-                break;
-            case GameView.GameViewCallbacks.SOUTHWEST:
-                networkThread.sendCommand("numpad-1");
-                Log.d(TAG, "onSwipe: SW");
-                break;
-            case GameView.GameViewCallbacks.SOUTH:
-                networkThread.sendCommand("numpad-2");
-                Log.d(TAG, "onSwipe: S");
-                break;
-            case GameView.GameViewCallbacks.WEST:
-                networkThread.sendCommand("numpad-4");
-                Log.d(TAG, "onSwipe: W");
-                break;
-        }
+        //The map moves once the network thread says the move was written, see moveWritten
+        networkThread.send(Command.move(MOVE_KEYS[direction]));
+        Log.d(TAG, "onSwipe: " + MOVE_KEYS[direction]);
     }
 
     /**
@@ -176,6 +370,7 @@ public class MainActivity extends AppCompatActivity implements GameView.GameView
         public static final int MAP_RESPONSE = 2;
         public static final int QUIT_RESPONSE = 3;
         public static final int TEXT_RESPONSE = 4;
+        public static final int MOVE_WRITTEN = 5;
 
         @Override
         public boolean handleMessage(Message msg) {
@@ -195,6 +390,9 @@ public class MainActivity extends AppCompatActivity implements GameView.GameView
                 case TEXT_RESPONSE:
                     textResponse(msg);
                     return true;
+                case MOVE_WRITTEN:
+                    moveWritten(msg);
+                    return true;
                 default:
                     return false;
             }
@@ -206,15 +404,46 @@ public class MainActivity extends AppCompatActivity implements GameView.GameView
         }
 
         public void screeResponse(Message msg) {
-            Protocol.Screen screen = (Protocol.Screen) msg.obj;
+            //Only the newest screen. Any we were too slow for are already folded into it.
+            Protocol.Screen screen = ((ScreenMailbox) msg.obj).take();
+            if (screen == null) {
+                return;
+            }
+            mFrameStats.record(FrameStats.QUEUE_TIME, System.nanoTime() - screen.postedAt);
+            if (surface != null) {
+                showScreen(surface, screen);
+                return;
+            }
             if (screen.x >=0 && screen.y >=0 ) {
                 game.setAll(screen.terrain, screen.items, screen.x, screen.y);
-            } else {
-                game.setTerrain(screen.terrain);
+                return;
+            }
+            if (screen.terrain != null) {
+                game.setTerrain(screen.terrain, screen.width, screen.height);
+            } else if (screen.changedCount > 0) {
+                game.updateTerrain(screen.changedCells, screen.changedTiles, screen.changedCount);
+            }
+            if (screen.itemsChanged) {
                 game.setItems(screen.items);
             }
         }
 
+        //Same as above, for the surface view
+        private void showScreen(GameSurfaceView view, Protocol.Screen screen) {
+            if (screen.x >=0 && screen.y >=0 ) {
+                view.setAll(screen.terrain, screen.items, screen.x, screen.y);
+                return;
+            }
+            if (screen.terrain != null) {
+                view.setTerrain(screen.terrain, screen.width, screen.height);
+            } else if (screen.changedCount > 0) {
+                view.updateTerrain(screen.changedCells, screen.changedTiles, screen.changedCount);
+            }
+            if (screen.itemsChanged) {
+                view.setItems(screen.items);
+            }
+        }
+
         @SuppressWarnings({"UnusedParameters", "EmptyMethod"})
         public void quitResponse(Message msg) {
             //Not implemented
@@ -222,13 +451,43 @@ public class MainActivity extends AppCompatActivity implements GameView.GameView
 
         public void textResponse(Message msg) {
             Protocol.TextResponse text = (Protocol.TextResponse) msg.obj;
-            Log.d(TAG, "textResponse: "+text.message);
+            if (FrameStats.isTracingEnabled()) {
+                //Chat can come in floods
+                Log.d(TAG, "textResponse: "+text.message);
+            }
             mAdapter.addResponse(text);
         }
 
+        public void moveWritten(Message msg) {
+            if (game == null) {
+                return;
+            }
+            String key = ((Command) msg.obj).getText();
+            for (int direction = 0; direction < MOVE_KEYS.length; direction++) {
+                if (MOVE_KEYS[direction].equals(key)) {
+                    //Does nothing with prediction off
+                    game.predictMove(direction);
+                    return;
+                }
+            }
+        }
+
         public void mapResponse(Message msg) {
-            @SuppressWarnings("unchecked") SparseArray<Bitmap> map = (SparseArray<Bitmap>) msg.obj;
-            game.setMapping(map);
+            TileCache cache = (TileCache) msg.obj;
+            if (surface != null) {
+                if (surface.getTileCache() != cache) {
+                    surface.setTileCache(cache);
+                } else {
+                    surface.notifyTilesChanged();
+                }
+                return;
+            }
+            if (game.getTileCache() != cache) {
+                game.setTileCache(cache);
+            } else {
+                //More tiles decoded into the same cache
+                game.notifyTilesChanged();
+            }
         }
     }
 }
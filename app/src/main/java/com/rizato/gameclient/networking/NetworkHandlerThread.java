@@ -1,42 +1,59 @@
 package com.rizato.gameclient.networking;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
-import android.util.SparseArray;
 
 import com.rizato.gameclient.MainActivity;
+import com.rizato.gameview.FrameStats;
 import com.rizato.gameview.ItemTile;
-import com.rizato.gameview.TerrainTile;
-
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import com.rizato.gameview.TileCache;
+import com.rizato.protocol.Command;
+import com.rizato.protocol.CommandQueue;
+import com.rizato.protocol.CommandWriter;
+import com.rizato.protocol.FrameDecoder;
+import com.rizato.protocol.ProtocolCodec;
+import com.rizato.protocol.ScreenFrame;
+import com.rizato.protocol.SocketTransport;
+import com.rizato.protocol.Transport;
+
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
-import java.util.zip.InflaterInputStream;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class handles all of the networking.
  *
  * It exposes a few methods for writing commands up to the server and also
  * interprets everything coming down from the server.
+ *
+ * Commands aren't written one at a time. Everything sent within a short window is encoded into
+ * one buffer and goes out in a single write, so a burst of swipes is one packet instead of many.
+ * Before that, commands made stale by newer ones are dropped, and moves are held to the server
+ * tick (see {@link CommandQueue}).
  */
 public class NetworkHandlerThread extends HandlerThread {
     private static final int LOGIN = 0;
     private static final int COMMAND = 1;
     private static final int START = 2;
+    private static final int STOP = 3;
+    private static final int FLUSH = 4;
+    private static final int MOVE_TOKEN = 5;
+    //How long the first command of a batch waits for others to join it
+    private static final long BATCH_WINDOW_MS = 20;
+    //The server moves a player at most once a tick. Anything faster just piles up.
+    private static final long MOVE_INTERVAL_MS = 100;
+    private static final int MOVE_BURST = 2;
+    //Under the cache dir, so the system can clear it when space is low
+    private static final String TILE_CACHE_DIR = "tiles";
 
     private final NetworkHandlerThreadCallbacks mCallbacks;
 
@@ -44,30 +61,42 @@ public class NetworkHandlerThread extends HandlerThread {
 
     @SuppressWarnings("SameParameterValue")
     public NetworkHandlerThread(Context context, String name, Handler uiHandler, String url, int port) {
+        this(context, name, uiHandler, url, port, new SocketTransport());
+    }
+
+    /**
+     * Uses the given transport for the connection, instead of a plain socket.
+     */
+    @SuppressWarnings("SameParameterValue")
+    public NetworkHandlerThread(Context context, String name, Handler uiHandler, String url, int port,
+                                Transport transport) {
         super(name);
-        mCallbacks = openConnection(context, uiHandler, url, port);
+        mCallbacks = openConnection(context, uiHandler, url, port, transport);
     }
 
     @SuppressWarnings("unused")
     public NetworkHandlerThread(Context context, String name, int priority, Handler uiHandler, String url, int port) {
         super(name, priority);
-        mCallbacks = openConnection(context, uiHandler, url, port);
+        mCallbacks = openConnection(context, uiHandler, url, port, new SocketTransport());
     }
 
     //Sets up the looper. Starts the thread.
     public void prepare() {
         mHandler = new Handler(getLooper(), mCallbacks);
+        mCallbacks.mHandler = mHandler;
         mHandler.obtainMessage(START).sendToTarget();
     }
 
     //Opens a new connection to the given url
-    private NetworkHandlerThreadCallbacks openConnection(Context context, Handler uiHandler, String url, int port) {
-        return new NetworkHandlerThreadCallbacks(url, port, context, uiHandler);
+    private NetworkHandlerThreadCallbacks openConnection(Context context, Handler uiHandler, String url, int port,
+                                                        Transport transport) {
+        return new NetworkHandlerThreadCallbacks(url, port, context, uiHandler, transport);
     }
 
+    //Closes the connection, and ends this thread once it is closed
     @SuppressWarnings("unused")
     public void shutdown() {
-        mCallbacks.shutdown();
+        mHandler.obtainMessage(STOP).sendToTarget();
     }
 
     //Changes the UI handler. (For when we start a new activity)
@@ -83,27 +112,100 @@ public class NetworkHandlerThread extends HandlerThread {
 
     //Sends a text command to the server
     public void sendCommand(String command) {
+        send(Command.text(command));
+    }
+
+    /**
+     * Sends a command to the server. Commands that a newer one supersedes may never be sent.
+     */
+    public void send(Command command) {
+        mCallbacks.mInFlight.incrementAndGet();
         mHandler.obtainMessage(COMMAND, command).sendToTarget();
     }
 
+    //Commands sent that haven't been written to the connection yet
+    public int getQueueDepth() {
+        return mCallbacks.mInFlight.get() + mCallbacks.mQueue.size();
+    }
+
+    //How many commands were dropped as stale
+    public CommandQueue getCommandQueue() {
+        return mCallbacks.mQueue;
+    }
+
+    //Screens folded into a newer one because the UI was behind
+    public long getDroppedScreenCount() {
+        return mCallbacks.mScreens.getDroppedCount();
+    }
+
+    //Write counts & sizes of the outgoing commands
+    public CommandWriter getCommandWriter() {
+        return mCallbacks.mWriter;
+    }
+
+    /**
+     * Records the size, inflate & decode times of every screen into the stats. Null to stop.
+     */
+    public void setFrameStats(FrameStats stats) {
+        mCallbacks.changeFrameStats(stats);
+    }
+
+    /**
+     * Empties the tile disk cache, so the next connection decodes every tile from the assets.
+     * Call before the thread starts, since it opens the cache.
+     */
+    public static void clearTileCache(Context context) {
+        TileDiskCache.delete(new File(context.getCacheDir(), TILE_CACHE_DIR));
+    }
+
+    //Whether the next connection can load tiles from the disk cache
+    public static boolean hasTileCache(Context context) {
+        return TileDiskCache.hasTiles(new File(context.getCacheDir(), TILE_CACHE_DIR));
+    }
+
     /**
      * This class extends Handler.Callback. It implements handle message and holds the actual network
      * connection
      */
     private static class NetworkHandlerThreadCallbacks implements Handler.Callback {
         private ReadProtocol reader;
-        private OutputStream mOutputStream;
-        Socket mSocket;
+        private final Transport mTransport;
+        private final CommandWriter mWriter;
+        private final CommandQueue mQueue;
+        //Commands sent to this thread, but not handled yet
+        private final AtomicInteger mInFlight;
+        //Kept across reconnects, so the UI always takes from the same one
+        private final ScreenMailbox mScreens;
+        //Opened on the first connect. Null if it couldn't be.
+        private TileDiskCache mDiskCache;
+        private boolean mDiskCacheOpened;
+        //Set once the looper is prepared
+        Handler mHandler;
         final String url;
         final int port;
         final Context mContext;
-        final Handler mUiHandler;
+        volatile Handler mUiHandler;
+        volatile FrameStats mFrameStats;
 
-        public NetworkHandlerThreadCallbacks(String url, int port, Context context, Handler uiHandler) {
+        public NetworkHandlerThreadCallbacks(String url, int port, Context context, Handler uiHandler,
+                                             Transport transport) {
             mContext = context;
             this.url = url;
             this.port = port;
             mUiHandler = uiHandler;
+            mTransport = transport;
+            mWriter = new CommandWriter();
+            mQueue = new CommandQueue(MOVE_INTERVAL_MS, MOVE_BURST);
+            mQueue.setListener(new CommandQueue.Listener() {
+                @Override
+                public void onMoveWritten(Command move) {
+                    //Only moves that really go out get shown ahead of the server
+                    mUiHandler.obtainMessage(MainActivity.DisplayCallbacks.MOVE_WRITTEN, move)
+                            .sendToTarget();
+                }
+            });
+            mInFlight = new AtomicInteger();
+            mScreens = new ScreenMailbox();
         }
 
         @Override
@@ -124,34 +226,88 @@ public class NetworkHandlerThread extends HandlerThread {
                     }
                     return true;
                 case COMMAND:
+                    queue((Command) msg.obj);
+                    return true;
+                case MOVE_TOKEN:
+                    try {
+                        releaseHeldMove();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    return true;
+                case FLUSH:
                     try {
-                        textToServer(msg);
+                        flush();
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
                     return true;
+                case STOP:
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    shutdown();
+                    Looper.myLooper().quit();
+                    return true;
                 default:
                     return false;
             }
         }
 
-        private void textToServer(Message msg) throws IOException {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream stream = new DataOutputStream(baos);
-            stream.writeUTF((String)msg.obj);
-            mOutputStream.write(baos.toByteArray());
+        private void queue(Command command) {
+            long now = SystemClock.uptimeMillis();
+            mQueue.offer(command, now);
+            mInFlight.decrementAndGet();
+            if (!mQueue.isEmpty() && !mHandler.hasMessages(FLUSH)) {
+                //Starting a batch. Whatever else gets sent before the window ends goes with it.
+                mHandler.sendEmptyMessageDelayed(FLUSH, BATCH_WINDOW_MS);
+            }
+            scheduleHeldMove(now);
+        }
+
+        private void releaseHeldMove() throws IOException {
+            long now = SystemClock.uptimeMillis();
+            if (mQueue.releaseHeldMove(now)) {
+                //The move already waited its turn. No need to wait for a batch too.
+                flush();
+            } else {
+                scheduleHeldMove(now);
+            }
         }
 
-        private void start() throws IOException {
-            mSocket = new Socket(url, port);
-            final DataInputStream socketInputStream
-                    = new DataInputStream(mSocket.getInputStream());
-            //Starting an always alive reader to read the responses from the server
-            reader = new ReadProtocol(mContext, mUiHandler, socketInputStream);
-            mOutputStream = mSocket.getOutputStream();
-            Thread thread = new Thread(reader);
-            thread.start();
+        //Wakes up for the held move once there is a token for it
+        private void scheduleHeldMove(long now) {
+            long delay = mQueue.getHeldMoveDelay(now);
+            if (delay >= 0 && !mHandler.hasMessages(MOVE_TOKEN)) {
+                mHandler.sendEmptyMessageDelayed(MOVE_TOKEN, delay);
+            }
+        }
 
+        //Writes the current batch, if there is one
+        private void flush() throws IOException {
+            mHandler.removeMessages(FLUSH);
+            mQueue.drainTo(mWriter);
+            mWriter.flush(mTransport);
+        }
+
+        private void start() throws IOException {
+            //The transport keeps reading the responses from the server until it is closed.
+            //Connecting again closes the old connection first, so reconnects don't leave an old
+            //reader running.
+            if (!mDiskCacheOpened) {
+                mDiskCacheOpened = true;
+                try {
+                    mDiskCache = new TileDiskCache(new File(mContext.getCacheDir(), TILE_CACHE_DIR));
+                } catch (IOException e) {
+                    //Tiles still load, just from the assets every time
+                    e.printStackTrace();
+                }
+            }
+            reader = new ReadProtocol(mContext, mUiHandler, mTransport, mScreens, mDiskCache);
+            reader.setFrameStats(mFrameStats);
+            mTransport.connect(url, port, reader);
         }
 
         private void login(Message msg) throws IOException {
@@ -163,50 +319,80 @@ public class NetworkHandlerThread extends HandlerThread {
             } else {
                 password = "";
             }
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream stream = new DataOutputStream(baos);
-            stream.writeInt(1);
-            stream.writeShort(13);
-            stream.writeShort(13);
-            stream.writeUTF(username);
-            stream.writeUTF(password);
-            stream.writeUTF("Android Client");
-            stream.flush();
-            mOutputStream.write(baos.toByteArray());
+            //Goes out right away, ahead of anything queued
+            mWriter.writeInt(1);
+            mWriter.writeShort(13);
+            mWriter.writeShort(13);
+            mWriter.writeUTF(username);
+            mWriter.writeUTF(password);
+            mWriter.writeUTF("Android Client");
+            flush();
         }
 
         private void shutdown() {
-            reader.cancel();
-            try {
-                mSocket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+            if (reader != null) {
+                reader.cancel();
+            }
+            mTransport.close();
+            if (mDiskCache != null) {
+                mDiskCache.close();
+                mDiskCache = null;
             }
         }
 
         private void changeHandler(Handler uiHandler) {
-            reader.setUiHandler(uiHandler);
+            mUiHandler = uiHandler;
+            if (reader != null) {
+                reader.setUiHandler(uiHandler);
+            }
+        }
+
+        private void changeFrameStats(FrameStats stats) {
+            mFrameStats = stats;
+            if (reader != null) {
+                reader.setFrameStats(stats);
+            }
         }
     }
 
     /**
-     * This class reads from the network connection until cancelled.
+     * The Android side of the protocol. The codec decodes the frames read from the network
+     * connection, and this posts what it decoded to the UI until cancelled.
      */
-    private static class ReadProtocol implements Runnable {
+    private static class ReadProtocol implements Transport.Listener, ProtocolCodec.Listener,
+            TileLoader.Listener {
         private static final String TAG = ReadProtocol.class.getSimpleName();
-        final DataInputStream mInputStream;
+        private final Transport mTransport;
+        private final ScreenMailbox mScreens;
+        private final ProtocolCodec mCodec;
         private volatile boolean cancelled;
         private volatile Handler mUiHandler;
-        private final Context mContext;
-        final SparseArray<Bitmap> tiles;
-        private Protocol.Screen mLastScreen;
-
-        public ReadProtocol(Context context, Handler uiHandler, DataInputStream inputStream) {
-            mInputStream = inputStream;
+        private volatile FrameStats mFrameStats;
+        private final TileLoader mTileLoader;
+        //The last terrain & items sent to the UI, for diffing
+        private int[] mGrid;
+        private int mGridWidth;
+        private int mGridHeight;
+        private List<ItemTile> mItems;
+        //The same items as x, y, tile triples, to compare the next screen's against
+        private int[] mItemData = new int[0];
+        private int mItemCount = -1;
+        //Scratch space, reused between frames
+        private int[] mChangedCells;
+        private int[] mChangedTiles;
+        //Size of the frame being decoded, header included
+        private int mFrameBytes;
+
+        public ReadProtocol(Context context, Handler uiHandler, Transport transport,
+                            ScreenMailbox screens, TileDiskCache diskCache) {
+            mTransport = transport;
+            mScreens = screens;
+            mCodec = new ProtocolCodec(this);
             cancelled = false;
-            tiles = new SparseArray<>();
+            mTileLoader = new TileLoader(context, this, diskCache);
+            //Last session's tiles, so the first screen doesn't wait on the mappings
+            mTileLoader.restore();
             mUiHandler = uiHandler;
-            mContext = context;
         }
 
         public void cancel() {
@@ -220,199 +406,182 @@ public class NetworkHandlerThread extends HandlerThread {
 
 
         @Override
-        public void run() {
-            //Yay infinite loops!
-            //Max 8k
-            while (!isCancelled()) {
-                try {
-                    if (mInputStream.available() > 0) {
-                        byte command = mInputStream.readByte();
-                        byte temp = mInputStream.readByte();
-                        int low = ((int) temp) < 0 ? temp + 256 :temp;
-                        temp = mInputStream.readByte();
-                        int mid = ((int) temp)< 0 ? temp + 256 : temp;
-                        temp = mInputStream.readByte();
-                        int high = ((int) temp) < 0 ? temp + 256 : temp;
-                        int length = low << 16 | mid << 8 | high;
-                        Integer actual = 0;
-                        while (mInputStream.available() < length && !isCancelled()) {
-                            //Sleeping if not enough data
-                            Thread.sleep(10);
-                        }
-                        switch (command) {
-                            case Protocol.LOGIN_RESPONSE:
-                                try {
-                                    actual += readLogin(mInputStream);
-                                } catch (UnsupportedEncodingException e) {
-                                    e.printStackTrace();
-                                }
-                                break;
-                            case Protocol.TEXT_OUT:
-                                try {
-                                    actual += readText(mInputStream);
-                                } catch (UnsupportedEncodingException e) {
-                                    e.printStackTrace();
-                                }
-                                break;
-                            case Protocol.TILE_MAPPINGS:
-                                try {
-                                    actual += readTiles(mInputStream);
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                                break;
-                            case Protocol.ZIPPED_SCREEN:
-                                try {
-                                    actual += readZippedScreen(mInputStream);
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                                break;
-                            case Protocol.QUIT:
-                                readQuit();
-                                break;
-                            default:
-                                actual += skip(mInputStream, length);
-                                break;
-                        }
-                        Log.d(TAG, String.format("expected: %d actual %d", length, actual));
-                    }
-                } catch (IOException | InterruptedException e) {
-                    e.printStackTrace();
-                }
+        public void onFrame(FrameDecoder frame) {
+            if (isCancelled()) {
+                return;
+            }
+            mFrameBytes = frame.getLength() + 4;
+            FrameStats.beginSection("ReadProtocol#onFrame");
+            try {
+                mCodec.decode(frame);
+            } catch (IOException e) {
+                //A bad frame only loses that frame. The next one starts on a clean header.
+                e.printStackTrace();
+            } finally {
+                FrameStats.endSection();
+            }
+            if (frame.remaining() > 0 && FrameStats.isTracingEnabled()) {
+                Log.d(TAG, String.format(Locale.US, "onFrame: command %d left %d of %d bytes unread",
+                        frame.getCommand(), frame.remaining(), frame.getLength()));
             }
         }
 
-        private int skip(DataInputStream mInputStream, int length) throws IOException {
-            for (int i = 0; i < length;i++) {
-                mInputStream.readByte();
+        @Override
+        public void onClosed(IOException cause) {
+            mCodec.end();
+            mTileLoader.shutdown();
+            if (cause != null) {
+                cause.printStackTrace();
+            } else {
+                Log.d(TAG, "onClosed: Connection closed");
             }
-            return length;
         }
 
-        private void readQuit() {
+        //Keeps the screen's items if they differ from the last ones. True if they did.
+        private boolean updateItems(ScreenFrame frame) {
+            int count = frame.getItemCount();
+            boolean changed = count != mItemCount;
+            for (int i = 0; i < count && !changed; i++) {
+                changed = frame.getItemX(i) != mItemData[i * 3]
+                        || frame.getItemY(i) != mItemData[i * 3 + 1]
+                        || frame.getItemTile(i) != mItemData[i * 3 + 2];
+            }
+            if (!changed) {
+                return false;
+            }
+            if (mItemData.length < count * 3) {
+                mItemData = new int[count * 3];
+            }
+            for (int i = 0; i < count; i++) {
+                mItemData[i * 3] = frame.getItemX(i);
+                mItemData[i * 3 + 1] = frame.getItemY(i);
+                mItemData[i * 3 + 2] = frame.getItemTile(i);
+            }
+            mItemCount = count;
+            return true;
+        }
+
+        @Override
+        public void onQuit() {
             mUiHandler.obtainMessage(MainActivity.DisplayCallbacks.QUIT_RESPONSE).sendToTarget();
             cancel();
+            mTransport.close();
         }
 
-        private int readZippedScreen(DataInputStream zipped) throws IOException {
-            int size = zipped.readInt();
-            int width = (size & 0xffff0000) >> 16;
-            int height = size & 0xffff;
-            Log.d(TAG, String.format("width %d height %d", width, height));
-            int zlength = zipped.readInt();
-            int ulength = zipped.readInt();
-            byte[] buf = new byte[zlength];
-            //noinspection UnusedAssignment
-            int len = zipped.read(buf, 0, zlength);
-            ByteArrayInputStream bais = new ByteArrayInputStream(buf);
-            DataInputStream stream = new DataInputStream(new InflaterInputStream(bais));
-            List<TerrainTile> terrain = new ArrayList<>();
-            for (int i = 0; i < height; i++){
-                for (int j = 0; j < width; j++){
-                    //Have to reverse ints here
-                    int tile = stream.readUnsignedByte()
-                            | stream.readUnsignedByte() << 8
-                            | stream.readUnsignedByte()<<16
-                            | stream.readUnsignedByte() <<24;
-                    ulength -=4;
-                    terrain.add(new TerrainTile(tile));
+        @Override
+        public void onScreen(ScreenFrame frame) {
+            long start = System.nanoTime();
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            //Kept packed. The view reads the tile & border bits straight out of the ints.
+            int cells = frame.getCellCount();
+            int[] terrain = frame.getTerrain();
+            if (mChangedCells == null || mChangedCells.length < cells) {
+                mChangedCells = new int[cells];
+                mChangedTiles = new int[cells];
+            }
+            //Nothing is allocated unless something changed, so standing still costs nothing
+            boolean whole = mGrid == null || width != mGridWidth || height != mGridHeight;
+            int count = 0;
+            if (whole) {
+                if (mGrid == null || mGrid.length < cells) {
+                    mGrid = new int[cells];
+                }
+                System.arraycopy(terrain, 0, mGrid, 0, cells);
+            } else {
+                //Only sending the cells that changed
+                for (int i = 0; i < cells; i++) {
+                    if (terrain[i] != mGrid[i]) {
+                        mGrid[i] = terrain[i];
+                        mChangedCells[count] = i;
+                        mChangedTiles[count] = terrain[i];
+                        count++;
+                    }
                 }
             }
-            Log.d(TAG, "readZippedScreen: ulen remainder " + (ulength%4));
-            List<ItemTile> items = new ArrayList<>();
-            for (int i = 0; i < ulength /4; i++) {
-                int y = stream.readUnsignedByte();
-                int x = stream.readUnsignedByte();
-
-                int tile = stream.readUnsignedByte() | stream.readUnsignedByte() <<8;
-
-                items.add(new ItemTile(x, y, tile));
+            boolean itemsChanged = updateItems(frame);
+            FrameStats stats = mFrameStats;
+            if (stats != null) {
+                stats.record(FrameStats.BYTES_RECEIVED, mFrameBytes);
+                stats.record(FrameStats.INFLATE_TIME, mCodec.getLastInflateNanos());
+                stats.record(FrameStats.DECODE_TIME,
+                        mCodec.getLastDecodeNanos() + System.nanoTime() - start);
+            }
+            if (!whole && count == 0 && !itemsChanged) {
+                //Standing still. Nothing for the UI to do.
+                return;
             }
             Protocol.Screen screen = new Protocol.Screen();
-            screen.y = height -2;
-            screen.x = width -2;
-            screen.items = items;
-            screen.terrain = terrain;
-            if (screen != mLastScreen) {
-                if (mLastScreen == null || mLastScreen.x == screen.x && mLastScreen.y == screen.y) {
-                    screen.x = -1;
-                    screen.y = -1;
-                    Log.d(TAG, "readZippedScreen: Didn't resize");
+            screen.x = -1;
+            screen.y = -1;
+            screen.width = width;
+            screen.height = height;
+            if (whole) {
+                //Nothing to diff against. Sending the whole grid.
+                if (mGridWidth != 0) {
+                    screen.x = width - 2;
+                    screen.y = height - 2;
                 }
-                mUiHandler.obtainMessage(MainActivity.DisplayCallbacks.SCREEN_RESPONSE, screen).sendToTarget();
-                mLastScreen = screen;
-                mLastScreen.y = height-2;
-                mLastScreen.x = width-2;
-
+                mGridWidth = width;
+                mGridHeight = height;
+                screen.terrain = Arrays.copyOf(terrain, cells);
+                screen.changedCount = cells;
             } else {
-                Log.d(TAG, "readZippedScreen: Same. Skipping");
+                screen.changedCells = Arrays.copyOf(mChangedCells, count);
+                screen.changedTiles = Arrays.copyOf(mChangedTiles, count);
+                screen.changedCount = count;
+            }
+            if (itemsChanged) {
+                List<ItemTile> items = new ArrayList<>(mItemCount);
+                for (int i = 0; i < mItemCount; i++) {
+                    items.add(new ItemTile(mItemData[i * 3], mItemData[i * 3 + 1],
+                            mItemData[i * 3 + 2]));
+                }
+                mItems = items;
+            }
+            screen.itemsChanged = itemsChanged;
+            screen.items = mItems;
+            screen.postedAt = System.nanoTime();
+            //The UI takes the newest screen when it gets to it. If it hasn't taken the last one
+            //yet, it is already going to, and this one is folded into it.
+            if (mScreens.put(screen)) {
+                mUiHandler.obtainMessage(MainActivity.DisplayCallbacks.SCREEN_RESPONSE, mScreens)
+                        .sendToTarget();
             }
-            return zlength + 12;
         }
 
-        private int readTiles(DataInputStream zipped) throws IOException {
-            int zlength = zipped.readInt();
-            //noinspection UnusedAssignment
-            int ulength = zipped.readInt();
-            byte[] buf = new byte[zlength];
-            //noinspection UnusedAssignment
-            int len = zipped.read(buf, 0, zlength);
-            ByteArrayInputStream bais = new ByteArrayInputStream(buf);
-            DataInputStream stream = new DataInputStream(new InflaterInputStream(bais));
-            while (bais.available() > 0){
-                //Read stream
-                Integer tile = (int) stream.readShort();
-                String path = stream.readUTF();
-                //Need to verify that the length is big enough for this
-                InputStream tileStream;
-                try {
-                    tileStream = mContext.getAssets().open(String.format(Locale.getDefault(),
-                            "art/game/%s.gif", path));
-                } catch (IOException e) {
-//                    Log.d(TAG, "readTiles: Couldn't find art/game/"+path+".gif");
-                    continue;
-                }
-                Bitmap bitmap = BitmapFactory.decodeStream(tileStream);
-                tiles.put(tile, bitmap);
-                Log.d(TAG, String.format("Tile: %d, Path: %s", tile, path));
+        @Override
+        public void onTileMapping(int tile, String path) {
+            //Decoding happens on the loader's workers, so we can get back to the socket
+            mTileLoader.load(tile, path);
+        }
 
-            }
-            stream.close();
-            bais.close();
-            mUiHandler.obtainMessage(MainActivity.DisplayCallbacks.MAP_RESPONSE, tiles).sendToTarget();
-            //This literally means nothing.
-            return zlength + 8;
+        @Override
+        public void onTilesLoaded(TileCache cache) {
+            mUiHandler.obtainMessage(MainActivity.DisplayCallbacks.MAP_RESPONSE, cache).sendToTarget();
         }
 
-        private int readText(DataInputStream stream) throws IOException {
-            byte style = stream.readByte();
-            String message = stream.readUTF();
+        @Override
+        public void onText(byte style, String message) {
             //Log.d(TAG, String.format("Style: %d. Message: %s", style, message));
             Protocol.TextResponse text = new Protocol.TextResponse();
             text.style = style;
             text.message = message;
             mUiHandler.obtainMessage(MainActivity.DisplayCallbacks.TEXT_RESPONSE, text).sendToTarget();
-            return 3 + message.getBytes("UTF-8").length;
         }
 
-        private int readLogin(DataInputStream stream) throws IOException {
-            //noinspection UnusedAssignment
-            int version = stream.readInt();
-            //Log.d(TAG, String.format("Version: %d", version));
+        @Override
+        public void onLogin(int version, byte result) {
             //Log.d(TAG, String.format("VERSION: %d.%d", (version & 0xffff0000) >> 16, (version & 0xffff)));
-            byte success = stream.readByte();
-            mUiHandler.obtainMessage(MainActivity.DisplayCallbacks.LOG_RESPONSE, success).sendToTarget();
-            if (success == 3){
-                //Log.d(TAG, "LOGGED IN");
-                return 5;
-            } else {
-                return 5 + readText(stream);
-            }
+            mUiHandler.obtainMessage(MainActivity.DisplayCallbacks.LOG_RESPONSE, result).sendToTarget();
         }
 
         public void setUiHandler(Handler uiHandler) {
             this.mUiHandler = uiHandler;
         }
+
+        public void setFrameStats(FrameStats stats) {
+            mFrameStats = stats;
+        }
     }
-}
\ No newline at end of file
+}
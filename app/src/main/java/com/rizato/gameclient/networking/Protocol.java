@@ -3,8 +3,9 @@ package com.rizato.gameclient.networking;
 import android.support.annotation.IntDef;
 
 import com.rizato.gameview.ItemTile;
-import com.rizato.gameview.TerrainTile;
+import com.rizato.protocol.ProtocolCodec;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -15,34 +16,52 @@ import java.util.List;
 public class Protocol {
     @IntDef({LOGIN_RESPONSE, ZIPPED_SCREEN, TEXT_OUT, TILE_MAPPINGS, QUIT})
     public @interface Commands {}
-    public final static byte LOGIN_RESPONSE = 2;
-    public final static byte ZIPPED_SCREEN = 24;
-    public final static byte TEXT_OUT = 11;
-    public final static byte TILE_MAPPINGS = 8;
-    public final static byte QUIT = 13;
+    //The wire format itself lives in the protocol module
+    public final static byte LOGIN_RESPONSE = ProtocolCodec.LOGIN_RESPONSE;
+    public final static byte ZIPPED_SCREEN = ProtocolCodec.ZIPPED_SCREEN;
+    public final static byte TEXT_OUT = ProtocolCodec.TEXT_OUT;
+    public final static byte TILE_MAPPINGS = ProtocolCodec.TILE_MAPPINGS;
+    public final static byte QUIT = ProtocolCodec.QUIT;
 
     public static class TextResponse {
         public int style;
         public String message;
     }
 
+    /**
+     * A screen update. Either the whole terrain grid, or only the cells that changed since the
+     * last screen sent.
+     */
     public static class Screen {
+        //Visible tile counts, or -1 if they didn't change
         public int x;
         public int y;
-        public List<TerrainTile> terrain;
+        //Grid size, border ring included
+        public int width;
+        public int height;
+        //Packed terrain, column by column. See TerrainTile. Null if only cells changed.
+        public int[] terrain;
+        //Indexes into the grid that changed, and their new packed values
+        public int[] changedCells;
+        public int[] changedTiles;
+        //Cells changed this frame. The whole grid if terrain is set.
+        public int changedCount;
         public List<ItemTile> items;
+        public boolean itemsChanged;
+        //System.nanoTime() when the reader handed it to the UI
+        public long postedAt;
 
         @Override
         public boolean equals(Object o) {
             return o != null
                     && o instanceof Screen
-                    && ((Screen) o).terrain.equals(terrain)
+                    && Arrays.equals(((Screen) o).terrain, terrain)
                     && ((Screen) o).items.equals(items);
         }
 
         @Override
         public int hashCode() {
-            return x * y * terrain.hashCode() * items.hashCode();
+            return x * y * Arrays.hashCode(terrain) * items.hashCode();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,94 @@
+package com.rizato.gameclient.networking;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A single slot between the reader and the UI thread, holding the newest screen.
+ *
+ * The reader puts each screen in, and only has to tell the UI when the slot was empty. If the UI
+ * falls behind, the screen still waiting is folded into the newer one instead of being applied
+ * on its own. Screens are mostly diffs, so folding keeps the changed cells of both, the whole
+ * grid if either had one, and the tile counts of the last resize.
+ *
+ * Lock free. One thread puts, one thread takes.
+ */
+public class ScreenMailbox {
+    private final AtomicReference<Protocol.Screen> mSlot;
+    private volatile long mDropped;
+
+    public ScreenMailbox() {
+        mSlot = new AtomicReference<>();
+    }
+
+    /**
+     * Puts the newest screen in the slot. The screen is not changed, so it is safe to keep.
+     *
+     * @return true if the slot was empty, and the UI has to be told there is a screen
+     */
+    public boolean put(Protocol.Screen screen) {
+        while (true) {
+            Protocol.Screen waiting = mSlot.get();
+            //The one waiting may be taken at any time, so it is never changed either
+            Protocol.Screen next = waiting == null ? screen : merge(waiting, screen);
+            if (mSlot.compareAndSet(waiting, next)) {
+                if (waiting != null) {
+                    mDropped++;
+                }
+                return waiting == null;
+            }
+        }
+    }
+
+    /**
+     * @return the newest screen, or null if it was already taken
+     */
+    public Protocol.Screen take() {
+        return mSlot.getAndSet(null);
+    }
+
+    //Screens that were folded into a newer one, rather than drawn
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    //A screen that does what applying older and then newer would
+    private static Protocol.Screen merge(Protocol.Screen older, Protocol.Screen newer) {
+        Protocol.Screen merged = new Protocol.Screen();
+        //A resize has to survive, or the view keeps the old tile counts
+        merged.x = newer.x >= 0 ? newer.x : older.x;
+        merged.y = newer.y >= 0 ? newer.y : older.y;
+        merged.width = newer.width;
+        merged.height = newer.height;
+        if (newer.terrain != null) {
+            merged.terrain = newer.terrain;
+            merged.changedCount = newer.changedCount;
+        } else if (older.terrain != null) {
+            //Applying the newer cells to a copy of the older grid
+            int[] terrain = Arrays.copyOf(older.terrain, older.terrain.length);
+            for (int i = 0; i < newer.changedCount; i++) {
+                terrain[newer.changedCells[i]] = newer.changedTiles[i];
+            }
+            merged.terrain = terrain;
+            merged.changedCount = terrain.length;
+        } else {
+            //Both diffs. Later entries win when applied in order.
+            int count = older.changedCount + newer.changedCount;
+            merged.changedCells = new int[count];
+            merged.changedTiles = new int[count];
+            System.arraycopy(older.changedCells, 0, merged.changedCells, 0, older.changedCount);
+            System.arraycopy(older.changedTiles, 0, merged.changedTiles, 0, older.changedCount);
+            System.arraycopy(newer.changedCells, 0, merged.changedCells, older.changedCount,
+                    newer.changedCount);
+            System.arraycopy(newer.changedTiles, 0, merged.changedTiles, older.changedCount,
+                    newer.changedCount);
+            merged.changedCount = count;
+        }
+        //The reader always sends the whole item list
+        merged.items = newer.items;
+        merged.itemsChanged = older.itemsChanged || newer.itemsChanged;
+        //Queued since the older one was
+        merged.postedAt = older.postedAt;
+        return merged;
+    }
+}
@@ -0,0 +1,384 @@
+package com.rizato.gameclient.networking;
+
+import android.graphics.Bitmap;
+import android.util.SparseArray;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Decoded tile pixels, kept on disk between sessions. With it, a reconnect or a restart draws
+ * from the last session's tiles right away, and only tiles whose path changed are decoded from
+ * the GIFs again.
+ *
+ * Two files in the directory. The data file is appended to: per tile, the asset path (as UTF)
+ * and then the raw pixels, deflated. Opaque tiles are stored as RGB_565, the rest as ARGB_8888.
+ * The index file is memory mapped, and is a header followed by a fixed size record per write:
+ * tile, path hash, offset & length in the data file, width, height and format. Later records
+ * for a tile replace earlier ones.
+ *
+ * Data is written before the record pointing to it, so a crash part way through only loses
+ * that tile. Anything that doesn't check out is treated as a miss.
+ *
+ * Thread safe. Reads from several threads run in parallel, apart from the index lookup.
+ */
+public class TileDiskCache {
+    private static final int MAGIC = 0x4d544458;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 24;
+    //Index records the file starts with room for
+    private static final int INITIAL_RECORDS = 1024;
+    private static final byte FORMAT_ARGB_8888 = 0;
+    private static final byte FORMAT_RGB_565 = 1;
+    //Once the data file is this much bigger than what is still indexed, it is started over
+    private static final int WASTE_FACTOR = 2;
+    private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+
+    private final File mIndexFile;
+    private final File mDataFile;
+    private RandomAccessFile mIndex;
+    private RandomAccessFile mData;
+    private MappedByteBuffer mIndexMap;
+    //The newest record of each tile. Guarded by this.
+    private final SparseArray<Entry> mEntries;
+    private int mRecordCount;
+    private long mLiveBytes;
+    private final Deflater mDeflater;
+    private byte[] mScratch;
+
+    //Stats
+    private volatile int mHits;
+    private volatile int mMisses;
+    private volatile int mWrites;
+
+    /**
+     * Opens the cache in the directory, creating it if needed. A cache from another version, or
+     * one that can't be read, is started over.
+     */
+    public TileDiskCache(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        mIndexFile = new File(directory, "tiles.idx");
+        mDataFile = new File(directory, "tiles.dat");
+        mEntries = new SparseArray<>();
+        mDeflater = new Deflater(Deflater.BEST_SPEED);
+        mScratch = new byte[0];
+        open();
+    }
+
+    /**
+     * Whether a cache in the directory has any tiles stored. Call while it isn't open.
+     */
+    public static boolean hasTiles(File directory) {
+        return new File(directory, "tiles.dat").length() > 0;
+    }
+
+    /**
+     * Deletes a cache in the directory, for timing a cold start. Call while it isn't open.
+     */
+    public static void delete(File directory) {
+        //Missing files are fine, the next open starts over either way
+        //noinspection ResultOfMethodCallIgnored
+        new File(directory, "tiles.idx").delete();
+        //noinspection ResultOfMethodCallIgnored
+        new File(directory, "tiles.dat").delete();
+    }
+
+    private void open() throws IOException {
+        mIndex = new RandomAccessFile(mIndexFile, "rw");
+        mData = new RandomAccessFile(mDataFile, "rw");
+        long dataLength = mData.length();
+        if (mIndex.length() < HEADER_SIZE) {
+            reset();
+            return;
+        }
+        map(Math.max(mIndex.length(), HEADER_SIZE + INITIAL_RECORDS * RECORD_SIZE));
+        if (mIndexMap.getInt(0) != MAGIC || mIndexMap.getInt(4) != VERSION) {
+            reset();
+            return;
+        }
+        int count = mIndexMap.getInt(8);
+        int capacity = (mIndexMap.capacity() - HEADER_SIZE) / RECORD_SIZE;
+        count = Math.min(count, capacity);
+        for (int i = 0; i < count; i++) {
+            int position = HEADER_SIZE + i * RECORD_SIZE;
+            Entry entry = new Entry();
+            int tile = mIndexMap.getInt(position);
+            entry.pathHash = mIndexMap.getInt(position + 4);
+            entry.offset = mIndexMap.getInt(position + 8) & 0xffffffffL;
+            entry.length = mIndexMap.getInt(position + 12);
+            entry.width = mIndexMap.getShort(position + 16) & 0xffff;
+            entry.height = mIndexMap.getShort(position + 18) & 0xffff;
+            entry.format = mIndexMap.get(position + 20);
+            if (entry.offset + entry.length > dataLength) {
+                //The data never made it to disk
+                continue;
+            }
+            replace(tile, entry);
+        }
+        mRecordCount = count;
+        if (dataLength > MIN_COMPACT_BYTES && dataLength > mLiveBytes * WASTE_FACTOR) {
+            //Mostly replaced tiles. Cheaper to decode the rest again than to copy them out.
+            reset();
+        }
+    }
+
+    //Empties both files
+    private void reset() throws IOException {
+        mEntries.clear();
+        mRecordCount = 0;
+        mLiveBytes = 0;
+        mData.setLength(0);
+        mIndex.setLength(0);
+        map(HEADER_SIZE + INITIAL_RECORDS * RECORD_SIZE);
+        mIndexMap.putInt(0, MAGIC);
+        mIndexMap.putInt(4, VERSION);
+        mIndexMap.putInt(8, 0);
+    }
+
+    private void map(long size) throws IOException {
+        mIndexMap = mIndex.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void replace(int tile, Entry entry) {
+        Entry old = mEntries.get(tile);
+        if (old != null) {
+            mLiveBytes -= old.length;
+        }
+        mEntries.put(tile, entry);
+        mLiveBytes += entry.length;
+    }
+
+    /**
+     * Every tile on disk, with the path it was stored under. For warming up before the server
+     * sends the mappings.
+     */
+    public synchronized SparseArray<String> getPaths() {
+        SparseArray<String> paths = new SparseArray<>(mEntries.size());
+        for (int i = 0; i < mEntries.size(); i++) {
+            try {
+                String path = readPath(mEntries.valueAt(i));
+                if (path != null) {
+                    paths.put(mEntries.keyAt(i), path);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * Reads the tile, if it was stored under this path. Decodes into reuse if it is mutable and
+     * matches, or into a new mutable bitmap.
+     *
+     * @return null on a miss
+     */
+    public Bitmap read(int tile, String path, Bitmap reuse) {
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(tile);
+        }
+        if (entry == null || entry.pathHash != path.hashCode()) {
+            mMisses++;
+            return null;
+        }
+        try {
+            byte[] blob = new byte[entry.length];
+            readFully(ByteBuffer.wrap(blob), entry.offset);
+            DataInputStream stream = new DataInputStream(new ByteArrayInputStream(blob));
+            if (!path.equals(stream.readUTF())) {
+                //Only the hash matched
+                mMisses++;
+                return null;
+            }
+            int start = entry.length - stream.available();
+            Bitmap.Config config = entry.format == FORMAT_RGB_565
+                    ? Bitmap.Config.RGB_565
+                    : Bitmap.Config.ARGB_8888;
+            int bytesPerPixel = entry.format == FORMAT_RGB_565 ? 2 : 4;
+            byte[] pixels = new byte[entry.width * entry.height * bytesPerPixel];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(blob, start, entry.length - start);
+                int read = 0;
+                while (read < pixels.length && !inflater.finished()) {
+                    int n = inflater.inflate(pixels, read, pixels.length - read);
+                    if (n == 0 && inflater.needsInput()) {
+                        break;
+                    }
+                    read += n;
+                }
+                if (read != pixels.length) {
+                    mMisses++;
+                    return null;
+                }
+            } finally {
+                inflater.end();
+            }
+            Bitmap bitmap = reuse;
+            if (bitmap == null || !bitmap.isMutable()
+                    || bitmap.getWidth() != entry.width
+                    || bitmap.getHeight() != entry.height
+                    || bitmap.getConfig() != config) {
+                bitmap = Bitmap.createBitmap(entry.width, entry.height, config);
+            }
+            bitmap.copyPixelsFromBuffer(ByteBuffer.wrap(pixels));
+            mHits++;
+            return bitmap;
+        } catch (IOException | DataFormatException e) {
+            e.printStackTrace();
+            mMisses++;
+            return null;
+        }
+    }
+
+    /**
+     * Stores the tile's pixels under the path, replacing what was stored for it.
+     */
+    public synchronized void write(int tile, String path, Bitmap bitmap) {
+        Bitmap.Config config = bitmap.getConfig();
+        byte format;
+        if (config == Bitmap.Config.RGB_565) {
+            format = FORMAT_RGB_565;
+        } else if (config == Bitmap.Config.ARGB_8888) {
+            format = FORMAT_ARGB_8888;
+        } else {
+            //Nothing else comes out of the TileCache
+            return;
+        }
+        try {
+            byte[] pixels = new byte[bitmap.getByteCount()];
+            bitmap.copyPixelsToBuffer(ByteBuffer.wrap(pixels));
+            ByteArrayOutputStream blob = new ByteArrayOutputStream(pixels.length / 4 + 64);
+            DataOutputStream stream = new DataOutputStream(blob);
+            stream.writeUTF(path);
+            deflate(pixels, stream);
+            byte[] bytes = blob.toByteArray();
+
+            long offset = mData.length();
+            if (offset + bytes.length > 0xffffffffL) {
+                return;
+            }
+            mData.seek(offset);
+            mData.write(bytes);
+
+            int position = HEADER_SIZE + mRecordCount * RECORD_SIZE;
+            if (position + RECORD_SIZE > mIndexMap.capacity()) {
+                map(mIndexMap.capacity() * 2L);
+            }
+            mIndexMap.putInt(position, tile);
+            mIndexMap.putInt(position + 4, path.hashCode());
+            mIndexMap.putInt(position + 8, (int) offset);
+            mIndexMap.putInt(position + 12, bytes.length);
+            mIndexMap.putShort(position + 16, (short) bitmap.getWidth());
+            mIndexMap.putShort(position + 18, (short) bitmap.getHeight());
+            mIndexMap.put(position + 20, format);
+            mRecordCount++;
+            //The record only counts once this is written
+            mIndexMap.putInt(8, mRecordCount);
+
+            Entry entry = new Entry();
+            entry.pathHash = path.hashCode();
+            entry.offset = offset;
+            entry.length = bytes.length;
+            entry.width = bitmap.getWidth();
+            entry.height = bitmap.getHeight();
+            entry.format = format;
+            replace(tile, entry);
+            mWrites++;
+        } catch (IOException e) {
+            //Out of space, probably. The tile still works, it just isn't kept.
+            e.printStackTrace();
+        }
+    }
+
+    //Whether the tile is stored under this path
+    public synchronized boolean contains(int tile, String path) {
+        Entry entry = mEntries.get(tile);
+        return entry != null && entry.pathHash == path.hashCode();
+    }
+
+    //Flushes the index, and closes both files
+    public synchronized void close() {
+        try {
+            mIndexMap.force();
+            mIndex.close();
+            mData.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public int getHitCount() {
+        return mHits;
+    }
+
+    public int getMissCount() {
+        return mMisses;
+    }
+
+    public int getWriteCount() {
+        return mWrites;
+    }
+
+    private void deflate(byte[] data, DataOutputStream out) throws IOException {
+        if (mScratch.length < 64 * 1024) {
+            mScratch = new byte[64 * 1024];
+        }
+        mDeflater.reset();
+        mDeflater.setInput(data);
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            int n = mDeflater.deflate(mScratch);
+            out.write(mScratch, 0, n);
+        }
+    }
+
+    //Hold the lock
+    private String readPath(Entry entry) throws IOException {
+        //A UTF is a 2 byte length, and then the string
+        ByteBuffer length = ByteBuffer.allocate(2);
+        readFully(length, entry.offset);
+        int size = length.getShort(0) & 0xffff;
+        if (size + 2 > entry.length) {
+            return null;
+        }
+        byte[] utf = new byte[size + 2];
+        readFully(ByteBuffer.wrap(utf), entry.offset);
+        return new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+    }
+
+    //Positional reads don't move the file pointer, so they can run alongside writes
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        FileChannel channel = mData.getChannel();
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("Tile data is cut short");
+            }
+        }
+    }
+
+    private static class Entry {
+        int pathHash;
+        long offset;
+        int length;
+        int width;
+        int height;
+        byte format;
+    }
+}
@@ -0,0 +1,300 @@
+package com.rizato.gameclient.networking;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Process;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.rizato.gameview.TileCache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes tile bitmaps from the assets on a pool of worker threads, one per core.
+ *
+ * The socket reader only queues the decodes, so it can go back to reading screens right away.
+ * Decoded bitmaps go into a memory budgeted TileCache, and the listener hears about them in
+ * batches. The loader also remembers the path of every tile, so the cache can decode tiles
+ * again after evicting them. A tile that is drawn before its decode has run jumps the queue.
+ *
+ * With a {@link TileDiskCache}, tiles are read from disk when they were stored under the same
+ * path, and written to it after decoding from the assets. {@link #restore()} loads the last
+ * session's tiles before the server sends any mappings. Mappings that match are then skipped.
+ */
+public class TileLoader implements TileCache.TileDecoder {
+    private static final String TAG = TileLoader.class.getSimpleName();
+    //Publishing more often gets the first screen drawn sooner, but copies the mapping more
+    private static final int BATCH_SIZE = 32;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    //Share of the heap the decoded tiles may use
+    private static final int MEMORY_FRACTION = 8;
+
+    private final Context mContext;
+    private final Listener mListener;
+    private final ThreadPoolExecutor mExecutor;
+    //The executor's queue, so missed tiles can be moved to the front
+    private final LinkedBlockingDeque<Runnable> mQueue;
+    private final TileCache mCache;
+    //Null if there isn't one
+    private final TileDiskCache mDiskCache;
+    private final long mStartNanos;
+
+    //Everything below is guarded by this
+    private final SparseArray<String> mPaths;
+    //Newest request for each tile, so a slow old decode can't replace a newer one
+    private final SparseIntArray mGenerations;
+    //Decodes that haven't started, and haven't been moved up yet
+    private final SparseArray<Decode> mQueued;
+    private int mGeneration;
+    private int mPending;
+    private int mFinished;
+    private boolean mReported;
+
+    public TileLoader(Context context, Listener listener) {
+        this(context, listener, null);
+    }
+
+    /**
+     * @param diskCache tiles kept from earlier sessions, or null
+     */
+    public TileLoader(Context context, Listener listener, TileDiskCache diskCache) {
+        mContext = context;
+        mListener = listener;
+        mDiskCache = diskCache;
+        mStartNanos = System.nanoTime();
+        mCache = new TileCache((int) (Runtime.getRuntime().maxMemory() / MEMORY_FRACTION), this);
+        mPaths = new SparseArray<>();
+        mGenerations = new SparseIntArray();
+        mQueued = new SparseArray<>();
+        int cores = Math.max(1, Runtime.getRuntime().availableProcessors());
+        mQueue = new LinkedBlockingDeque<>();
+        mExecutor = new ThreadPoolExecutor(cores, cores, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                mQueue, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, TAG + " #" + mCount.incrementAndGet());
+            }
+        });
+        //Idle workers go away between mapping bursts
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues up a decode of art/game/[path].gif for the tile. Does nothing if the tile already
+     * has that path, like when it was restored from disk.
+     */
+    public void load(int tile, String path) {
+        Decode decode;
+        synchronized (this) {
+            String old = mPaths.get(tile);
+            if (path.equals(old)) {
+                return;
+            }
+            mPaths.put(tile, path);
+            mGenerations.put(tile, ++mGeneration);
+            mPending++;
+            decode = new Decode(tile, mGeneration);
+            mQueued.put(tile, decode);
+            if (old != null && !old.equals(path)) {
+                //Don't keep drawing the old image while the new one decodes
+                mCache.remove(tile);
+            }
+        }
+        mExecutor.execute(decode);
+    }
+
+    /**
+     * Queues up reading every tile on disk, with the path it was last stored under. Tiles the
+     * server has already mapped are left alone.
+     */
+    public void restore() {
+        if (mDiskCache == null) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SparseArray<String> paths = mDiskCache.getPaths();
+                List<Decode> decodes = new ArrayList<>(paths.size());
+                synchronized (TileLoader.this) {
+                    for (int i = 0; i < paths.size(); i++) {
+                        int tile = paths.keyAt(i);
+                        if (mPaths.get(tile) != null) {
+                            continue;
+                        }
+                        mPaths.put(tile, paths.valueAt(i));
+                        mGenerations.put(tile, ++mGeneration);
+                        mPending++;
+                        Decode decode = new Decode(tile, mGeneration);
+                        mQueued.put(tile, decode);
+                        decodes.add(decode);
+                    }
+                }
+                for (Decode decode : decodes) {
+                    mExecutor.execute(decode);
+                }
+            }
+        });
+    }
+
+    public TileCache getCache() {
+        return mCache;
+    }
+
+    //Stops all decodes. Nothing is published after this.
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * A tile was drawn before it was loaded. Moves its decode to the front of the queue, once.
+     * Called on the drawing thread.
+     */
+    @Override
+    public void onMiss(int tile) {
+        Decode decode;
+        synchronized (this) {
+            decode = mQueued.get(tile);
+            if (decode == null) {
+                //Already running, done, or never mapped
+                return;
+            }
+            mQueued.remove(tile);
+        }
+        //False if a worker just took it
+        if (mQueue.remove(decode)) {
+            mQueue.offerFirst(decode);
+        }
+    }
+
+    /**
+     * Decodes a tile, from disk if it is there, or else from its asset. Called by the workers,
+     * and by the cache when an evicted tile is drawn. On the drawing thread the disk cache is
+     * left alone: it is slow, and its writes wait on the workers.
+     */
+    @Override
+    public Bitmap decode(int tile, BitmapFactory.Options options, boolean drawing) {
+        String path;
+        synchronized (this) {
+            path = mPaths.get(tile);
+        }
+        if (path == null) {
+            return null;
+        }
+        if (mDiskCache != null && !drawing) {
+            Bitmap bitmap = mDiskCache.read(tile, path, options.inBitmap);
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        InputStream stream = null;
+        try {
+            stream = mContext.getAssets().open(String.format(Locale.US,
+                    "art/game/%s.gif", path));
+            Bitmap bitmap = BitmapFactory.decodeStream(stream, null, options);
+            if (bitmap != null && mDiskCache != null && !drawing) {
+                mDiskCache.write(tile, path, bitmap);
+            }
+            return bitmap;
+        } catch (IOException e) {
+            Log.d(TAG, "decode: Couldn't find art/game/" + path + ".gif");
+            return null;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void finish() {
+        boolean publish;
+        boolean report = false;
+        int tiles = 0;
+        synchronized (this) {
+            mPending--;
+            mFinished++;
+            publish = mFinished >= BATCH_SIZE || mPending == 0;
+            if (publish) {
+                mFinished = 0;
+            }
+            if (mPending == 0 && !mReported) {
+                mReported = true;
+                report = true;
+                tiles = mPaths.size();
+            }
+        }
+        if (report) {
+            //Once a connection. The time the player sees is MainActivity's BENCHMARK_FIRST_SCREEN,
+            //with COLD_START for the cold one; this is the share of it spent loading.
+            Log.i(TAG, String.format(Locale.US, "finish: First %d tiles loaded in %.1fms, %s",
+                    tiles, (System.nanoTime() - mStartNanos) / 1000000f,
+                    mDiskCache == null ? "no disk cache" : mDiskCache.getHitCount()
+                            + " from disk"));
+        }
+        if (publish && !mExecutor.isShutdown()) {
+            mListener.onTilesLoaded(mCache);
+        }
+    }
+
+    /**
+     * Hears about each batch of decoded tiles. Called on a worker thread.
+     */
+    public interface Listener {
+        /**
+         * @param cache the cache the tiles were decoded into
+         */
+        void onTilesLoaded(TileCache cache);
+    }
+
+    private class Decode implements Runnable {
+        final int tile;
+        final int generation;
+
+        Decode(int tile, int generation) {
+            this.tile = tile;
+            this.generation = generation;
+        }
+
+        @Override
+        public void run() {
+            try {
+                boolean current;
+                synchronized (TileLoader.this) {
+                    current = mGenerations.get(tile) == generation;
+                    if (mQueued.get(tile) == this) {
+                        mQueued.remove(tile);
+                    }
+                }
+                if (current) {
+                    mCache.preload(tile);
+                }
+            } finally {
+                finish();
+            }
+        }
+    }
+}
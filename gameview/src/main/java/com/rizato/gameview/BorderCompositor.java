@@ -0,0 +1,269 @@
+package com.rizato.gameview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+/**
+ * Borders between terrain tiles. A tile with a higher border priority spills its edge onto the
+ * tiles around it, if it gives borders and they take them (see {@link TerrainTile}).
+ *
+ * Each cell gets a list of the tiles bordering onto it, lowest priority first, and a mask of the
+ * sides each one touches. That only changes when the cell or one of its eight neighbors does.
+ * The overlay for a tile & mask is the tile's bitmap faded out away from those sides. Overlays
+ * are built the first time they are drawn, at the size they are drawn at, and kept under a
+ * memory budget.
+ *
+ * Not thread safe. Used by the renderer, on whichever thread it draws from.
+ */
+class BorderCompositor {
+    //Sides of the cell a border comes from
+    static final int NORTH = 1;
+    static final int NORTHEAST = 1 << 1;
+    static final int EAST = 1 << 2;
+    static final int SOUTHEAST = 1 << 3;
+    static final int SOUTH = 1 << 4;
+    static final int SOUTHWEST = 1 << 5;
+    static final int WEST = 1 << 6;
+    static final int NORTHWEST = 1 << 7;
+    //Tiles bordering onto one cell that get drawn. The highest priority ones are kept.
+    static final int MAX_BORDERS = 4;
+    //Neighbor offsets, in the order of the side bits
+    private static final int[] NEIGHBOR_X = {0, 1, 1, 1, 0, -1, -1, -1};
+    private static final int[] NEIGHBOR_Y = {-1, -1, 0, 1, 1, 1, 0, -1};
+
+    private final int mImageTileSize;
+    //Overlays by tile << 8 | mask
+    private final LruCache<Integer, Bitmap> mOverlays;
+    //Fade masks by side mask, at the current size
+    private final SparseArray<Bitmap> mMasks;
+    private final Canvas mCanvas;
+    private final Paint mPaint;
+    private final Paint mMaskPaint;
+    private final Rect mSource;
+    private final Rect mDest;
+    //Scratch for compute, one entry per bordering tile
+    private final int[] mKeys = new int[8];
+    private final int[] mSides = new int[8];
+    private int mTileSize;
+    private int mGeneration;
+
+    //Stats
+    private int mBuildCount;
+
+    BorderCompositor(int imageTileSize, int maxBytes) {
+        mImageTileSize = imageTileSize;
+        mOverlays = new LruCache<Integer, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Integer key, Bitmap value) {
+                return value.getByteCount();
+            }
+        };
+        mMasks = new SparseArray<>();
+        mCanvas = new Canvas();
+        mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        mMaskPaint = new Paint();
+        mMaskPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_IN));
+        mSource = new Rect();
+        mDest = new Rect();
+    }
+
+    /**
+     * Works out the borders drawn on cell x, y of the grid. The cell has to have all eight
+     * neighbors, so not be on the ring.
+     *
+     * @param seen whether each cell of the grid has been seen, or null if they all have.
+     *             Cells not seen neither take nor give borders.
+     * @param out  gets tile << 8 | mask for each border, from offset, lowest priority first
+     * @return the number of borders
+     */
+    int compute(int[] terrain, boolean[] seen, int stride, int x, int y, int[] out, int offset) {
+        int center = x * stride + y;
+        int cell = terrain[center];
+        if ((seen != null && !seen[center])
+                || !TerrainTile.hasBorders(cell) || !TerrainTile.isInBorderEnabled(cell)) {
+            return 0;
+        }
+        int priority = TerrainTile.getBorderPriority(cell);
+        int tile = TerrainTile.getTile(cell);
+        int count = 0;
+        int[] keys = mKeys;
+        int[] masks = mSides;
+        for (int side = 0; side < 8; side++) {
+            int around = (x + NEIGHBOR_X[side]) * stride + y + NEIGHBOR_Y[side];
+            int neighbor = terrain[around];
+            if ((seen != null && !seen[around])
+                    || !TerrainTile.hasBorders(neighbor)
+                    || !TerrainTile.isOutBorderEnabled(neighbor)
+                    || TerrainTile.getBorderPriority(neighbor) <= priority
+                    || TerrainTile.getTile(neighbor) == tile) {
+                continue;
+            }
+            //Sorts by priority, then tile
+            int key = TerrainTile.getBorderPriority(neighbor) << 16
+                    | TerrainTile.getTile(neighbor);
+            int i = 0;
+            while (i < count && keys[i] != key) {
+                i++;
+            }
+            if (i == count) {
+                keys[count++] = key;
+                masks[i] = 0;
+            }
+            masks[i] |= 1 << side;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        //Lowest priority first, so the highest is drawn on top. There are never more than 8.
+        for (int i = 1; i < count; i++) {
+            int key = keys[i];
+            int mask = masks[i];
+            int j = i - 1;
+            while (j >= 0 && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                masks[j + 1] = masks[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            masks[j + 1] = mask;
+        }
+        int first = Math.max(0, count - MAX_BORDERS);
+        for (int i = first; i < count; i++) {
+            out[offset + i - first] = (keys[i] & 0xFFFF) << 8 | trimCorners(masks[i]);
+        }
+        return count - first;
+    }
+
+    //Corners next to a side that is already set add nothing, and would only split the cache
+    private static int trimCorners(int mask) {
+        if ((mask & (NORTH | EAST)) != 0) {
+            mask &= ~NORTHEAST;
+        }
+        if ((mask & (SOUTH | EAST)) != 0) {
+            mask &= ~SOUTHEAST;
+        }
+        if ((mask & (SOUTH | WEST)) != 0) {
+            mask &= ~SOUTHWEST;
+        }
+        if ((mask & (NORTH | WEST)) != 0) {
+            mask &= ~NORTHWEST;
+        }
+        return mask;
+    }
+
+    /**
+     * Drops every overlay if the tile size or the tile bitmaps changed since they were built.
+     */
+    void prepare(int tileSize, int generation) {
+        if (tileSize != mTileSize || generation != mGeneration) {
+            mOverlays.evictAll();
+            mMasks.clear();
+            mTileSize = tileSize;
+            mGeneration = generation;
+        }
+    }
+
+    /**
+     * @return the overlay for a border from compute, at the size given to prepare, or null if
+     * it isn't built yet
+     */
+    Bitmap get(int border) {
+        return mOverlays.get(border);
+    }
+
+    /**
+     * Builds the overlay for a border, and caches it.
+     *
+     * @param source the bordering tile's bitmap. Only its top left tile is used.
+     * @return null if there is no bitmap to build it from
+     */
+    Bitmap build(int border, Bitmap source) {
+        if (source == null || mTileSize <= 0) {
+            return null;
+        }
+        Bitmap overlay = Bitmap.createBitmap(mTileSize, mTileSize, Bitmap.Config.ARGB_8888);
+        mCanvas.setBitmap(overlay);
+        mSource.set(0, 0, Math.min(mImageTileSize, source.getWidth()),
+                Math.min(mImageTileSize, source.getHeight()));
+        mDest.set(0, 0, mTileSize, mTileSize);
+        mCanvas.drawBitmap(source, mSource, mDest, mPaint);
+        mCanvas.drawBitmap(getMask(border & 0xFF), 0, 0, mMaskPaint);
+        mCanvas.setBitmap(null);
+        mOverlays.put(border, overlay);
+        mBuildCount++;
+        return overlay;
+    }
+
+    /**
+     * Alpha that is solid at the bordering sides, and fades out halfway across the tile.
+     */
+    private Bitmap getMask(int mask) {
+        Bitmap bitmap = mMasks.get(mask);
+        if (bitmap != null) {
+            return bitmap;
+        }
+        int size = mTileSize;
+        float depth = size / 2f;
+        int last = size - 1;
+        int[] pixels = new int[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                float alpha = 0;
+                if ((mask & NORTH) != 0) {
+                    alpha = Math.max(alpha, 1 - y / depth);
+                }
+                if ((mask & SOUTH) != 0) {
+                    alpha = Math.max(alpha, 1 - (last - y) / depth);
+                }
+                if ((mask & WEST) != 0) {
+                    alpha = Math.max(alpha, 1 - x / depth);
+                }
+                if ((mask & EAST) != 0) {
+                    alpha = Math.max(alpha, 1 - (last - x) / depth);
+                }
+                if ((mask & NORTHEAST) != 0) {
+                    alpha = Math.max(alpha, 1 - distance(last - x, y) / depth);
+                }
+                if ((mask & SOUTHEAST) != 0) {
+                    alpha = Math.max(alpha, 1 - distance(last - x, last - y) / depth);
+                }
+                if ((mask & SOUTHWEST) != 0) {
+                    alpha = Math.max(alpha, 1 - distance(x, last - y) / depth);
+                }
+                if ((mask & NORTHWEST) != 0) {
+                    alpha = Math.max(alpha, 1 - distance(x, y) / depth);
+                }
+                pixels[y * size + x] = (int) (Math.max(0, alpha) * 255) << 24;
+            }
+        }
+        bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        bitmap.setPixels(pixels, 0, size, 0, 0, size, size);
+        mMasks.put(mask, bitmap);
+        return bitmap;
+    }
+
+    private static float distance(int x, int y) {
+        return (float) Math.sqrt(x * x + y * y);
+    }
+
+    //Overlays built since the start. Most frames shouldn't add any.
+    int getBuildCount() {
+        return mBuildCount;
+    }
+
+    //Bytes used by the cached overlays. The cache sizes entries in bytes, so its size is bytes.
+    int getByteCount() {
+        return mOverlays.size();
+    }
+
+    //Bytes the overlays may grow to before the least recently drawn go
+    int getMaxByteCount() {
+        return mOverlays.maxSize();
+    }
+}
@@ -0,0 +1,180 @@
+package com.rizato.gameview;
+
+import android.os.Build;
+import android.os.Trace;
+import android.support.annotation.IntDef;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per frame numbers for the whole screen pipeline, from the bytes coming off the connection to
+ * the tiles drawn. Each metric keeps its last few hundred samples in a ring buffer, allocated up
+ * front, so recording costs a couple of array writes.
+ *
+ * Each metric is recorded from one thread: the network side from the reader, the drawing side
+ * from whichever thread draws. Reading from another thread is fine, the numbers may just be a
+ * frame behind.
+ *
+ * Also the switch for tracing. With it off, the per frame trace sections & log lines cost a
+ * boolean check.
+ */
+@SuppressWarnings("unused")
+public class FrameStats {
+    @IntDef({BYTES_RECEIVED, INFLATE_TIME, DECODE_TIME, QUEUE_TIME, DRAW_TIME, TILES_DRAWN,
+            TILES_MISSING, BITMAP_SWITCHES})
+    public @interface Metric {}
+    //Size of each screen frame, header included
+    public static final int BYTES_RECEIVED = 0;
+    //Inflating the zipped screen, in nanoseconds
+    public static final int INFLATE_TIME = 1;
+    //Reading the grid & items out of the inflated block, and diffing them, in nanoseconds
+    public static final int DECODE_TIME = 2;
+    //From the reader handing a screen over to the UI taking it, in nanoseconds
+    public static final int QUEUE_TIME = 3;
+    //The view's draw call, in nanoseconds
+    public static final int DRAW_TIME = 4;
+    //Bitmaps drawn in one frame, terrain & items
+    public static final int TILES_DRAWN = 5;
+    //Tiles on screen after a frame that had no bitmap yet, terrain & items. Recorded after
+    //TILES_DRAWN.
+    public static final int TILES_MISSING = 6;
+    //Draws on the view's canvas from a different bitmap than the draw before, in one frame. A
+    //hardware canvas batches runs from the same bitmap, so this is close to its draw calls.
+    //Recorded last.
+    public static final int BITMAP_SWITCHES = 7;
+    public static final int METRIC_COUNT = 8;
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final String[] NAMES = {"bytes", "inflate", "decode", "queue", "draw", "tiles",
+            "missing", "switches"};
+
+    private static volatile boolean sTracing;
+
+    private final int mCapacity;
+    private final long[][] mSamples;
+    //Samples recorded so far, for each metric. Also publishes the sample writes.
+    private final AtomicLongArray mCounts;
+    //For the percentiles, so reading doesn't allocate either
+    private final long[] mSorted;
+    private volatile Listener mListener;
+
+    public FrameStats() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity samples kept for each metric. Percentiles are over these.
+     */
+    public FrameStats(int capacity) {
+        mCapacity = capacity;
+        mSamples = new long[METRIC_COUNT][capacity];
+        mCounts = new AtomicLongArray(METRIC_COUNT);
+        mSorted = new long[capacity];
+    }
+
+    /**
+     * Adds a sample. Call it from the one thread that records this metric.
+     */
+    public void record(@Metric int metric, long value) {
+        long count = mCounts.get(metric);
+        mSamples[metric][(int) (count % mCapacity)] = value;
+        mCounts.lazySet(metric, count + 1);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onSample(metric, value);
+        }
+    }
+
+    //Samples recorded since the start, not just the ones kept
+    public long getCount(@Metric int metric) {
+        return mCounts.get(metric);
+    }
+
+    //The newest sample, or 0 if there are none
+    public long getLast(@Metric int metric) {
+        long count = mCounts.get(metric);
+        return count == 0 ? 0 : mSamples[metric][(int) ((count - 1) % mCapacity)];
+    }
+
+    /**
+     * The value the given fraction of the kept samples are at or under. 0.5 for the median, 0.99
+     * for the slowest 1%.
+     *
+     * @return 0 if there are no samples
+     */
+    public long getPercentile(@Metric int metric, float fraction) {
+        synchronized (mSorted) {
+            int size = (int) Math.min(mCounts.get(metric), mCapacity);
+            if (size == 0) {
+                return 0;
+            }
+            System.arraycopy(mSamples[metric], 0, mSorted, 0, size);
+            Arrays.sort(mSorted, 0, size);
+            int index = (int) Math.ceil(fraction * size) - 1;
+            return mSorted[Math.max(0, Math.min(size - 1, index))];
+        }
+    }
+
+    //Average of the kept samples
+    public long getMean(@Metric int metric) {
+        int size = (int) Math.min(mCounts.get(metric), mCapacity);
+        if (size == 0) {
+            return 0;
+        }
+        long total = 0;
+        long[] samples = mSamples[metric];
+        for (int i = 0; i < size; i++) {
+            total += samples[i];
+        }
+        return total / size;
+    }
+
+    //Forgets every sample
+    public void reset() {
+        for (int i = 0; i < METRIC_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+    }
+
+    /**
+     * Gets every sample as it is recorded, on the thread recording it. Keep it quick, it is in
+     * the middle of a frame.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public static String getName(@Metric int metric) {
+        return NAMES[metric];
+    }
+
+    /**
+     * Turns tracing on or off for the whole process. With it on, the pipeline stages show up as
+     * sections in systrace (on 4.3 and up), and dropped or missing things are logged every frame.
+     */
+    public static void setTracingEnabled(boolean enabled) {
+        sTracing = enabled;
+    }
+
+    public static boolean isTracingEnabled() {
+        return sTracing;
+    }
+
+    //Pair every call with endSection, on the same thread
+    public static void beginSection(String name) {
+        if (sTracing && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(name);
+        }
+    }
+
+    public static void endSection() {
+        if (sTracing && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+
+    public interface Listener {
+        void onSample(@Metric int metric, long value);
+    }
+}
@@ -0,0 +1,100 @@
+package com.rizato.gameview;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.os.SystemClock;
+
+import java.util.Locale;
+
+/**
+ * Draws the rolling percentiles of a {@link FrameStats} in the top left corner of the view.
+ *
+ * Sorting the samples and formatting the lines happens at most every {@link #REFRESH_MS}, so
+ * most frames only draw the text it already has.
+ */
+class FrameStatsOverlay {
+    static final long REFRESH_MS = 500;
+    private static final float NANOS_PER_MS = 1000000f;
+
+    private final Paint mTextPaint;
+    private final Paint mBackgroundPaint;
+    private final float mLineHeight;
+    private final float mPadding;
+    private final String[] mLines;
+    private final Rect mBounds;
+    private long mLastRefresh;
+
+    /**
+     * @param density from the display metrics, to size the text
+     */
+    FrameStatsOverlay(float density) {
+        mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mTextPaint.setColor(Color.WHITE);
+        //So the columns line up
+        mTextPaint.setTypeface(Typeface.MONOSPACE);
+        mTextPaint.setTextSize(11 * density);
+        mBackgroundPaint = new Paint();
+        mBackgroundPaint.setColor(Color.argb(160, 0, 0, 0));
+        mLineHeight = 13 * density;
+        mPadding = 4 * density;
+        mLines = new String[FrameStats.METRIC_COUNT + 1];
+        mBounds = new Rect();
+    }
+
+    /**
+     * Draws at left, top, in the same space as the tiles. The canvas shouldn't be scaled.
+     */
+    void draw(Canvas canvas, FrameStats stats, int left, int top) {
+        long now = SystemClock.uptimeMillis();
+        if (mLines[0] == null || now - mLastRefresh >= REFRESH_MS) {
+            refresh(stats);
+            mLastRefresh = now;
+        }
+        float width = 0;
+        for (String line : mLines) {
+            width = Math.max(width, mTextPaint.measureText(line));
+        }
+        mBounds.set(left, top, (int) Math.ceil(left + width + mPadding * 2),
+                (int) Math.ceil(top + mLines.length * mLineHeight + mPadding * 2));
+        canvas.drawRect(mBounds, mBackgroundPaint);
+        float baseline = top + mPadding + mTextPaint.getTextSize();
+        for (String line : mLines) {
+            canvas.drawText(line, left + mPadding, baseline, mTextPaint);
+            baseline += mLineHeight;
+        }
+    }
+
+    //Where it was last drawn, so the view can redraw just that
+    Rect getBounds() {
+        return mBounds;
+    }
+
+    private void refresh(FrameStats stats) {
+        mLines[0] = "          p50     p90     p99";
+        for (int metric = 0; metric < FrameStats.METRIC_COUNT; metric++) {
+            long p50 = stats.getPercentile(metric, 0.5f);
+            long p90 = stats.getPercentile(metric, 0.9f);
+            long p99 = stats.getPercentile(metric, 0.99f);
+            String line;
+            if (isTime(metric)) {
+                line = String.format(Locale.US, "%-7s %5.1fms %5.1fms %5.1fms",
+                        FrameStats.getName(metric), p50 / NANOS_PER_MS, p90 / NANOS_PER_MS,
+                        p99 / NANOS_PER_MS);
+            } else {
+                line = String.format(Locale.US, "%-7s %7d %7d %7d",
+                        FrameStats.getName(metric), p50, p90, p99);
+            }
+            mLines[metric + 1] = line;
+        }
+    }
+
+    private static boolean isTime(int metric) {
+        return metric == FrameStats.INFLATE_TIME
+                || metric == FrameStats.DECODE_TIME
+                || metric == FrameStats.QUEUE_TIME
+                || metric == FrameStats.DRAW_TIME;
+    }
+}
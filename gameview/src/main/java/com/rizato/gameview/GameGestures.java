@@ -0,0 +1,181 @@
+package com.rizato.gameview;
+
+import android.content.Context;
+import android.util.Log;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+
+import java.util.List;
+
+/**
+ * Turns touches on a game view into pinch zoom, tile taps and swipes. Shared by the GameView
+ * and the GameSurfaceView. Runs on the UI thread.
+ */
+class GameGestures {
+    private static final String TAG = GameGestures.class.getSimpleName();
+
+    private final Host mHost;
+    private final List<GameView.GameViewCallbacks> mCallbacks;
+    private final GestureDetector mGestureDetector;
+    private final ScaleGestureDetector mScaleDetector;
+
+    GameGestures(Context context, Host host, List<GameView.GameViewCallbacks> callbacks) {
+        mHost = host;
+        mCallbacks = callbacks;
+        mScaleDetector = new ScaleGestureDetector(context, new ScaleListener());
+        mGestureDetector = new GestureDetector(context,new TapListener() );
+    }
+
+    boolean onTouchEvent(MotionEvent event) {
+        //Passing event to the scale detector first
+        boolean flag = mScaleDetector.onTouchEvent(event);
+        if (!mScaleDetector.isInProgress()) {
+            //If we aren't currently scaling, pass it to the normal gesture detector
+            flag = mGestureDetector.onTouchEvent(event);
+        }
+        return flag;
+    }
+
+    /**
+     * What the gestures need to know about the view they are on.
+     */
+    interface Host {
+        int getHorizontalTileCount();
+        int getVerticalTileCount();
+        boolean isZoomEnabled();
+        float getScale();
+        //Redraws the view at the new scale
+        void setScale(float scale);
+        int getContentWidth();
+        int getContentHeight();
+        //The items stacked on a visible cell, bottom first
+        List<ItemTile> getItemsAt(int x, int y);
+        //Null if nobody wants to hear about item taps
+        GameView.OnItemsClickedListener getOnItemsClickedListener();
+    }
+
+    /**
+     * Class for listening to pinch to zoom. Computes the number of tiles that can be shown,
+     * and hits the callback.
+     */
+    private class ScaleListener implements ScaleGestureDetector.OnScaleGestureListener {
+
+        @Override
+        public boolean onScale(ScaleGestureDetector detector) {
+            //Only the scale of the terrain layer changes. No need to measure again.
+            mHost.setScale(mHost.getScale() * detector.getScaleFactor());
+            return true;
+        }
+
+        @Override
+        public boolean onScaleBegin(ScaleGestureDetector detector) {
+            return true;
+        }
+
+        @Override
+        public void onScaleEnd(ScaleGestureDetector detector) {
+            //Convert scale to new dimensions.
+            //callbacks
+            float scale = mHost.getScale();
+            int adjustedHorizontalTileCount = (int) Math.max((mHost.getHorizontalTileCount() / scale), 1);
+            int adjustVerticalTileCount = (int) Math.max((mHost.getVerticalTileCount() / scale),1);
+            if (mHost.isZoomEnabled() && mCallbacks != null) {
+                for (GameView.GameViewCallbacks callbacks: mCallbacks) {
+                    callbacks.onTileCountChanged(adjustedHorizontalTileCount,
+                            adjustVerticalTileCount);
+                }
+            }
+        }
+    }
+
+    /**
+     * Class that listens to taps, and converts the x,y from the view into tiles x, y of the game view.
+     */
+    private class TapListener implements GestureDetector.OnGestureListener{
+
+        @Override
+        public boolean onDown(MotionEvent e) {
+            return true;
+        }
+
+        @Override
+        public void onShowPress(MotionEvent e) {
+
+        }
+
+        @Override
+        public boolean onSingleTapUp(MotionEvent e) {
+            float x = e.getX();
+            float y = e.getY();
+            int horizontal = mHost.getHorizontalTileCount();
+            int vertical = mHost.getVerticalTileCount();
+            //No need to add one, because we want clicks to be in the scale of the visual tiles
+            int windowWidth = mHost.getContentWidth();
+            int windowHeight = mHost.getContentHeight();
+            int clickedX = (int)(x /  (windowWidth) * horizontal + .5);
+            int clickedY = (int)(y /  (windowHeight) * vertical + .5);
+            if (clickedX > 0
+                    && clickedX <= horizontal
+                    && clickedY > 0
+                    && clickedY <= vertical) {
+                //Hit callbacks so they can interpret
+                if (mCallbacks != null) {
+                    for (GameView.GameViewCallbacks callbacks : mCallbacks) {
+                        callbacks.onTileClicked(clickedX-1, clickedY-1);
+                    }
+                }
+                //Only looks the items up when somebody is listening
+                GameView.OnItemsClickedListener listener = mHost.getOnItemsClickedListener();
+                if (listener != null) {
+                    List<ItemTile> items = mHost.getItemsAt(clickedX-1, clickedY-1);
+                    if (!items.isEmpty()) {
+                        listener.onItemsClicked(clickedX-1, clickedY-1, items);
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+            return true;
+        }
+
+        @Override
+        public void onLongPress(MotionEvent e) {
+
+        }
+
+        @Override
+        public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
+            int degrees = (int) (Math.toDegrees(Math.atan2(velocityY,velocityX))+.5);
+            @GameView.GameViewCallbacks.Direction int direction = GameView.GameViewCallbacks.NORTH;
+            degrees += 180;
+            Log.d(TAG, "onFling: "+degrees);
+            if (degrees >=338 || degrees < 23) {
+                direction = GameView.GameViewCallbacks.WEST;
+            } else if (degrees >=23 && degrees < 68) {
+                direction = GameView.GameViewCallbacks.NORTHWEST;
+            } else if (degrees >= 68 && degrees < 113) {
+                direction = GameView.GameViewCallbacks.NORTH;
+            } else if (degrees >= 113 && degrees < 158) {
+                direction = GameView.GameViewCallbacks.NORTHEAST;
+            } else if (degrees >= 158 && degrees < 203) {
+                direction = GameView.GameViewCallbacks.EAST;
+            } else if (degrees >= 203 && degrees < 248) {
+                direction = GameView.GameViewCallbacks.SOUTHEAST;
+            } else if (degrees >= 248 && degrees < 293) {
+                direction = GameView.GameViewCallbacks.SOUTH;
+            } else if (degrees >= 293 && degrees < 338) {
+                direction = GameView.GameViewCallbacks.SOUTHWEST;
+            }
+            if (mCallbacks != null) {
+                for (GameView.GameViewCallbacks callbacks: mCallbacks) {
+                    callbacks.onSwipe(direction);
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,863 @@
+package com.rizato.gameview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.view.View.MeasureSpec;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Draws the game onto a canvas. This is everything the GameView and the GameSurfaceView have in
+ * common: the terrain layer, the atlas, and the tile lookups.
+ *
+ * Not thread safe. The GameView only touches it from the UI thread, and the GameSurfaceView
+ * only from its render thread.
+ */
+class GameRenderer {
+    private static final String TAG = GameRenderer.class.getSimpleName();
+    private static final int ATLAS_SHEET_SIZE = 1024;
+    private static final int ATLAS_SHEET_BYTES = ATLAS_SHEET_SIZE * ATLAS_SHEET_SIZE * 4;
+    private static final int ATLAS_MAX_SHEETS = 4;
+    //Share of the heap for the bitmaps the renderer makes itself, by default. The pre-scaled
+    //tiles get whatever the atlas & border overlays don't.
+    private static final int MEMORY_FRACTION = 16;
+    //The atlas sheets may take up to half of it
+    private static final int ATLAS_BUDGET_SHARE = 2;
+    //The border overlays up to a quarter
+    private static final int BORDER_BUDGET_SHARE = 4;
+
+    private final int mImageTileSize;
+    //Memory for the scaled tiles, atlas sheets & border overlays together
+    private int mMaxBytes;
+    private int mHorizontalTileCount;
+    private int mVerticalTileCount;
+
+    //Drawn content
+    private int[] mTerrain;
+    //Whether each cell has been seen, when drawing from the world map. Null if they all have.
+    private boolean[] mSeen;
+    private int mTerrainWidth;
+    private int mTerrainHeight;
+    private List<ItemTile> mObjects;
+    //The items by cell, built again when they or the tile counts change
+    private final ItemIndex mItemIndex;
+    private boolean mIsItemIndexDirty = true;
+    private SparseArray<Bitmap> mImageMap;
+    private TileCache mTileCache;
+    //Null if the atlas is off
+    private TileAtlas mAtlas;
+    private int mAtlasReplacements;
+    //Bumped whenever the source bitmaps change, so scaled copies of them are dropped
+    private int mTileGeneration;
+    private int mTileReplacements;
+    private final ScaledTileCache mScaledCache;
+    //The scaled set for this frame, or null to scale while drawing
+    private SparseArray<Bitmap> mScaledTiles;
+    //Tiles drawn scaled last frame, though they had a source bitmap
+    private int mScaledMisses;
+    private final SparseBooleanArray mSeenTiles;
+
+    //Draw help (less allocations
+    private final Paint mBitmapPaint;
+    private final Rect mDest;
+    private final Rect mSource;
+    //Offscreen terrain, and what has to be redrawn in it
+    private Bitmap mTerrainLayer;
+    private final Canvas mTerrainCanvas;
+    private boolean mIsTerrainLayerDirty = true;
+    private int mLayerTileSize;
+    private int mLayerXOffset;
+    private int mLayerYOffset;
+    private int mLayerHorizontalTileCount;
+    private int mLayerVerticalTileCount;
+    private int mDirtyMinX = Integer.MAX_VALUE;
+    private int mDirtyMinY = Integer.MAX_VALUE;
+    private int mDirtyMaxX = Integer.MIN_VALUE;
+    private int mDirtyMaxY = Integer.MIN_VALUE;
+    //Null unless borders are on
+    private BorderCompositor mBorders;
+    //Borders drawn on each grid cell, MAX_BORDERS slots a cell, and how many each has
+    private int[] mCellBorders;
+    private byte[] mCellBorderCounts;
+    private boolean mIsBorderDataDirty = true;
+    //Most tiles any one bitmap has covered
+    private int mMaxTileSpan = 1;
+    //Grid cells that show through the zoom, and the ones the terrain layer has drawn
+    private int mViewMinX;
+    private int mViewMinY;
+    private int mViewMaxX;
+    private int mViewMaxY;
+    private int mValidMinX;
+    private int mValidMinY;
+    private int mValidMaxX;
+    private int mValidMaxY;
+    private final Rect mClip;
+
+    //Stats
+    private int mTilesDrawn;
+    //Terrain cells in the layer drawn without a bitmap. Partial redraws add to it, so it can
+    //count a cell twice until the next full one.
+    private int mLayerMissing;
+    private int mItemsMissing;
+    private int mBitmapSwitches;
+    private Bitmap mLastBitmap;
+
+    GameRenderer(int imageTileSize, int horizontal, int vertical, boolean atlas) {
+        mImageTileSize = imageTileSize;
+        mHorizontalTileCount = horizontal;
+        mVerticalTileCount = vertical;
+        mMaxBytes = (int) Math.min(Integer.MAX_VALUE,
+                Runtime.getRuntime().maxMemory() / MEMORY_FRACTION);
+        if (atlas) {
+            mAtlas = createAtlas();
+        }
+        mBitmapPaint = new Paint();
+        mDest = new Rect();
+        mSource = new Rect();
+        mClip = new Rect();
+        mTerrainCanvas = new Canvas();
+        mScaledCache = new ScaledTileCache(imageTileSize, 0);
+        updateScaledBudget();
+        mSeenTiles = new SparseBooleanArray();
+        mItemIndex = new ItemIndex();
+    }
+
+    /**
+     * Draws all the tiles on screen, according to the dimensions.
+     * Also, draws all the objects onto the screen as well.
+     *
+     * The terrain is drawn into an offscreen layer only when it changes. Every other frame
+     * (zooming, item changes) just draws that one bitmap, and the items on top.
+     */
+    void draw(Canvas canvas, int contentWidth, int contentHeight, float scale) {
+        mTilesDrawn = 0;
+        mItemsMissing = 0;
+        mBitmapSwitches = 0;
+        mLastBitmap = null;
+        if (mTileCache != null) {
+            mTileCache.onFrame();
+            if (mAtlas != null && mTileCache.getReplacementCount() != mAtlasReplacements) {
+                //Some tile changed its bitmap. Packing them again as they get drawn.
+                mAtlasReplacements = mTileCache.getReplacementCount();
+                mAtlas.clear();
+                mIsTerrainLayerDirty = true;
+            }
+            if (mTileCache.getReplacementCount() != mTileReplacements) {
+                mTileReplacements = mTileCache.getReplacementCount();
+                mTileGeneration++;
+            }
+        }
+        //Doing nothing if we don't have the image map, or any terrain to load
+        if ((mImageMap == null && mTileCache == null) || mTerrain == null
+                || contentWidth <= 0 || contentHeight <= 0) {
+            //Draw placeholder images
+            if (FrameStats.isTracingEnabled()) {
+                Log.d(TAG, "onDraw: No map or terrain");
+            }
+            return;
+        }
+        int tileSize = getTileSize(contentWidth, contentHeight);
+        if (tileSize <= 0) {
+            return;
+        }
+        int centerXOffset = getXOffset(contentWidth, tileSize);
+        int centerYOffset = getYOffset(contentHeight, tileSize);
+        updateScaledTiles(tileSize);
+        updateViewport(contentWidth, contentHeight, tileSize, centerXOffset, centerYOffset, scale);
+        updateBorders(tileSize);
+        updateTerrainLayer(contentWidth, contentHeight, tileSize, centerXOffset, centerYOffset);
+
+        canvas.save();
+        //Setting the scale
+        if (scale != 1f) {
+            canvas.scale(scale, scale, (float) contentWidth / 2, (float) contentHeight / 2);
+        }
+        canvas.drawBitmap(mTerrainLayer, 0, 0, mBitmapPaint);
+        countSwitch(canvas, mTerrainLayer);
+        if (mObjects != null && canvas.getClipBounds(mClip)) {
+            ItemIndex index = getItemIndex();
+            //The clip is already in unscaled content coordinates. Only the cells whose bitmaps
+            //can reach it are visited, up & left as far as the widest bitmap hangs.
+            int minX = Math.max(0, (mClip.left - centerXOffset) / tileSize - (mMaxTileSpan - 1));
+            int minY = Math.max(0, (mClip.top - centerYOffset) / tileSize - (mMaxTileSpan - 1));
+            int maxX = Math.min(mHorizontalTileCount - 1,
+                    (mClip.right - 1 - centerXOffset) / tileSize);
+            int maxY = Math.min(mVerticalTileCount - 1,
+                    (mClip.bottom - 1 - centerYOffset) / tileSize);
+            for (int x = minX; x <= maxX; x++) {
+                int start = x * tileSize + centerXOffset;
+                for (int y = minY; y <= maxY; y++) {
+                    int top = y * tileSize + centerYOffset;
+                    for (int i = index.first(x, y); i != ItemIndex.NONE; i = index.next(i)) {
+                        int tile = index.get(i).getTile();
+                        if (!drawTile(canvas, tile, start, top, tileSize)) {
+                            mItemsMissing++;
+                            if (FrameStats.isTracingEnabled()) {
+                                Log.d(TAG, "onDraw: Missing item" + tile);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        canvas.restore();
+    }
+
+    //Largest square tile that fits the tile counts into the content area
+    int getTileSize(int contentWidth, int contentHeight) {
+        int tileWidth = contentWidth / mHorizontalTileCount;
+        int tileHeight = contentHeight / mVerticalTileCount;
+        return tileWidth < tileHeight
+                ? tileWidth
+                : tileHeight;
+    }
+
+    int getXOffset(int contentWidth, int tileSize) {
+        return Math.max((contentWidth - (tileSize * mHorizontalTileCount)) / 2, 0);
+    }
+
+    int getYOffset(int contentHeight, int tileSize) {
+        return Math.max((contentHeight - (tileSize * mVerticalTileCount)) / 2, 0);
+    }
+
+    /**
+     * Picks up the scaled tiles for this size, once they are built. Starts a build if the size
+     * or the bitmaps changed, or tiles were missing from the last set.
+     */
+    private void updateScaledTiles(int tileSize) {
+        if (mScaledCache.needsBuild(tileSize, mTileGeneration, mScaledMisses > 0)) {
+            mScaledCache.build(tileSize, mTileGeneration, collectTiles(), mImageMap, mTileCache);
+        }
+        mScaledMisses = 0;
+        SparseArray<Bitmap> scaled = mScaledCache.get(tileSize, mTileGeneration);
+        if (scaled != mScaledTiles) {
+            mScaledTiles = scaled;
+            if (scaled != null) {
+                //Redrawn 1:1, so the terrain matches the items drawn over it
+                mIsTerrainLayerDirty = true;
+            }
+        }
+    }
+
+    //Every tile id on screen, terrain & items, once each
+    private int[] collectTiles() {
+        mSeenTiles.clear();
+        int[] terrain = mTerrain;
+        int stride = mTerrainHeight;
+        int maxX = Math.min(mHorizontalTileCount, mTerrainWidth - 1);
+        int maxY = Math.min(mVerticalTileCount, stride - 1);
+        for (int x = 1; x <= maxX; x++) {
+            for (int y = 1; y <= maxY; y++) {
+                mSeenTiles.put(TerrainTile.getTile(terrain[x * stride + y]), true);
+            }
+        }
+        if (mObjects != null) {
+            for (ItemTile item : mObjects) {
+                mSeenTiles.put(item.getTile(), true);
+            }
+        }
+        int[] tiles = new int[mSeenTiles.size()];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = mSeenTiles.keyAt(i);
+        }
+        return tiles;
+    }
+
+    /**
+     * Works out which grid cells show through the zoom. Zoomed in, that is a window around the
+     * center. Cells up & left of it are included if their bitmaps can hang into it.
+     */
+    private void updateViewport(int contentWidth, int contentHeight, int tileSize,
+                                int centerXOffset, int centerYOffset, float scale) {
+        int minX = 1;
+        int minY = 1;
+        int maxX = mHorizontalTileCount;
+        int maxY = mVerticalTileCount;
+        if (scale > 1f) {
+            float halfWidth = contentWidth / 2f;
+            float halfHeight = contentHeight / 2f;
+            float left = halfWidth - halfWidth / scale - centerXOffset;
+            float top = halfHeight - halfHeight / scale - centerYOffset;
+            float right = halfWidth + halfWidth / scale - centerXOffset;
+            float bottom = halfHeight + halfHeight / scale - centerYOffset;
+            //Grid cells start at 1, past the ring
+            minX = Math.max(minX, (int) Math.floor(left / tileSize) + 1 - (mMaxTileSpan - 1));
+            minY = Math.max(minY, (int) Math.floor(top / tileSize) + 1 - (mMaxTileSpan - 1));
+            maxX = Math.min(maxX, (int) Math.ceil(right / tileSize));
+            maxY = Math.min(maxY, (int) Math.ceil(bottom / tileSize));
+        }
+        mViewMinX = minX;
+        mViewMinY = minY;
+        mViewMaxX = maxX;
+        mViewMaxY = maxY;
+    }
+
+    /**
+     * Works out the borders of every cell again if the whole terrain changed. Single cells
+     * that change are done in updateTerrain.
+     */
+    private void updateBorders(int tileSize) {
+        if (mBorders == null) {
+            return;
+        }
+        mBorders.prepare(tileSize, mTileGeneration);
+        if (!mIsBorderDataDirty) {
+            return;
+        }
+        int[] terrain = mTerrain;
+        int stride = mTerrainHeight;
+        //The grid can be bigger than the screen in it, when looking around
+        int width = mTerrainWidth;
+        if (mCellBorderCounts == null || mCellBorderCounts.length < terrain.length) {
+            mCellBorderCounts = new byte[terrain.length];
+            mCellBorders = new int[terrain.length * BorderCompositor.MAX_BORDERS];
+        } else {
+            //The ring keeps none
+            Arrays.fill(mCellBorderCounts, (byte) 0);
+        }
+        for (int x = 1; x < width - 1; x++) {
+            for (int y = 1; y < stride - 1; y++) {
+                computeBorders(x, y);
+            }
+        }
+        mIsBorderDataDirty = false;
+    }
+
+    private void computeBorders(int x, int y) {
+        int cell = x * mTerrainHeight + y;
+        mCellBorderCounts[cell] = (byte) mBorders.compute(mTerrain, mSeen, mTerrainHeight, x, y,
+                mCellBorders, cell * BorderCompositor.MAX_BORDERS);
+    }
+
+    /**
+     * Brings the terrain layer up to date. Redraws the visible part of it if the layout changed
+     * or the zoom shows cells it doesn't have, or else just the cells that changed since the
+     * last frame.
+     */
+    private void updateTerrainLayer(int contentWidth, int contentHeight, int tileSize,
+                                    int centerXOffset, int centerYOffset) {
+        if (mTerrainLayer == null
+                || mTerrainLayer.getWidth() != contentWidth
+                || mTerrainLayer.getHeight() != contentHeight) {
+            mTerrainLayer = Bitmap.createBitmap(contentWidth, contentHeight, Bitmap.Config.ARGB_8888);
+            mTerrainCanvas.setBitmap(mTerrainLayer);
+            mIsTerrainLayerDirty = true;
+        }
+        if (tileSize != mLayerTileSize
+                || centerXOffset != mLayerXOffset
+                || centerYOffset != mLayerYOffset
+                || mHorizontalTileCount != mLayerHorizontalTileCount
+                || mVerticalTileCount != mLayerVerticalTileCount) {
+            mLayerTileSize = tileSize;
+            mLayerXOffset = centerXOffset;
+            mLayerYOffset = centerYOffset;
+            mLayerHorizontalTileCount = mHorizontalTileCount;
+            mLayerVerticalTileCount = mVerticalTileCount;
+            mIsTerrainLayerDirty = true;
+        }
+        if (mViewMinX < mValidMinX || mViewMinY < mValidMinY
+                || mViewMaxX > mValidMaxX || mViewMaxY > mValidMaxY) {
+            //Zoomed out past what was drawn
+            mIsTerrainLayerDirty = true;
+        }
+        int minX;
+        int minY;
+        int maxX;
+        int maxY;
+        if (mIsTerrainLayerDirty) {
+            mTerrainLayer.eraseColor(Color.TRANSPARENT);
+            mLayerMissing = 0;
+            minX = mValidMinX = mViewMinX;
+            minY = mValidMinY = mViewMinY;
+            maxX = mValidMaxX = mViewMaxX;
+            maxY = mValidMaxY = mViewMaxY;
+        } else if (mDirtyMinX <= mDirtyMaxX) {
+            //Changed cells are redrawn anywhere the layer has been drawn, not just in view, so
+            //it stays right when zooming back out.
+            minX = mValidMinX;
+            minY = mValidMinY;
+            maxX = mValidMaxX;
+            maxY = mValidMaxY;
+            //Bitmaps bigger than a tile hang off right and down, so cells up & left of the
+            //changed ones can draw into them too.
+            minX = Math.max(minX, mDirtyMinX - mMaxTileSpan + 1);
+            minY = Math.max(minY, mDirtyMinY - mMaxTileSpan + 1);
+            //The cleared area reaches as far right & down as a changed cell's old bitmap did
+            maxX = Math.min(maxX, mDirtyMaxX + mMaxTileSpan - 1);
+            maxY = Math.min(maxY, mDirtyMaxY + mMaxTileSpan - 1);
+            mTerrainCanvas.save();
+            mTerrainCanvas.clipRect((mDirtyMinX - 1) * tileSize + centerXOffset,
+                    (mDirtyMinY - 1) * tileSize + centerYOffset,
+                    (mDirtyMaxX + mMaxTileSpan - 1) * tileSize + centerXOffset,
+                    (mDirtyMaxY + mMaxTileSpan - 1) * tileSize + centerYOffset);
+            mTerrainCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+        } else {
+            //Up to date
+            return;
+        }
+        //Drawing the terrain. The server sends down by column
+        BorderCompositor borders = mBorders;
+        int[] terrain = mTerrain;
+        boolean[] seen = mSeen;
+        int stride = mTerrainHeight;
+        //A grid smaller than the tile counts (mid resize) only draws what it has
+        maxX = Math.min(maxX, mTerrainWidth - 1);
+        maxY = Math.min(maxY, stride - 1);
+        for (int x = minX; x <= maxX; x++) {
+            int i = x * stride + minY;
+            for (int y = minY; y <= maxY; y++, i++) {
+                if (seen != null && !seen[i]) {
+                    //Not seen yet, when looking around the world map
+                    continue;
+                }
+                //Draw terrain at x,y
+                int tile = TerrainTile.getTile(terrain[i]);
+                int top = (y-1) * tileSize + centerYOffset;
+                int left = (x-1) * tileSize + centerXOffset;
+                if (!drawTile(mTerrainCanvas, tile, left, top, tileSize)) {
+                    mLayerMissing++;
+                    if (FrameStats.isTracingEnabled()) {
+                        Log.d(TAG, "onDraw: Missing Tile" + tile);
+                    }
+                }
+                if (borders != null) {
+                    drawBorders(mTerrainCanvas, i, left, top);
+                }
+            }
+        }
+        if (!mIsTerrainLayerDirty) {
+            mTerrainCanvas.restore();
+        }
+        mIsTerrainLayerDirty = false;
+        mDirtyMinX = Integer.MAX_VALUE;
+        mDirtyMinY = Integer.MAX_VALUE;
+        mDirtyMaxX = Integer.MIN_VALUE;
+        mDirtyMaxY = Integer.MIN_VALUE;
+    }
+
+    /**
+     * Draws the borders other tiles spill onto a cell, over its tile. Overlays missing from the
+     * cache are built from the bordering tile's bitmap.
+     */
+    private void drawBorders(Canvas canvas, int cell, int left, int top) {
+        int count = mCellBorderCounts[cell];
+        for (int i = 0; i < count; i++) {
+            int border = mCellBorders[cell * BorderCompositor.MAX_BORDERS + i];
+            Bitmap overlay = mBorders.get(border);
+            if (overlay == null) {
+                overlay = mBorders.build(border, getTileBitmap(border >>> 8));
+                if (overlay == null) {
+                    continue;
+                }
+            }
+            canvas.drawBitmap(overlay, left, top, mBitmapPaint);
+            mTilesDrawn++;
+        }
+    }
+
+    /**
+     * Draws one tile with its top left corner at left, top. Bitmaps bigger than a tile cover
+     * more than one. Uses the atlas if the tile is in it, or can be added to it.
+     *
+     * @return false if we have no bitmap for the tile
+     */
+    private boolean drawTile(Canvas canvas, int tile, int left, int top, int tileSize) {
+        if (mScaledTiles != null) {
+            Bitmap scaled = mScaledTiles.get(tile);
+            if (scaled != null) {
+                mMaxTileSpan = Math.max(mMaxTileSpan,
+                        Math.max(scaled.getWidth(), scaled.getHeight()) / tileSize);
+                canvas.drawBitmap(scaled, left, top, mBitmapPaint);
+                mTilesDrawn++;
+                countSwitch(canvas, scaled);
+                return true;
+            }
+        }
+        Bitmap bmp = null;
+        Rect source = null;
+        if (mAtlas != null) {
+            Bitmap sheet = mAtlas.getSheet(tile, mSource);
+            if (sheet == null) {
+                //First time we've seen this tile. Packing it for next time.
+                bmp = getTileBitmap(tile);
+                if (bmp != null && mAtlas.add(tile, bmp)) {
+                    sheet = mAtlas.getSheet(tile, mSource);
+                }
+            }
+            if (sheet != null) {
+                bmp = sheet;
+                source = mSource;
+            }
+        } else {
+            bmp = getTileBitmap(tile);
+        }
+        if (bmp == null) {
+            return false;
+        }
+        int width = source != null ? source.width() : bmp.getWidth();
+        int height = source != null ? source.height() : bmp.getHeight();
+        int imageWidthInTiles = width / mImageTileSize;
+        int imageHeightInTiles = height / mImageTileSize;
+        mMaxTileSpan = Math.max(mMaxTileSpan, Math.max(imageWidthInTiles, imageHeightInTiles));
+        mDest.set(left,
+                top,
+                (left + imageWidthInTiles * tileSize),
+                (top + imageHeightInTiles * tileSize));
+        canvas.drawBitmap(bmp,
+                source,
+                mDest,
+                mBitmapPaint);
+        mTilesDrawn++;
+        countSwitch(canvas, bmp);
+        if (mScaledTiles != null) {
+            mScaledMisses++;
+        }
+        return true;
+    }
+
+    //Only draws on the view's canvas count. The terrain layer is drawn in software.
+    private void countSwitch(Canvas canvas, Bitmap bitmap) {
+        if (canvas != mTerrainCanvas && bitmap != mLastBitmap) {
+            mLastBitmap = bitmap;
+            mBitmapSwitches++;
+        }
+    }
+
+    /**
+     * Works out the size of a game view from its measure specs. Both views measure the same way,
+     * a whole number of square tiles plus the padding.
+     *
+     * @param out gets the width and then the height
+     */
+    static void measure(int widthMeasureSpec, int heightMeasureSpec, int imageTileSize,
+                        int horizontal, int vertical, int paddingStart, int paddingEnd,
+                        int paddingTop, int paddingBottom, int minWidth, int minHeight, int[] out) {
+        int width = imageTileSize * horizontal;
+        int height = imageTileSize * vertical;
+
+        //Getting details
+        int widthMode = MeasureSpec.getMode(widthMeasureSpec);
+        int widthConstraint = MeasureSpec.getSize(widthMeasureSpec);
+        switch (widthMode) {
+            case MeasureSpec.AT_MOST:
+                //match parent?
+                width = widthConstraint;
+                break;
+            case MeasureSpec.EXACTLY:
+                //given size
+                width = widthConstraint;
+                break;
+            case MeasureSpec.UNSPECIFIED:
+                //wrap_content
+                break;
+        }
+        int tileSize = (width - paddingStart - paddingEnd)/ horizontal;
+        int heightMode = MeasureSpec.getMode(heightMeasureSpec);
+        int heightConstraint = MeasureSpec.getSize(heightMeasureSpec);
+        switch (heightMode) {
+            case MeasureSpec.AT_MOST:
+                //match parent?
+                height = tileSize * vertical + paddingTop + paddingBottom;
+                height = Math.min(height, heightConstraint);
+                break;
+            case MeasureSpec.EXACTLY:
+                //given size
+                height = heightConstraint;
+                break;
+            case MeasureSpec.UNSPECIFIED:
+                //wrap_content
+                height = tileSize * vertical + paddingTop + paddingBottom;
+                break;
+        }
+        int tileSizeByH = (height - paddingTop - paddingBottom)/ vertical;
+        //Experiment
+        int realSize = tileSize < tileSizeByH ? tileSize : tileSizeByH;
+        if (widthMode != MeasureSpec.EXACTLY) {
+            width = realSize * horizontal + paddingStart + paddingEnd;
+            width = width >= minWidth ? width : minWidth;
+        }
+        if (heightMode != MeasureSpec.EXACTLY) {
+            height = realSize * vertical + paddingTop + paddingBottom;
+            height = height >= minHeight ? height: minHeight;
+        }
+        out[0] = width;
+        out[1] = height;
+    }
+
+    void setTileCount(int horizontal, int vertical) {
+        mHorizontalTileCount = horizontal;
+        mVerticalTileCount = vertical;
+    }
+
+    void setTerrain(int[] packed, int width, int height) {
+        setTerrain(packed, null, width, height);
+    }
+
+    /**
+     * @param seen whether each cell has been seen. Cells not seen are left empty.
+     */
+    void setTerrain(int[] packed, boolean[] seen, int width, int height) {
+        mTerrain = packed;
+        mSeen = seen;
+        mTerrainWidth = width;
+        mTerrainHeight = height;
+        mIsTerrainLayerDirty = true;
+        mIsBorderDataDirty = true;
+    }
+
+    /**
+     * Changes single cells of the current terrain, and marks them to be redrawn.
+     *
+     * @return false if there is no terrain to change
+     */
+    boolean updateTerrain(int[] cells, int[] tiles, int count) {
+        if (mTerrain == null) {
+            return false;
+        }
+        //A cell's borders change with its neighbors, so those are redrawn too
+        int reach = mBorders != null ? 1 : 0;
+        for (int i = 0; i < count; i++) {
+            int cell = cells[i];
+            mTerrain[cell] = tiles[i];
+            int x = cell / mTerrainHeight;
+            int y = cell % mTerrainHeight;
+            mDirtyMinX = Math.min(mDirtyMinX, x - reach);
+            mDirtyMinY = Math.min(mDirtyMinY, y - reach);
+            mDirtyMaxX = Math.max(mDirtyMaxX, x + reach);
+            mDirtyMaxY = Math.max(mDirtyMaxY, y + reach);
+        }
+        if (mBorders != null) {
+            updateBorders(cells, count);
+        }
+        return true;
+    }
+
+    /**
+     * Works out the borders again for changed cells and the cells around them.
+     */
+    private void updateBorders(int[] cells, int count) {
+        if (mIsBorderDataDirty || mCellBorderCounts == null) {
+            return;
+        }
+        if (count * 9 >= mTerrainWidth * mTerrainHeight) {
+            //Most of the grid, cheaper to do it all once
+            mIsBorderDataDirty = true;
+            return;
+        }
+        int width = mTerrainWidth;
+        for (int i = 0; i < count; i++) {
+            int x = cells[i] / mTerrainHeight;
+            int y = cells[i] % mTerrainHeight;
+            for (int nx = Math.max(1, x - 1); nx <= Math.min(width - 2, x + 1); nx++) {
+                for (int ny = Math.max(1, y - 1); ny <= Math.min(mTerrainHeight - 2, y + 1); ny++) {
+                    computeBorders(nx, ny);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws the borders between terrain tiles. Off by default.
+     */
+    void setBordersEnabled(boolean enabled) {
+        if (enabled && mBorders == null) {
+            mBorders = new BorderCompositor(mImageTileSize, mMaxBytes / BORDER_BUDGET_SHARE);
+            mIsBorderDataDirty = true;
+        } else if (!enabled) {
+            mBorders = null;
+            mCellBorders = null;
+            mCellBorderCounts = null;
+        }
+        updateScaledBudget();
+        mIsTerrainLayerDirty = true;
+    }
+
+    boolean isBordersEnabled() {
+        return mBorders != null;
+    }
+
+    //Null unless borders are on
+    BorderCompositor getBorders() {
+        return mBorders;
+    }
+
+    void setItems(List<ItemTile> objects) {
+        mObjects = objects;
+        mIsItemIndexDirty = true;
+    }
+
+    //The items by cell, brought up to date first
+    ItemIndex getItemIndex() {
+        if (mIsItemIndexDirty
+                || !mItemIndex.isBuiltFor(mHorizontalTileCount, mVerticalTileCount)) {
+            mItemIndex.build(mObjects, mHorizontalTileCount, mVerticalTileCount);
+            mIsItemIndexDirty = false;
+        }
+        return mItemIndex;
+    }
+
+    void setMapping(SparseArray<Bitmap> map) {
+        mImageMap = map;
+        mTileCache = null;
+        mTileGeneration++;
+        if (mAtlas != null && map != null) {
+            //Packing up front. Tiles that are already packed are skipped.
+            for (int i = 0; i < map.size(); i++) {
+                mAtlas.add(map.keyAt(i), map.valueAt(i));
+            }
+        }
+        mIsTerrainLayerDirty = true;
+    }
+
+    void setTileCache(TileCache cache) {
+        mTileCache = cache;
+        mImageMap = null;
+        mTileGeneration++;
+        mTileReplacements = cache != null ? cache.getReplacementCount() : 0;
+        if (mAtlas != null) {
+            mAtlas.clear();
+            mAtlasReplacements = cache != null ? cache.getReplacementCount() : 0;
+        }
+        mIsTerrainLayerDirty = true;
+    }
+
+    void setAtlasEnabled(boolean enabled) {
+        if (enabled && mAtlas == null) {
+            mAtlas = createAtlas();
+            if (mImageMap != null) {
+                setMapping(mImageMap);
+            }
+        } else if (!enabled) {
+            mAtlas = null;
+        }
+        updateScaledBudget();
+        mIsTerrainLayerDirty = true;
+    }
+
+    //As many sheets as fit in its share of the budget
+    private TileAtlas createAtlas() {
+        return new TileAtlas(ATLAS_SHEET_SIZE, Math.min(ATLAS_MAX_SHEETS,
+                mMaxBytes / ATLAS_BUDGET_SHARE / ATLAS_SHEET_BYTES));
+    }
+
+    /**
+     * Caps the memory for the bitmaps the renderer makes itself: the scaled tiles, the atlas
+     * sheets and the border overlays. The atlas is packed again, and the overlays built again,
+     * if they are on. Scaled tiles pick it up the next time they are built.
+     */
+    void setMaxBytes(int maxBytes) {
+        mMaxBytes = maxBytes;
+        if (mAtlas != null) {
+            setAtlasEnabled(false);
+            setAtlasEnabled(true);
+        }
+        if (mBorders != null) {
+            mBorders = new BorderCompositor(mImageTileSize, mMaxBytes / BORDER_BUDGET_SHARE);
+            mIsBorderDataDirty = true;
+            mIsTerrainLayerDirty = true;
+        }
+        updateScaledBudget();
+    }
+
+    int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    //The scaled tiles get what the others can grow to leaves over
+    private void updateScaledBudget() {
+        int reserved = mAtlas != null ? mAtlas.getMaxByteCount() : 0;
+        reserved += mBorders != null ? mBorders.getMaxByteCount() : 0;
+        mScaledCache.setMaxBytes(Math.max(0, mMaxBytes - reserved));
+    }
+
+    //Bytes in use out of getMaxBytes
+    int getByteCount() {
+        TileAtlas atlas = mAtlas;
+        BorderCompositor borders = mBorders;
+        return mScaledCache.getByteCount() + (atlas != null ? atlas.getByteCount() : 0)
+                + (borders != null ? borders.getByteCount() : 0);
+    }
+
+    boolean isAtlasEnabled() {
+        return mAtlas != null;
+    }
+
+    //Redraws the whole terrain layer on the next frame
+    void notifyTilesChanged() {
+        mIsTerrainLayerDirty = true;
+    }
+
+    boolean hasTiles() {
+        return mImageMap != null || mTileCache != null;
+    }
+
+    //Looks up a bitmap in whichever of the cache or the mapping we were given
+    Bitmap getTileBitmap(int tile) {
+        if (mTileCache != null) {
+            return mTileCache.get(tile);
+        }
+        return mImageMap.get(tile);
+    }
+
+    /**
+     * Called on a background thread when scaled tiles are ready to draw
+     */
+    void setOnScaledTilesReady(Runnable onReady) {
+        mScaledCache.setOnReady(onReady);
+    }
+
+    ScaledTileCache getScaledCache() {
+        return mScaledCache;
+    }
+
+    //Terrain & item bitmaps drawn by the last draw call
+    int getTilesDrawn() {
+        return mTilesDrawn;
+    }
+
+    //Terrain & items on screen after the last draw call that had no bitmap to draw
+    int getTilesMissing() {
+        return mLayerMissing + mItemsMissing;
+    }
+
+    //Changes of bitmap between draws on the view's canvas in the last draw call
+    int getBitmapSwitches() {
+        return mBitmapSwitches;
+    }
+
+    int getImageTileSize() {
+        return mImageTileSize;
+    }
+
+    int[] getTerrain() {
+        return mTerrain;
+    }
+
+    int getTerrainWidth() {
+        return mTerrainWidth;
+    }
+
+    int getTerrainHeight() {
+        return mTerrainHeight;
+    }
+
+    List<ItemTile> getItems() {
+        return mObjects;
+    }
+
+    SparseArray<Bitmap> getMapping() {
+        return mImageMap;
+    }
+
+    TileCache getTileCache() {
+        return mTileCache;
+    }
+}
@@ -0,0 +1,788 @@
+package com.rizato.gameview;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.os.Build;
+import android.os.Process;
+import android.util.AttributeSet;
+import android.util.SparseArray;
+import android.view.MotionEvent;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The same as the {@link GameView}, but drawn on its own thread into a surface. A busy UI thread
+ * (chat scrolling, layout) doesn't hold up drawing the map.
+ *
+ * The setters can be called from the UI thread the same as on the GameView. They only hand
+ * their values over to the render thread, which applies them right before it draws the next
+ * frame. Frames are only drawn when something changed.
+ *
+ * Terrain grids and item lists passed in belong to the view afterwards. The render thread
+ * changes the terrain grid in place when cells are updated.
+ */
+@SuppressWarnings("unused")
+public class GameSurfaceView extends SurfaceView implements SurfaceHolder.Callback,
+        GameGestures.Host {
+    private static final String TAG = GameSurfaceView.class.getSimpleName();
+    //Attributes
+    private volatile int mVerticalTileCount;
+    private volatile int mHorizontalTileCount;
+    private int mImageTileSize;
+    private volatile boolean mIsZoomEnabled;
+    private volatile float mScale = 1f;
+    private volatile int mBackgroundColor = Color.BLACK;
+
+    //What was last handed to the render thread, for the getters
+    private int[] mTerrain;
+    private int mTerrainWidth;
+    private int mTerrainHeight;
+    private List<ItemTile> mObjects;
+    //The items by cell, for taps
+    private final ItemIndex mTapIndex = new ItemIndex();
+    private boolean mIsTapIndexDirty = true;
+    private SparseArray<Bitmap> mImageMap;
+    private TileCache mTileCache;
+    private boolean mIsAtlasEnabled;
+    private boolean mIsBordersEnabled;
+
+    //Only used from the render thread
+    private GameRenderer mRenderer;
+    private RenderThread mRenderThread;
+
+    //Waiting for the render thread. Guarded by mLock.
+    private final Object mLock = new Object();
+    private boolean mFrameRequested;
+    private boolean mHasPendingTerrain;
+    private int[] mPendingTerrain;
+    private int mPendingTerrainWidth;
+    private int mPendingTerrainHeight;
+    private int[] mPendingCells;
+    private int[] mPendingTiles;
+    private int mPendingCount;
+    private boolean mHasPendingItems;
+    private List<ItemTile> mPendingItems;
+    private boolean mHasPendingTiles;
+    private SparseArray<Bitmap> mPendingMapping;
+    private TileCache mPendingCache;
+    private int mPendingMaxBytes;
+    private boolean mHasPendingAtlas;
+    private boolean mPendingAtlas;
+    private boolean mHasPendingBorders;
+    private boolean mPendingBorders;
+    private boolean mPendingTilesChanged;
+    private int mPendingHorizontal;
+    private int mPendingVertical;
+    private int mContentWidth;
+    private int mContentHeight;
+
+    private Integer mPaddingStart = null;
+    private Integer mPaddingEnd = null;
+    private Integer mPaddingTop = null;
+    private Integer mPaddingBottom = null;
+    private int[] mMeasured;
+    private GameGestures mGestures;
+
+    //Listeners
+    private List<GameView.GameViewCallbacks> mCallbacks;
+    private GameView.OnItemsClickedListener mOnItemsClickedListener;
+
+    //Stats
+    private int mLastChangedCellCount;
+    private long mTotalChangedCellCount;
+    private volatile FrameStats mFrameStats;
+    //Null unless the overlay is on. Drawn from the render thread.
+    private volatile FrameStatsOverlay mOverlay;
+
+    public GameSurfaceView(Context context) {
+        super(context);
+        prep(context);
+        init(null, 0);
+    }
+
+    public GameSurfaceView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        prep(context);
+        init(attrs, 0);
+    }
+
+    public GameSurfaceView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        prep(context);
+        init(attrs, defStyle);
+    }
+
+    /**
+     * Creating callback list.
+     * Setting up gesture detectors.
+     * Loading default settings
+     */
+    private void prep(Context context) {
+        mCallbacks = new ArrayList<>();
+        mGestures = new GameGestures(context, this, mCallbacks);
+        mVerticalTileCount = context.getResources()
+                .getInteger(R.integer.game_view_default_tile_count);
+        mHorizontalTileCount = context.getResources()
+                .getInteger(R.integer.game_view_default_tile_count);
+        mImageTileSize = context.getResources().getInteger(R.integer.gave_view_default_tile_size);
+        mIsZoomEnabled = context.getResources()
+                .getBoolean(R.bool.default_zoom);
+        getHolder().addCallback(this);
+    }
+
+    /**
+     * Loads data from the TypedArray. Uses the same styles as the GameView.
+     */
+    private void init(AttributeSet attrs, int defStyle) {
+        final TypedArray a = getContext().obtainStyledAttributes(
+                attrs, R.styleable.GameView, defStyle, 0);
+
+        mVerticalTileCount = a.getInt(R.styleable.GameView_verticalTiles,
+                mVerticalTileCount);
+        mHorizontalTileCount = a.getInt(R.styleable.GameView_horizontalTiles,
+                mHorizontalTileCount);
+        mImageTileSize = a.getInt(R.styleable.GameView_imageTileSize,
+                mImageTileSize);
+        mIsZoomEnabled = a.getBoolean(R.styleable.GameView_zoomEnabled,
+                mIsZoomEnabled);
+        mIsAtlasEnabled = a.getBoolean(R.styleable.GameView_atlasEnabled,
+                getResources().getBoolean(R.bool.default_atlas));
+        boolean overlay = a.getBoolean(R.styleable.GameView_overlayEnabled,
+                getResources().getBoolean(R.bool.default_overlay));
+        mIsBordersEnabled = a.getBoolean(R.styleable.GameView_bordersEnabled,
+                getResources().getBoolean(R.bool.default_borders));
+
+        //release the typed array back to the system
+        a.recycle();
+
+        setOverlayEnabled(overlay);
+
+        mRenderer = new GameRenderer(mImageTileSize, mHorizontalTileCount, mVerticalTileCount,
+                mIsAtlasEnabled);
+        mRenderer.setBordersEnabled(mIsBordersEnabled);
+        mRenderer.setOnScaledTilesReady(new Runnable() {
+            @Override
+            public void run() {
+                requestFrame();
+            }
+        });
+        mPendingHorizontal = mHorizontalTileCount;
+        mPendingVertical = mVerticalTileCount;
+        mPendingCells = new int[64];
+        mPendingTiles = new int[64];
+        mMeasured = new int[2];
+    }
+
+    /**
+     * Grabs the padding and stores it in a member variable
+     */
+    private void loadPadding() {
+        if (mPaddingStart == null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+                mPaddingStart = getPaddingStart();
+            } else {
+                mPaddingStart = getPaddingLeft();
+            }
+        }
+        if (mPaddingEnd == null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+                mPaddingEnd = getPaddingEnd();
+            } else {
+                mPaddingEnd = getPaddingRight();
+            }
+        }
+        if (mPaddingBottom == null) {
+            mPaddingBottom = getPaddingBottom();
+        }
+        if (mPaddingTop == null) {
+            mPaddingTop = getPaddingTop();
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        return mGestures.onTouchEvent(event);
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        loadPadding();
+        GameRenderer.measure(widthMeasureSpec, heightMeasureSpec, mImageTileSize,
+                mHorizontalTileCount, mVerticalTileCount, mPaddingStart, mPaddingEnd,
+                mPaddingTop, mPaddingBottom, getSuggestedMinimumWidth(),
+                getSuggestedMinimumHeight(), mMeasured);
+        setMeasuredDimension(mMeasured[0], mMeasured[1]);
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        mRenderThread = new RenderThread(holder);
+        mRenderThread.start();
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        loadPadding();
+        synchronized (mLock) {
+            mContentWidth = width - mPaddingStart - mPaddingEnd;
+            mContentHeight = height - mPaddingTop - mPaddingBottom;
+            //A new surface has nothing on it
+            mPendingTilesChanged = true;
+            requestFrameLocked();
+        }
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        //The surface goes away once we return, so the render thread has to be done with it
+        RenderThread thread = mRenderThread;
+        mRenderThread = null;
+        if (thread != null) {
+            thread.quit();
+        }
+    }
+
+    //Wakes the render thread. Hold mLock.
+    private void requestFrameLocked() {
+        mFrameRequested = true;
+        mLock.notifyAll();
+    }
+
+    private void requestFrame() {
+        synchronized (mLock) {
+            requestFrameLocked();
+        }
+    }
+
+    /**
+     * Redraws the terrain on the next frame. Call this when bitmaps for tiles already on screen
+     * have changed, like when more tiles finish loading into the TileCache.
+     */
+    public void notifyTilesChanged() {
+        synchronized (mLock) {
+            mPendingTilesChanged = true;
+            requestFrameLocked();
+        }
+    }
+
+    public void setVerticalTileCount(int count) {
+        setTileCount(mHorizontalTileCount, count);
+    }
+
+    public void setHorizontalTileCount(int count) {
+        setTileCount(count, mVerticalTileCount);
+    }
+
+    public void setTileCount(int horizontal, int vertical) {
+        if (mHorizontalTileCount != horizontal || mVerticalTileCount != vertical) {
+            mHorizontalTileCount = horizontal;
+            mVerticalTileCount = vertical;
+            mScale = 1;
+        }
+        synchronized (mLock) {
+            mPendingHorizontal = mHorizontalTileCount;
+            mPendingVertical = mVerticalTileCount;
+            requestFrameLocked();
+        }
+        requestLayout();
+    }
+
+    public void setIsZoomEnabled(boolean zoom) {
+        mIsZoomEnabled = zoom;
+        requestFrame();
+        requestLayout();
+    }
+
+    /**
+     * Kept for callers with a list. The list has to be the whole grid, ring included, at the
+     * current tile counts.
+     */
+    public void setTerrain(List<TerrainTile> tiles) {
+        int height = mVerticalTileCount + 2;
+        setTerrain(GameView.toPacked(tiles), tiles.size() / height, height);
+    }
+
+    /**
+     * Sets the terrain from packed ints. See {@link GameView#setTerrain(int[], int, int)}.
+     */
+    public void setTerrain(int[] packed, int width, int height) {
+        mTerrain = packed;
+        mTerrainWidth = width;
+        mTerrainHeight = height;
+        synchronized (mLock) {
+            mHasPendingTerrain = true;
+            mPendingTerrain = packed;
+            mPendingTerrainWidth = width;
+            mPendingTerrainHeight = height;
+            //Changes to the old grid don't matter anymore
+            mPendingCount = 0;
+            requestFrameLocked();
+        }
+    }
+
+    /**
+     * Changes single cells of the current terrain. The arrays are copied, so they can be reused
+     * by the caller.
+     *
+     * @param cells indexes into the grid that changed
+     * @param tiles the new packed value of each of those cells
+     * @param count how many entries of the arrays to use
+     */
+    public void updateTerrain(int[] cells, int[] tiles, int count) {
+        mLastChangedCellCount = count;
+        mTotalChangedCellCount += count;
+        synchronized (mLock) {
+            int needed = mPendingCount + count;
+            if (needed > mPendingCells.length) {
+                int capacity = Integer.highestOneBit(needed - 1) << 1;
+                int[] grownCells = new int[capacity];
+                int[] grownTiles = new int[capacity];
+                System.arraycopy(mPendingCells, 0, grownCells, 0, mPendingCount);
+                System.arraycopy(mPendingTiles, 0, grownTiles, 0, mPendingCount);
+                mPendingCells = grownCells;
+                mPendingTiles = grownTiles;
+            }
+            System.arraycopy(cells, 0, mPendingCells, mPendingCount, count);
+            System.arraycopy(tiles, 0, mPendingTiles, mPendingCount, count);
+            mPendingCount = needed;
+            requestFrameLocked();
+        }
+    }
+
+    public void setItems(List<ItemTile> objects) {
+        mObjects = objects;
+        mIsTapIndexDirty = true;
+        synchronized (mLock) {
+            mHasPendingItems = true;
+            mPendingItems = objects;
+            requestFrameLocked();
+        }
+    }
+
+    public void setMapping(SparseArray<Bitmap> map) {
+        mImageMap = map;
+        mTileCache = null;
+        synchronized (mLock) {
+            mHasPendingTiles = true;
+            mPendingMapping = map;
+            mPendingCache = null;
+            requestFrameLocked();
+        }
+        requestLayout();
+    }
+
+    /**
+     * Draws bitmaps from the cache instead of a mapping. Tiles missing from the cache are
+     * decoded on the render thread.
+     */
+    public void setTileCache(TileCache cache) {
+        mTileCache = cache;
+        mImageMap = null;
+        synchronized (mLock) {
+            mHasPendingTiles = true;
+            mPendingMapping = null;
+            mPendingCache = cache;
+            requestFrameLocked();
+        }
+    }
+
+    public void setAtlasEnabled(boolean enabled) {
+        mIsAtlasEnabled = enabled;
+        synchronized (mLock) {
+            mHasPendingAtlas = true;
+            mPendingAtlas = enabled;
+            requestFrameLocked();
+        }
+    }
+
+    public boolean isAtlasEnabled() {
+        return mIsAtlasEnabled;
+    }
+
+    public void setBordersEnabled(boolean enabled) {
+        mIsBordersEnabled = enabled;
+        synchronized (mLock) {
+            mHasPendingBorders = true;
+            mPendingBorders = enabled;
+            requestFrameLocked();
+        }
+    }
+
+    public boolean isBordersEnabled() {
+        return mIsBordersEnabled;
+    }
+
+    public TileCache getTileCache() {
+        return mTileCache;
+    }
+
+    /**
+     * Records the draw time and tiles drawn of every frame into the stats, from the render
+     * thread. Null to stop recording.
+     */
+    public void setFrameStats(FrameStats stats) {
+        mFrameStats = stats;
+        requestFrame();
+    }
+
+    public FrameStats getFrameStats() {
+        return mFrameStats;
+    }
+
+    /**
+     * Shows the percentiles of the frame stats over the top left corner. Makes a FrameStats if
+     * the view doesn't have one yet. It only changes when a frame is drawn.
+     */
+    public void setOverlayEnabled(boolean enabled) {
+        if (enabled && mOverlay == null) {
+            if (mFrameStats == null) {
+                mFrameStats = new FrameStats();
+            }
+            mOverlay = new FrameStatsOverlay(getResources().getDisplayMetrics().density);
+        } else if (!enabled) {
+            mOverlay = null;
+        }
+        requestFrame();
+    }
+
+    public boolean isOverlayEnabled() {
+        return mOverlay != null;
+    }
+
+    /**
+     * Caps the memory for the bitmaps the view makes itself: tiles kept scaled to the current
+     * tile size, the atlas sheets and the border overlays. Tiles past it are scaled as they are drawn. Scaled tiles
+     * take effect the next time the tile size or the tiles change.
+     */
+    public void setMemoryMaxBytes(int maxBytes) {
+        synchronized (mLock) {
+            mPendingMaxBytes = maxBytes;
+            requestFrameLocked();
+        }
+    }
+
+    /**
+     * Bytes used by the bitmaps under setMemoryMaxBytes. Read from the render thread's side
+     * without a lock, so it can lag a frame behind.
+     */
+    public int getMemoryByteCount() {
+        return mRenderer.getByteCount();
+    }
+
+    //Bytes used by the scaled tiles
+    public int getScaledCacheByteCount() {
+        return mRenderer.getScaledCache().getByteCount();
+    }
+
+    //How long the last rebuild of the scaled tiles took
+    public long getScaledCacheBuildNanos() {
+        return mRenderer.getScaledCache().getLastBuildNanos();
+    }
+
+    public int getScaledCacheBuildCount() {
+        return mRenderer.getScaledCache().getBuildCount();
+    }
+
+    public void setAll(List<TerrainTile> terrain, List<ItemTile> items, int horizontal, int vertical) {
+        setAll(GameView.toPacked(terrain), items, horizontal, vertical);
+    }
+
+    /**
+     * Sets everything at once. The terrain grid is (horizontal + 2) by (vertical + 2), packed the
+     * same as {@link #setTerrain(int[], int, int)}.
+     */
+    public void setAll(int[] terrain, List<ItemTile> items, int horizontal, int vertical) {
+        boolean resized = mHorizontalTileCount != horizontal || mVerticalTileCount != vertical;
+        mTerrain = terrain;
+        mTerrainWidth = horizontal + 2;
+        mTerrainHeight = vertical + 2;
+        mObjects = items;
+        mIsTapIndexDirty = true;
+        if (resized) {
+            mHorizontalTileCount = horizontal;
+            mVerticalTileCount = vertical;
+            mScale = 1;
+        }
+        //One handoff, so the render thread never sees the new grid with the old counts
+        synchronized (mLock) {
+            mHasPendingTerrain = true;
+            mPendingTerrain = terrain;
+            mPendingTerrainWidth = horizontal + 2;
+            mPendingTerrainHeight = vertical + 2;
+            mPendingCount = 0;
+            mHasPendingItems = true;
+            mPendingItems = items;
+            mPendingHorizontal = horizontal;
+            mPendingVertical = vertical;
+            requestFrameLocked();
+        }
+        if (resized) {
+            //Only a change in tile counts can change our size
+            requestLayout();
+        }
+    }
+
+    /**
+     * Sets the color drawn behind the tiles. The surface isn't drawn by the view system, so the
+     * view background doesn't show through.
+     */
+    public void setSurfaceBackgroundColor(int color) {
+        mBackgroundColor = color;
+        requestFrame();
+    }
+
+    @Override
+    public int getVerticalTileCount() {
+        return mVerticalTileCount;
+    }
+
+    @Override
+    public int getHorizontalTileCount() {
+        return mHorizontalTileCount;
+    }
+
+    @Override
+    public boolean isZoomEnabled() {
+        return mIsZoomEnabled;
+    }
+
+    @Override
+    public float getScale() {
+        return mScale;
+    }
+
+    @Override
+    public void setScale(float scale) {
+        mScale = scale;
+        requestFrame();
+    }
+
+    //Width inside the padding
+    @Override
+    public int getContentWidth() {
+        loadPadding();
+        return getWidth() - mPaddingStart - mPaddingEnd;
+    }
+
+    //Height inside the padding
+    @Override
+    public int getContentHeight() {
+        loadPadding();
+        return getHeight() - mPaddingTop - mPaddingBottom;
+    }
+
+    public List<ItemTile> getObjects() {
+        return mObjects;
+    }
+
+    /**
+     * The items stacked on a visible cell, bottom first. The renderer's index belongs to the
+     * render thread, so this one is built on the UI thread the first time it is asked after
+     * the items change.
+     */
+    @Override
+    public List<ItemTile> getItemsAt(int x, int y) {
+        if (mIsTapIndexDirty
+                || !mTapIndex.isBuiltFor(mHorizontalTileCount, mVerticalTileCount)) {
+            mTapIndex.build(mObjects, mHorizontalTileCount, mVerticalTileCount);
+            mIsTapIndexDirty = false;
+        }
+        return mTapIndex.getItems(x, y);
+    }
+
+    /**
+     * Builds a list from the packed grid.
+     */
+    public List<TerrainTile> getTerrain() {
+        return GameView.toList(getTerrainGrid());
+    }
+
+    /**
+     * A copy of the grid last handed to the view, with the cell updates the render thread has
+     * applied so far. The render thread owns the grid itself, so unlike the GameView this
+     * allocates.
+     */
+    public int[] getTerrainGrid() {
+        synchronized (mLock) {
+            return mTerrain != null ? mTerrain.clone() : null;
+        }
+    }
+
+    public int getTerrainWidth() {
+        return mTerrainWidth;
+    }
+
+    public int getTerrainHeight() {
+        return mTerrainHeight;
+    }
+
+    public SparseArray<Bitmap> getMapping() {
+        return mImageMap;
+    }
+
+    //Cells changed by the last updateTerrain call
+    public int getLastChangedCellCount() {
+        return mLastChangedCellCount;
+    }
+
+    //Cells changed by all updateTerrain calls
+    public long getTotalChangedCellCount() {
+        return mTotalChangedCellCount;
+    }
+
+    public void addGameViewCallbacks(GameView.GameViewCallbacks listener) {
+        mCallbacks.add(listener);
+    }
+
+    public void removeGameViewCallbacks(GameView.GameViewCallbacks listener){
+        mCallbacks.remove(listener);
+    }
+
+    //Null to stop listening
+    public void setOnItemsClickedListener(GameView.OnItemsClickedListener listener) {
+        mOnItemsClickedListener = listener;
+    }
+
+    @Override
+    public GameView.OnItemsClickedListener getOnItemsClickedListener() {
+        return mOnItemsClickedListener;
+    }
+
+    /**
+     * Waits for something to change, takes the handed over state, and draws a frame. Posting
+     * the canvas blocks until the display can take it, which paces the frames.
+     */
+    private class RenderThread extends Thread {
+        private final SurfaceHolder mHolder;
+        private boolean mQuit;
+
+        RenderThread(SurfaceHolder holder) {
+            super(TAG);
+            mHolder = holder;
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+            while (true) {
+                int contentWidth;
+                int contentHeight;
+                boolean hasTiles;
+                SparseArray<Bitmap> mapping;
+                TileCache cache;
+                synchronized (mLock) {
+                    while (!mQuit && !mFrameRequested) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                            return;
+                        }
+                    }
+                    if (mQuit) {
+                        return;
+                    }
+                    mFrameRequested = false;
+                    contentWidth = mContentWidth;
+                    contentHeight = mContentHeight;
+                    applyPendingLocked();
+                    //Packing the atlas can take a while, so that happens after letting go
+                    hasTiles = mHasPendingTiles;
+                    mapping = mPendingMapping;
+                    cache = mPendingCache;
+                    mHasPendingTiles = false;
+                    mPendingMapping = null;
+                    mPendingCache = null;
+                }
+                if (hasTiles) {
+                    if (cache != null) {
+                        mRenderer.setTileCache(cache);
+                    } else {
+                        mRenderer.setMapping(mapping);
+                    }
+                }
+                Canvas canvas = mHolder.lockCanvas();
+                if (canvas == null) {
+                    //Surface isn't ready. surfaceChanged asks for another frame.
+                    continue;
+                }
+                try {
+                    canvas.drawColor(mBackgroundColor);
+                    FrameStats.beginSection("GameSurfaceView#draw");
+                    long start = System.nanoTime();
+                    mRenderer.draw(canvas, contentWidth, contentHeight,
+                            mIsZoomEnabled ? mScale : 1f);
+                    long elapsed = System.nanoTime() - start;
+                    FrameStats.endSection();
+                    FrameStats stats = mFrameStats;
+                    if (stats != null) {
+                        stats.record(FrameStats.DRAW_TIME, elapsed);
+                        stats.record(FrameStats.TILES_DRAWN, mRenderer.getTilesDrawn());
+                        stats.record(FrameStats.TILES_MISSING, mRenderer.getTilesMissing());
+                        stats.record(FrameStats.BITMAP_SWITCHES, mRenderer.getBitmapSwitches());
+                        FrameStatsOverlay overlay = mOverlay;
+                        if (overlay != null) {
+                            overlay.draw(canvas, stats, 0, 0);
+                        }
+                    }
+                } finally {
+                    mHolder.unlockCanvasAndPost(canvas);
+                }
+            }
+        }
+
+        //Moves everything handed over into the renderer. Hold mLock.
+        private void applyPendingLocked() {
+            mRenderer.setTileCount(mPendingHorizontal, mPendingVertical);
+            if (mPendingMaxBytes > 0) {
+                mRenderer.setMaxBytes(mPendingMaxBytes);
+                mPendingMaxBytes = 0;
+            }
+            if (mHasPendingAtlas) {
+                mRenderer.setAtlasEnabled(mPendingAtlas);
+                mHasPendingAtlas = false;
+            }
+            if (mHasPendingBorders) {
+                mRenderer.setBordersEnabled(mPendingBorders);
+                mHasPendingBorders = false;
+            }
+            if (mHasPendingTerrain) {
+                mRenderer.setTerrain(mPendingTerrain, mPendingTerrainWidth, mPendingTerrainHeight);
+                mHasPendingTerrain = false;
+                mPendingTerrain = null;
+            }
+            if (mPendingCount > 0) {
+                mRenderer.updateTerrain(mPendingCells, mPendingTiles, mPendingCount);
+                mPendingCount = 0;
+            }
+            if (mHasPendingItems) {
+                mRenderer.setItems(mPendingItems);
+                mHasPendingItems = false;
+                mPendingItems = null;
+            }
+            if (mPendingTilesChanged) {
+                mRenderer.notifyTilesChanged();
+                mPendingTilesChanged = false;
+            }
+        }
+
+        //Stops the thread, and waits for it to let go of the surface
+        void quit() {
+            synchronized (mLock) {
+                mQuit = true;
+                mLock.notifyAll();
+            }
+            try {
+                join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -4,16 +4,15 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Paint;
 import android.graphics.Rect;
+import android.graphics.RectF;
 import android.os.Build;
+import android.os.SystemClock;
 import android.support.annotation.IntDef;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.util.SparseArray;
-import android.view.GestureDetector;
 import android.view.MotionEvent;
-import android.view.ScaleGestureDetector;
 import android.view.View;
 
 import java.util.ArrayList;
@@ -25,26 +24,32 @@ import java.util.List;
  * supposed to be on the grid.
  *
  * The gameview expects that there will be an extra making a ring around the viewable area.
- * This is for bordering, if I ever get that far.
+ * This is for bordering, so the tiles at the edge know what is next to them.
+ *
+ * Terrain is kept as a grid of packed ints, in the same layout the server sends (see
+ * {@link TerrainTile}). The grid is stored column by column, ring included.
+ *
+ * Drawing happens on the UI thread. See {@link GameSurfaceView} for the same view drawn from
+ * its own thread.
  *
  * Future ideas
  *  System announcements get drawn over the center of the screen
- *
- *  TODO Borders
  */
 @SuppressWarnings("unused")
-public class GameView extends View {
+public class GameView extends View implements GameGestures.Host {
     private static final String TAG = GameView.class.getSimpleName();
+    //How long a predicted move waits for a screen that shows it
+    public static final long PREDICTION_TIMEOUT_MS = 1000;
+    //Predicted moves waiting at once, each way
+    private static final int MAX_PREDICTED_MOVES = 3;
     //Attributes
     private volatile int mVerticalTileCount;
     private volatile int mHorizontalTileCount;
     private int mImageTileSize;
     private boolean mIsZoomEnabled;
 
-    //Drawn content
-    private List<TerrainTile> mTerrain;
-    private List<ItemTile> mObjects;
-    private SparseArray<Bitmap> mImageMap;
+    //Does the drawing, and holds what gets drawn
+    private GameRenderer mRenderer;
 
     //Draw help (less allocations
     private Integer mPaddingStart = null;
@@ -52,13 +57,49 @@ public class GameView extends View {
     private Integer mPaddingTop = null;
     private Integer mPaddingBottom = null;
     private float mScale = 1f;
-    private Paint mBitmapPaint;
-    private Rect mDest;
-    private GestureDetector mGestureDetector;
-    private ScaleGestureDetector mScaleDetector;
+    private RectF mDirty;
+    private int[] mMeasured;
+    private GameGestures mGestures;
 
     //Listeners
     private List<GameViewCallbacks> mCallbacks;
+    private OnItemsClickedListener mOnItemsClickedListener;
+
+    //Stats
+    private int mLastChangedCellCount;
+    private long mTotalChangedCellCount;
+    private int mPredictionCount;
+    private int mConfirmedCount;
+    private int mMispredictionCount;
+    private int mLastCorrection;
+    private long mTotalCorrection;
+    private FrameStats mFrameStats;
+    //Null unless the overlay is on
+    private FrameStatsOverlay mOverlay;
+
+    //Terrain seen so far, null unless the world map is on
+    private WorldMap mWorldMap;
+    //Showing part of the world map instead of the live screen
+    private boolean mIsLooking;
+    private int mLookColumns;
+    private int mLookRows;
+    private int mLookMargin;
+    private int[] mLookGrid;
+    private boolean[] mLookSeen;
+    //The live screen, kept here while the renderer draws the look
+    private int[] mLiveTerrain;
+    private int mLiveWidth;
+    private int mLiveHeight;
+    private List<ItemTile> mLiveItems;
+    private ItemIndex mLiveItemIndex;
+    //Moves shown before the server confirms them, in tiles
+    private boolean mIsPredictionEnabled;
+    private int mPredictedX;
+    private int mPredictedY;
+    private long mPredictedAt;
+    private int mPendingMoves;
+    //Rolls the prediction back if no screen confirms it in time
+    private Runnable mPredictionTimeout;
 
 
     public GameView(Context context) {
@@ -86,8 +127,7 @@ public class GameView extends View {
      */
     private void prep(Context context) {
         mCallbacks = new ArrayList<>();
-        mScaleDetector = new ScaleGestureDetector(context, new ScaleListener());
-        mGestureDetector = new GestureDetector(context,new TapListener() );
+        mGestures = new GameGestures(context, this, mCallbacks);
         mVerticalTileCount = context.getResources()
                 .getInteger(R.integer.game_view_default_tile_count);
         mHorizontalTileCount = context.getResources()
@@ -113,12 +153,47 @@ public class GameView extends View {
                 mImageTileSize);
         mIsZoomEnabled = a.getBoolean(R.styleable.GameView_zoomEnabled,
                 mIsZoomEnabled);
+        boolean atlas = a.getBoolean(R.styleable.GameView_atlasEnabled,
+                getResources().getBoolean(R.bool.default_atlas));
+        boolean overlay = a.getBoolean(R.styleable.GameView_overlayEnabled,
+                getResources().getBoolean(R.bool.default_overlay));
+        boolean worldMap = a.getBoolean(R.styleable.GameView_worldMapEnabled,
+                getResources().getBoolean(R.bool.default_world_map));
+        boolean prediction = a.getBoolean(R.styleable.GameView_predictionEnabled,
+                getResources().getBoolean(R.bool.default_prediction));
+        boolean borders = a.getBoolean(R.styleable.GameView_bordersEnabled,
+                getResources().getBoolean(R.bool.default_borders));
 
         //release the typed array back to the system
         a.recycle();
 
-        mBitmapPaint = new Paint();
-        mDest = new Rect();
+        setOverlayEnabled(overlay);
+        if (worldMap || prediction) {
+            mWorldMap = new WorldMap();
+        }
+        mIsPredictionEnabled = prediction;
+
+        mRenderer = new GameRenderer(mImageTileSize, mHorizontalTileCount, mVerticalTileCount, atlas);
+        mRenderer.setBordersEnabled(borders);
+        mRenderer.setOnScaledTilesReady(new Runnable() {
+            @Override
+            public void run() {
+                postInvalidate();
+            }
+        });
+        mPredictionTimeout = new Runnable() {
+            @Override
+            public void run() {
+                //Walked into a wall. The server doesn't send a screen when nothing changed.
+                if (mPredictedX != 0 || mPredictedY != 0) {
+                    mispredicted(Math.max(Math.abs(mPredictedX), Math.abs(mPredictedY)));
+                    clearPrediction();
+                    updateLook();
+                }
+            }
+        };
+        mDirty = new RectF();
+        mMeasured = new int[2];
     }
 
     /**
@@ -149,13 +224,7 @@ public class GameView extends View {
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
-        //Passing event to the scale detector first
-        boolean flag = mScaleDetector.onTouchEvent(event);
-        if (!mScaleDetector.isInProgress()) {
-            //If we aren't currently scaling, pass it to the normal gesture detector
-            flag = mGestureDetector.onTouchEvent(event);
-        }
-        return flag;
+        return mGestures.onTouchEvent(event);
     }
 
     /**
@@ -165,137 +234,45 @@ public class GameView extends View {
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        //Making sure we have padding
-        loadPadding();
-        //Getting the allowable height and width
-        int contentWidth = getWidth() - mPaddingStart - mPaddingEnd;
-        int contentHeight = getHeight() - mPaddingTop - mPaddingBottom;
-        canvas.save();
-        //Setting the scale
-        if (mIsZoomEnabled) {
-            canvas.scale(mScale, mScale, (float) contentWidth / 2, (float) contentHeight / 2);
-        }
-        //Doing nothing if we don't have the image map, or any terrain to load
-        if (mImageMap == null || mTerrain == null) {
-            //Draw placeholder images
-            Log.d(TAG, "onDraw: No map or terrain");
-            return;
-        }
-        //Computing the size of tiles
-        int tileWidth = contentWidth / mHorizontalTileCount;
-        int tileHeight = contentHeight / mVerticalTileCount;
-        int tileSize = tileWidth < tileHeight
-                ? tileWidth
-                : tileHeight;
-
-        int maxItemLength = (mHorizontalTileCount + 2) * (mVerticalTileCount + 2);
-        int centerXOffset =  Math.max((contentWidth - (tileSize * mHorizontalTileCount)) / 2, 0);
-        int centerYOffset = Math.max((contentHeight - (tileSize * mVerticalTileCount)) / 2, 0);
-        //Drawing all terrain. The server sends down by column
-        for (int i = 0; i < mTerrain.size() && i < maxItemLength; i++) {
-            int y = i % (mVerticalTileCount +2);
-            int x = i / (mVerticalTileCount +2);
-            if (y < 1 || y > mVerticalTileCount || x < 1 || x > mHorizontalTileCount) {
-                //These are out border tiles. Don't draw them.
-                continue;
-            }
-            //Grab terrain
-            Bitmap bmp = mImageMap.get(mTerrain.get(i).getTile());
-            if (bmp != null) {
-                //Draw terrain at x,y
-                int imageWidthInTiles = bmp.getWidth() / mImageTileSize;
-                int imageHeightInTiles = bmp.getHeight() / mImageTileSize;
-                int top = (y-1) * tileSize + centerXOffset;
-                int left = (x-1) * tileSize + centerYOffset;
-                mDest.set(left,
-                        top,
-                        (left + imageWidthInTiles * tileSize),
-                        (top + imageHeightInTiles * tileSize));
-                canvas.drawBitmap(bmp,
-                        null,
-                        mDest,
-                        mBitmapPaint);
-            } else {
-                Log.d(TAG, "onDraw: Missing Tile" + mTerrain.get(i).getTile());
-            }
-            //TODO Borders
-        }
-        if (mObjects != null) {
-            for (ItemTile item : mObjects) {
-                Bitmap bmp = mImageMap.get(item.getTile());
-                if (bmp != null) {
-                    int tileWidthInPixels  = bmp.getWidth() / mImageTileSize;
-                    int tileHeightInPixels = bmp.getHeight() / mImageTileSize;
-                    int start = (item.getX()) * tileSize + centerXOffset;
-                    int top = (item.getY()) * tileSize + centerYOffset;
-                    mDest.set(start,
-                            top,
-                            (start + tileWidthInPixels * tileSize),
-                            (top + tileHeightInPixels * tileSize));
-                    canvas.drawBitmap(bmp,
-                            null,
-                            mDest,
-                            mBitmapPaint);
-                } else {
-                    Log.d(TAG, "onDraw: Missing item" + item.getTile());
-                }
+        FrameStats.beginSection("GameView#onDraw");
+        long start = System.nanoTime();
+        mRenderer.draw(canvas, getContentWidth(), getContentHeight(),
+                mIsZoomEnabled ? mScale : 1f);
+        long elapsed = System.nanoTime() - start;
+        FrameStats.endSection();
+        FrameStats stats = mFrameStats;
+        if (stats != null) {
+            stats.record(FrameStats.DRAW_TIME, elapsed);
+            stats.record(FrameStats.TILES_DRAWN, mRenderer.getTilesDrawn());
+            stats.record(FrameStats.TILES_MISSING, mRenderer.getTilesMissing());
+            stats.record(FrameStats.BITMAP_SWITCHES, mRenderer.getBitmapSwitches());
+            if (mOverlay != null) {
+                mOverlay.draw(canvas, stats, 0, 0);
+                //Partial redraws may not reach it, so it refreshes itself
+                Rect bounds = mOverlay.getBounds();
+                postInvalidateDelayed(FrameStatsOverlay.REFRESH_MS, bounds.left, bounds.top,
+                        bounds.right, bounds.bottom);
             }
         }
-        canvas.restore();
+    }
+
+    /**
+     * Redraws the terrain on the next frame. Call this when bitmaps for tiles already on screen
+     * have changed, like when more tiles finish loading into the TileCache.
+     */
+    public void notifyTilesChanged() {
+        mRenderer.notifyTilesChanged();
+        invalidate();
     }
 
     @Override
     protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
-        int width = mImageTileSize * mHorizontalTileCount;
-        int height = mImageTileSize * mVerticalTileCount;
-
-        //Getting details
-        int widthMode = MeasureSpec.getMode(widthMeasureSpec);
-        int widthConstraint = MeasureSpec.getSize(widthMeasureSpec);
-        switch (widthMode) {
-            case MeasureSpec.AT_MOST:
-                //match parent?
-                width = widthConstraint;
-                break;
-            case MeasureSpec.EXACTLY:
-                //given size
-                width = widthConstraint;
-                break;
-            case MeasureSpec.UNSPECIFIED:
-                //wrap_content
-                break;
-        }
         loadPadding();
-        int tileSize = (width - mPaddingStart - mPaddingEnd)/ mHorizontalTileCount;
-        int heightMode = MeasureSpec.getMode(heightMeasureSpec);
-        int heightConstraint = MeasureSpec.getSize(heightMeasureSpec);
-        switch (heightMode) {
-            case MeasureSpec.AT_MOST:
-                //match parent?
-                height = tileSize * mVerticalTileCount + mPaddingTop + mPaddingBottom;
-                height = Math.min(height, heightConstraint);
-                break;
-            case MeasureSpec.EXACTLY:
-                //given size
-                height = heightConstraint;
-                break;
-            case MeasureSpec.UNSPECIFIED:
-                //wrap_content
-                height = tileSize * mVerticalTileCount + mPaddingTop + mPaddingBottom;
-                break;
-        }
-        int tileSizeByH = (height - mPaddingTop - mPaddingBottom)/ mVerticalTileCount;
-        //Experiment
-        int realSize = tileSize < tileSizeByH ? tileSize : tileSizeByH;
-        if (widthMode != MeasureSpec.EXACTLY) {
-            width = realSize * mHorizontalTileCount + mPaddingStart + mPaddingEnd;
-            width = width >= getSuggestedMinimumWidth() ? width : getSuggestedMinimumWidth();
-        }
-        if (heightMode != MeasureSpec.EXACTLY) {
-            height = realSize * mVerticalTileCount + mPaddingTop + mPaddingBottom;
-            height = height >= getSuggestedMinimumHeight() ? height: getSuggestedMinimumHeight();
-        }
-        setMeasuredDimension(width, height);
+        GameRenderer.measure(widthMeasureSpec, heightMeasureSpec, mImageTileSize,
+                mHorizontalTileCount, mVerticalTileCount, mPaddingStart, mPaddingEnd,
+                mPaddingTop, mPaddingBottom, getSuggestedMinimumWidth(),
+                getSuggestedMinimumHeight(), mMeasured);
+        setMeasuredDimension(mMeasured[0], mMeasured[1]);
     }
 
     public void setVerticalTileCount(int count) {
@@ -303,6 +280,7 @@ public class GameView extends View {
             mVerticalTileCount = count;
             mScale = 1;
         }
+        mRenderer.setTileCount(mHorizontalTileCount, mVerticalTileCount);
         invalidate();
         requestLayout();
     }
@@ -312,6 +290,7 @@ public class GameView extends View {
             mHorizontalTileCount = count;
             mScale = 1;
         }
+        mRenderer.setTileCount(mHorizontalTileCount, mVerticalTileCount);
         invalidate();
         requestLayout();
     }
@@ -322,6 +301,7 @@ public class GameView extends View {
             mVerticalTileCount = vertical;
             mScale = 1;
         }
+        mRenderer.setTileCount(mHorizontalTileCount, mVerticalTileCount);
         invalidate();
         requestLayout();
     }
@@ -332,61 +312,683 @@ public class GameView extends View {
         requestLayout();
     }
 
+    /**
+     * Kept for callers with a list. The list has to be the whole grid, ring included, at the
+     * current tile counts.
+     */
     public void setTerrain(List<TerrainTile> tiles) {
-        mTerrain = tiles;
+        int height = mVerticalTileCount + 2;
+        setTerrain(toPacked(tiles), tiles.size() / height, height);
+    }
+
+    /**
+     * Sets the terrain from packed ints.
+     *
+     * @param packed the grid, column by column, ring included. The view keeps the array, so
+     *               don't change it afterwards.
+     * @param width  columns in the grid, ring included
+     * @param height rows in the grid, ring included
+     */
+    public void setTerrain(int[] packed, int width, int height) {
+        if (mIsLooking) {
+            mLiveTerrain = packed;
+            mLiveWidth = width;
+            mLiveHeight = height;
+            mergeWorld(packed, width, height);
+            return;
+        }
+        mRenderer.setTerrain(packed, width, height);
+        mergeWorld(packed, width, height);
+        //The grid size doesn't feed into onMeasure, only the tile counts do
         invalidate();
-        requestLayout();
     }
 
+    /**
+     * Changes single cells of the current terrain, and only redraws those cells.
+     *
+     * @param cells indexes into the grid that changed
+     * @param tiles the new packed value of each of those cells
+     * @param count how many entries of the arrays to use
+     */
+    public void updateTerrain(int[] cells, int[] tiles, int count) {
+        mLastChangedCellCount = count;
+        mTotalChangedCellCount += count;
+        if (mIsLooking) {
+            if (mLiveTerrain != null) {
+                for (int i = 0; i < count; i++) {
+                    mLiveTerrain[cells[i]] = tiles[i];
+                }
+                mergeWorld(mLiveTerrain, mLiveWidth, mLiveHeight);
+            }
+            return;
+        }
+        int[] terrain = mRenderer.getTerrain();
+        if (terrain == null) {
+            return;
+        }
+        int stride = mRenderer.getTerrainHeight();
+        //Borders on the cells around a changed one can change too
+        int reach = mRenderer.isBordersEnabled() ? 1 : 0;
+        for (int i = 0; i < count; i++) {
+            int cell = cells[i];
+            //Grid coordinates include the ring, the visible ones don't
+            invalidateTiles(cell / stride - 1, cell % stride - 1,
+                    TerrainTile.getTile(terrain[cell]), TerrainTile.getTile(tiles[i]), reach);
+        }
+        mRenderer.updateTerrain(cells, tiles, count);
+        mergeWorld(terrain, mRenderer.getTerrainWidth(), stride);
+    }
+
+    /**
+     * Sets the items. Only the cells under the old and new items get redrawn.
+     */
     public void setItems(List<ItemTile> objects) {
-        mObjects = objects;
-        invalidate();
-        requestLayout();
+        if (mIsLooking) {
+            mLiveItems = objects;
+            showLook();
+            return;
+        }
+        List<ItemTile> old = mRenderer.getItems();
+        mRenderer.setItems(objects);
+        if (old != null) {
+            for (ItemTile item : old) {
+                invalidateTiles(item.getX(), item.getY(), item.getTile(), item.getTile(), 0);
+            }
+        }
+        if (objects != null) {
+            for (ItemTile item : objects) {
+                invalidateTiles(item.getX(), item.getY(), item.getTile(), item.getTile(), 0);
+            }
+        }
+    }
+
+    /**
+     * Invalidates the area of a tile, big enough for the bitmaps of either tile id. Bitmaps
+     * bigger than one tile hang off to the right and down, the same as onDraw.
+     *
+     * @param reach cells around the tile to invalidate too, on every side
+     */
+    private void invalidateTiles(int column, int row, int oldTile, int newTile, int reach) {
+        int contentWidth = getContentWidth();
+        int contentHeight = getContentHeight();
+        int tileSize = mRenderer.getTileSize(contentWidth, contentHeight);
+        if (tileSize <= 0 || !mRenderer.hasTiles()) {
+            //Not laid out, or nothing to draw yet
+            invalidate();
+            return;
+        }
+        int centerXOffset = mRenderer.getXOffset(contentWidth, tileSize);
+        int centerYOffset = mRenderer.getYOffset(contentHeight, tileSize);
+        int spanX = 1;
+        int spanY = 1;
+        Bitmap bmp = mRenderer.getTileBitmap(oldTile);
+        if (bmp != null) {
+            spanX = Math.max(spanX, bmp.getWidth() / mImageTileSize);
+            spanY = Math.max(spanY, bmp.getHeight() / mImageTileSize);
+        }
+        bmp = mRenderer.getTileBitmap(newTile);
+        if (bmp != null) {
+            spanX = Math.max(spanX, bmp.getWidth() / mImageTileSize);
+            spanY = Math.max(spanY, bmp.getHeight() / mImageTileSize);
+        }
+        float left = (column - reach) * tileSize + centerXOffset;
+        float top = (row - reach) * tileSize + centerYOffset;
+        mDirty.set(left, top, left + (spanX + reach * 2) * tileSize,
+                top + (spanY + reach * 2) * tileSize);
+        if (mIsZoomEnabled && mScale != 1f) {
+            //Same transform as canvas.scale in onDraw
+            float pivotX = (float) contentWidth / 2;
+            float pivotY = (float) contentHeight / 2;
+            mDirty.set(pivotX + (mDirty.left - pivotX) * mScale,
+                    pivotY + (mDirty.top - pivotY) * mScale,
+                    pivotX + (mDirty.right - pivotX) * mScale,
+                    pivotY + (mDirty.bottom - pivotY) * mScale);
+        }
+        invalidate((int) Math.floor(mDirty.left),
+                (int) Math.floor(mDirty.top),
+                (int) Math.ceil(mDirty.right),
+                (int) Math.ceil(mDirty.bottom));
     }
 
 
     public void setMapping(SparseArray<Bitmap> map) {
         //Force reload of all bitmaps.
-        mImageMap = map;
+        mRenderer.setMapping(map);
         invalidate();
         requestLayout();
     }
 
+    /**
+     * Draws bitmaps from the cache instead of a mapping. Tiles missing from the cache are
+     * decoded while drawing.
+     */
+    public void setTileCache(TileCache cache) {
+        mRenderer.setTileCache(cache);
+        invalidate();
+    }
+
+    /**
+     * Turns packing the tiles into a few big sheets on or off. With it on, a hardware
+     * accelerated canvas can batch the tile draws.
+     */
+    public void setAtlasEnabled(boolean enabled) {
+        mRenderer.setAtlasEnabled(enabled);
+        invalidate();
+    }
+
+    public boolean isAtlasEnabled() {
+        return mRenderer.isAtlasEnabled();
+    }
+
+    /**
+     * Turns the borders between terrain tiles on or off. A tile spills its edge onto the tiles
+     * around it that have a lower border priority, as set by the bits of the packed terrain.
+     */
+    public void setBordersEnabled(boolean enabled) {
+        mRenderer.setBordersEnabled(enabled);
+        invalidate();
+    }
+
+    public boolean isBordersEnabled() {
+        return mRenderer.isBordersEnabled();
+    }
+
+    public TileCache getTileCache() {
+        return mRenderer.getTileCache();
+    }
+
+    /**
+     * Records the draw time and tiles drawn of every frame into the stats. Share one with the
+     * network side to see the whole pipeline. Null to stop recording.
+     */
+    public void setFrameStats(FrameStats stats) {
+        mFrameStats = stats;
+        invalidate();
+    }
+
+    public FrameStats getFrameStats() {
+        return mFrameStats;
+    }
+
+    /**
+     * Shows the percentiles of the frame stats over the top left corner. Makes a FrameStats if
+     * the view doesn't have one yet.
+     */
+    public void setOverlayEnabled(boolean enabled) {
+        if (enabled && mOverlay == null) {
+            if (mFrameStats == null) {
+                mFrameStats = new FrameStats();
+            }
+            mOverlay = new FrameStatsOverlay(getResources().getDisplayMetrics().density);
+        } else if (!enabled) {
+            mOverlay = null;
+        }
+        invalidate();
+    }
+
+    public boolean isOverlayEnabled() {
+        return mOverlay != null;
+    }
+
+    /**
+     * Caps the memory for the bitmaps the view makes itself: tiles kept scaled to the current
+     * tile size, the atlas sheets and the border overlays. Tiles past it are scaled as they are drawn. Scaled tiles
+     * take effect the next time the tile size or the tiles change.
+     */
+    public void setMemoryMaxBytes(int maxBytes) {
+        mRenderer.setMaxBytes(maxBytes);
+        invalidate();
+    }
+
+    public int getMemoryMaxBytes() {
+        return mRenderer.getMaxBytes();
+    }
+
+    //Bytes used by the bitmaps under setMemoryMaxBytes
+    public int getMemoryByteCount() {
+        return mRenderer.getByteCount();
+    }
+
+    //Bytes used by the scaled tiles
+    public int getScaledCacheByteCount() {
+        return mRenderer.getScaledCache().getByteCount();
+    }
+
+    //How long the last rebuild of the scaled tiles took
+    public long getScaledCacheBuildNanos() {
+        return mRenderer.getScaledCache().getLastBuildNanos();
+    }
+
+    public int getScaledCacheBuildCount() {
+        return mRenderer.getScaledCache().getBuildCount();
+    }
+
     public void setAll(List<TerrainTile> terrain, List<ItemTile> items, int horizontal, int vertical) {
-        mTerrain = terrain;
-        mObjects = items;
-        if (mHorizontalTileCount != horizontal && mVerticalTileCount != vertical) {
+        setAll(toPacked(terrain), items, horizontal, vertical);
+    }
+
+    /**
+     * Sets everything at once. The terrain grid is (horizontal + 2) by (vertical + 2), packed the
+     * same as {@link #setTerrain(int[], int, int)}.
+     */
+    public void setAll(int[] terrain, List<ItemTile> items, int horizontal, int vertical) {
+        if (mIsLooking) {
+            mLiveTerrain = terrain;
+            mLiveWidth = horizontal + 2;
+            mLiveHeight = vertical + 2;
+            mLiveItems = items;
+        } else {
+            mRenderer.setTerrain(terrain, horizontal + 2, vertical + 2);
+            mRenderer.setItems(items);
+            invalidate();
+        }
+        if (mHorizontalTileCount != horizontal || mVerticalTileCount != vertical) {
             mHorizontalTileCount = horizontal;
             mVerticalTileCount = vertical;
+            if (!mIsLooking) {
+                mRenderer.setTileCount(horizontal, vertical);
+            }
             //TODO animate scale to 1 (This could end up looking terrible)
             mScale = 1;
+            //Only a change in tile counts can change our size
+            requestLayout();
+        }
+        mergeWorld(terrain, horizontal + 2, vertical + 2);
+    }
+
+    /**
+     * Keeps terrain seen on the live screen in the world map, so it can be looked at later
+     * without the server. Off by default. Prediction needs it, so turning it off turns
+     * prediction off too.
+     */
+    public void setWorldMapEnabled(boolean enabled) {
+        if (enabled && mWorldMap == null) {
+            mWorldMap = new WorldMap();
+        } else if (!enabled) {
+            mIsPredictionEnabled = false;
+            clearPrediction();
+            mLookColumns = 0;
+            mLookRows = 0;
+            mLookMargin = 0;
+            updateLook();
+            mWorldMap = null;
+        }
+    }
+
+    public boolean isWorldMapEnabled() {
+        return mWorldMap != null;
+    }
+
+    //Null unless the world map is on
+    public WorldMap getWorldMap() {
+        return mWorldMap;
+    }
+
+    /**
+     * Shows the world map instead of the live screen, moved columns & rows from where the live
+     * screen is, with margin more cells on every side. Cells not seen yet are left empty. New
+     * screens keep merging in, and show up in the look right away.
+     *
+     * Taps still report cells of the live screen. Does nothing unless the world map is on.
+     */
+    public void lookAround(int columns, int rows, int margin) {
+        if (mWorldMap == null) {
+            return;
+        }
+        mLookColumns = columns;
+        mLookRows = rows;
+        mLookMargin = Math.max(0, margin);
+        updateLook();
+    }
+
+    //Goes back to the live screen, or the predicted one
+    public void stopLooking() {
+        lookAround(0, 0, 0);
+    }
+
+    //Whether the view shows the world map rather than the live screen
+    public boolean isLooking() {
+        return mIsLooking;
+    }
+
+    /**
+     * Moves the map one tile the way the player is about to go, before the server says so.
+     * Call it once the move is actually written to the server, not for moves that may still be
+     * dropped. The cells coming into view are filled from the world map.
+     *
+     * Each screen from the server then confirms the move, or the map goes back to where the
+     * server has the player. The server gets {@link #PREDICTION_TIMEOUT_MS} from the last
+     * predicted move to catch up. Since it sends nothing for a move that went nowhere, the map
+     * goes back on its own after that.
+     *
+     * @return false if prediction is off, or too many moves are already waiting
+     */
+    public boolean predictMove(@GameViewCallbacks.Direction int direction) {
+        if (!mIsPredictionEnabled || mWorldMap == null || mRenderer.getTerrain() == null) {
+            return false;
+        }
+        int x = mPredictedX;
+        int y = mPredictedY;
+        switch (direction) {
+            case GameViewCallbacks.NORTH: y--; break;
+            case GameViewCallbacks.NORTHEAST: x++; y--; break;
+            case GameViewCallbacks.NORTHWEST: x--; y--; break;
+            case GameViewCallbacks.SOUTH: y++; break;
+            case GameViewCallbacks.SOUTHEAST: x++; y++; break;
+            case GameViewCallbacks.SOUTHWEST: x--; y++; break;
+            case GameViewCallbacks.WEST: x--; break;
+            case GameViewCallbacks.EAST: x++; break;
+        }
+        if (Math.max(Math.abs(x), Math.abs(y)) > MAX_PREDICTED_MOVES) {
+            //The world map can't line up screens that far apart
+            return false;
         }
+        mPredictedX = x;
+        mPredictedY = y;
+        mPredictedAt = SystemClock.uptimeMillis();
+        mPredictionCount++;
+        mPendingMoves++;
+        removeCallbacks(mPredictionTimeout);
+        postDelayed(mPredictionTimeout, PREDICTION_TIMEOUT_MS);
+        updateLook();
+        return true;
+    }
+
+    /**
+     * Turns move prediction on or off. Turns the world map on too, since the moves are checked
+     * against it.
+     */
+    public void setPredictionEnabled(boolean enabled) {
+        if (enabled) {
+            setWorldMapEnabled(true);
+        } else {
+            clearPrediction();
+            updateLook();
+        }
+        mIsPredictionEnabled = enabled;
+    }
+
+    public boolean isPredictionEnabled() {
+        return mIsPredictionEnabled;
+    }
+
+    //Moves predicted so far
+    public int getPredictionCount() {
+        return mPredictionCount;
+    }
+
+    //Predicted moves the server's screens went along with
+    public int getConfirmedPredictionCount() {
+        return mConfirmedCount;
+    }
+
+    //Times the map had to jump back to where the server had the player
+    public int getMispredictionCount() {
+        return mMispredictionCount;
+    }
+
+    //Tiles the map jumped by on the last misprediction, the furthest of the two axes
+    public int getLastCorrection() {
+        return mLastCorrection;
+    }
+
+    //Tiles jumped on all mispredictions
+    public long getTotalCorrection() {
+        return mTotalCorrection;
+    }
+
+    private void mergeWorld(int[] grid, int width, int height) {
+        if (mWorldMap != null && grid != null) {
+            boolean found = mWorldMap.merge(grid, width, height);
+            if (mPredictedX != 0 || mPredictedY != 0) {
+                reconcile(found);
+            }
+            if (mIsLooking) {
+                showLook();
+            }
+        }
+    }
+
+    /**
+     * Checks the predicted moves against how far the new screen moved. Moves it made are taken
+     * off. The rest are kept if they could still be on the way, and dropped if not.
+     */
+    private void reconcile(boolean found) {
+        int shiftX = mWorldMap.getLastShiftX();
+        int shiftY = mWorldMap.getLastShiftY();
+        int x = mPredictedX - shiftX;
+        int y = mPredictedY - shiftY;
+        if (x == 0 && y == 0) {
+            mConfirmedCount += mPendingMoves;
+        } else if (found && isOnTheWay(mPredictedX, x) && isOnTheWay(mPredictedY, y)
+                && SystemClock.uptimeMillis() - mPredictedAt < PREDICTION_TIMEOUT_MS) {
+            //Part of the way there, or the server hasn't got to the moves yet
+            mPredictedX = x;
+            mPredictedY = y;
+            return;
+        } else {
+            //Blocked, or the server moved the player some other way
+            mispredicted(found ? Math.max(Math.abs(x), Math.abs(y))
+                    : Math.max(Math.abs(mPredictedX), Math.abs(mPredictedY)));
+        }
+        clearPrediction();
+        updateLook();
+    }
+
+    //Counts a prediction the map had to jump back from, by this many tiles
+    private void mispredicted(int correction) {
+        mMispredictionCount++;
+        mLastCorrection = correction;
+        mTotalCorrection += correction;
+        if (FrameStats.isTracingEnabled()) {
+            Log.d(TAG, "mispredicted: Jumped back " + correction);
+        }
+    }
+
+    //Forgets the predicted moves, without updating the look
+    private void clearPrediction() {
+        removeCallbacks(mPredictionTimeout);
+        mPredictedX = 0;
+        mPredictedY = 0;
+        mPendingMoves = 0;
+    }
+
+    //Whether what is left of a predicted move is still in the same direction, and no further
+    private static boolean isOnTheWay(int predicted, int left) {
+        return left == 0
+                || (Integer.signum(left) == Integer.signum(predicted)
+                && Math.abs(left) <= Math.abs(predicted));
+    }
+
+    /**
+     * Switches between drawing the live screen and drawing from the world map. The world map is
+     * drawn while looking around, or while moves are predicted.
+     */
+    private void updateLook() {
+        boolean look = mWorldMap != null && (mLookColumns != 0 || mLookRows != 0
+                || mLookMargin > 0 || mPredictedX != 0 || mPredictedY != 0);
+        if (look && !mIsLooking) {
+            mLiveTerrain = mRenderer.getTerrain();
+            mLiveWidth = mRenderer.getTerrainWidth();
+            mLiveHeight = mRenderer.getTerrainHeight();
+            mLiveItems = mRenderer.getItems();
+            mIsLooking = true;
+        } else if (!look && mIsLooking) {
+            mIsLooking = false;
+            mRenderer.setTileCount(mHorizontalTileCount, mVerticalTileCount);
+            mRenderer.setTerrain(mLiveTerrain, mLiveWidth, mLiveHeight);
+            mRenderer.setItems(mLiveItems);
+            mLiveTerrain = null;
+            mLiveItems = null;
+            invalidate();
+        }
+        if (look) {
+            showLook();
+        }
+    }
+
+    /**
+     * Copies the looked at part of the world map into the renderer. Items on the live screen
+     * move with the terrain, and the ones outside the look are left out. The item on the center
+     * cell is the player, and stays in the center through a predicted move.
+     */
+    private void showLook() {
+        if (mLiveTerrain == null) {
+            //Nothing seen yet
+            return;
+        }
+        int columns = mLookColumns + mPredictedX;
+        int rows = mLookRows + mPredictedY;
+        int horizontal = mLiveWidth - 2 + mLookMargin * 2;
+        int vertical = mLiveHeight - 2 + mLookMargin * 2;
+        int width = horizontal + 2;
+        int height = vertical + 2;
+        if (mLookGrid == null || mLookGrid.length < width * height) {
+            mLookGrid = new int[width * height];
+            mLookSeen = new boolean[width * height];
+        }
+        mWorldMap.copy(mWorldMap.getOriginX() + columns - mLookMargin,
+                mWorldMap.getOriginY() + rows - mLookMargin, width, height, mLookGrid,
+                mLookSeen);
+        List<ItemTile> items = null;
+        if (mLiveItems != null) {
+            int centerX = (mLiveWidth - 2) / 2;
+            int centerY = (mLiveHeight - 2) / 2;
+            items = new ArrayList<>(mLiveItems.size());
+            for (ItemTile item : mLiveItems) {
+                int x = item.getX() + mLookMargin;
+                int y = item.getY() + mLookMargin;
+                if (item.getX() == centerX && item.getY() == centerY) {
+                    x -= mLookColumns;
+                    y -= mLookRows;
+                } else {
+                    x -= columns;
+                    y -= rows;
+                }
+                if (x >= 0 && x < horizontal && y >= 0 && y < vertical) {
+                    items.add(new ItemTile(x, y, item.getTile()));
+                }
+            }
+        }
+        mRenderer.setTileCount(horizontal, vertical);
+        mRenderer.setTerrain(mLookGrid, mLookSeen, width, height);
+        mRenderer.setItems(items);
         invalidate();
-        requestLayout();
     }
 
+    @Override
     public int getVerticalTileCount() {
         return mVerticalTileCount;
     }
 
+    @Override
     public int getHorizontalTileCount() {
         return mHorizontalTileCount;
     }
 
+    @Override
     public boolean isZoomEnabled() {
         return mIsZoomEnabled;
     }
 
+    @Override
+    public float getScale() {
+        return mScale;
+    }
+
+    @Override
+    public void setScale(float scale) {
+        mScale = scale;
+        invalidate();
+    }
+
+    //Width inside the padding
+    @Override
+    public int getContentWidth() {
+        loadPadding();
+        return getWidth() - mPaddingStart - mPaddingEnd;
+    }
+
+    //Height inside the padding
+    @Override
+    public int getContentHeight() {
+        loadPadding();
+        return getHeight() - mPaddingTop - mPaddingBottom;
+    }
+
+    /**
+     * The items stacked on a visible cell of the live screen, bottom first. Looks the cell up in
+     * an index of the items, so it doesn't scan them all.
+     */
+    @Override
+    public List<ItemTile> getItemsAt(int x, int y) {
+        if (mIsLooking) {
+            //The renderer has the moved items, so indexing the live ones here
+            if (mLiveItemIndex == null) {
+                mLiveItemIndex = new ItemIndex();
+            }
+            mLiveItemIndex.build(mLiveItems, mLiveWidth - 2, mLiveHeight - 2);
+            return mLiveItemIndex.getItems(x, y);
+        }
+        return mRenderer.getItemIndex().getItems(x, y);
+    }
+
+    //The live screen's items, even while looking around
     public List<ItemTile> getObjects() {
-        return mObjects;
+        return mIsLooking ? mLiveItems : mRenderer.getItems();
     }
 
+    /**
+     * Builds a list from the packed grid. Use {@link #getTerrainGrid()} to avoid the allocations.
+     */
     public List<TerrainTile> getTerrain() {
-        return mTerrain;
+        return toList(getTerrainGrid());
+    }
+
+    //The live screen's grid, even while looking around
+    public int[] getTerrainGrid() {
+        return mIsLooking ? mLiveTerrain : mRenderer.getTerrain();
+    }
+
+    public int getTerrainWidth() {
+        return mIsLooking ? mLiveWidth : mRenderer.getTerrainWidth();
+    }
+
+    public int getTerrainHeight() {
+        return mIsLooking ? mLiveHeight : mRenderer.getTerrainHeight();
     }
 
     public SparseArray<Bitmap> getMapping() {
-        return mImageMap;
+        return mRenderer.getMapping();
+    }
+
+    //Cells changed by the last updateTerrain call
+    public int getLastChangedCellCount() {
+        return mLastChangedCellCount;
+    }
+
+    //Cells changed by all updateTerrain calls
+    public long getTotalChangedCellCount() {
+        return mTotalChangedCellCount;
+    }
+
+    static int[] toPacked(List<TerrainTile> tiles) {
+        int[] packed = new int[tiles.size()];
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = tiles.get(i).pack();
+        }
+        return packed;
+    }
+
+    static List<TerrainTile> toList(int[] packed) {
+        if (packed == null) {
+            return null;
+        }
+        List<TerrainTile> tiles = new ArrayList<>(packed.length);
+        for (int terrain : packed) {
+            tiles.add(new TerrainTile(terrain));
+        }
+        return tiles;
     }
 
     public void addGameViewCallbacks(GameViewCallbacks listener) {
@@ -397,6 +999,16 @@ public class GameView extends View {
         mCallbacks.remove(listener);
     }
 
+    //Null to stop listening
+    public void setOnItemsClickedListener(OnItemsClickedListener listener) {
+        mOnItemsClickedListener = listener;
+    }
+
+    @Override
+    public OnItemsClickedListener getOnItemsClickedListener() {
+        return mOnItemsClickedListener;
+    }
+
     /**
      * Interface with callbacks from the game view, to be implemented by the activty or fragment that
      * contains the game view.
@@ -418,116 +1030,11 @@ public class GameView extends View {
     }
 
     /**
-     * Class for listening to pinch to zoom. Computes the number of tiles that can be shown,
-     * and hits the callback.
-     */
-    private class ScaleListener implements ScaleGestureDetector.OnScaleGestureListener {
-
-        @Override
-        public boolean onScale(ScaleGestureDetector detector) {
-            mScale *= detector.getScaleFactor();
-            invalidate();
-            requestLayout();
-            return true;
-        }
-
-        @Override
-        public boolean onScaleBegin(ScaleGestureDetector detector) {
-            return true;
-        }
-
-        @Override
-        public void onScaleEnd(ScaleGestureDetector detector) {
-            //Convert scale to new dimensions.
-            //callbacks
-            int adjustedHorizontalTileCount = (int) Math.max((mHorizontalTileCount / mScale), 1);
-            int adjustVerticalTileCount = (int) Math.max((mVerticalTileCount / mScale),1);
-            if (isZoomEnabled() && mCallbacks != null) {
-                for (GameViewCallbacks callbacks: mCallbacks) {
-                    callbacks.onTileCountChanged(adjustedHorizontalTileCount,
-                            adjustVerticalTileCount);
-                }
-            }
-        }
-    }
-
-    /**
-     * Class that listens to taps, and converts the x,y from the view into tiles x, y of the game view.
+     * Optional listener for taps on tiles with items on them. Set it with
+     * {@link #setOnItemsClickedListener}.
      */
-    private class TapListener implements GestureDetector.OnGestureListener{
-
-        @Override
-        public boolean onDown(MotionEvent e) {
-            return true;
-        }
-
-        @Override
-        public void onShowPress(MotionEvent e) {
-
-        }
-
-        @Override
-        public boolean onSingleTapUp(MotionEvent e) {
-            float x = e.getX();
-            float y = e.getY();
-            //No need to add one, because we want clicks to be in the scale of the visual tiles
-            int windowWidth = getWidth() - mPaddingEnd - mPaddingStart;
-            int windowHeight = getHeight() - mPaddingStart - mPaddingBottom;
-            int clickedX = (int)(x /  (windowWidth) * mHorizontalTileCount + .5);
-            int clickedY = (int)(y /  (windowHeight) * mVerticalTileCount + .5);
-            if (clickedX > 0
-                    && clickedX <= mHorizontalTileCount
-                    && clickedY > 0
-                    && clickedY <= mVerticalTileCount) {
-                //Hit callbacks so they can interpret
-                if (mCallbacks != null) {
-                    for (GameViewCallbacks callbacks : mCallbacks) {
-                        callbacks.onTileClicked(clickedX-1, clickedY-1);
-                    }
-                }
-            }
-            return true;
-        }
-
-        @Override
-        public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
-            return true;
-        }
-
-        @Override
-        public void onLongPress(MotionEvent e) {
-
-        }
-
-        @Override
-        public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
-            int degrees = (int) (Math.toDegrees(Math.atan2(velocityY,velocityX))+.5);
-            @GameViewCallbacks.Direction int direction = GameViewCallbacks.NORTH;
-            degrees += 180;
-            Log.d(TAG, "onFling: "+degrees);
-            if (degrees >=338 || degrees < 23) {
-                direction = GameViewCallbacks.WEST;
-            } else if (degrees >=23 && degrees < 68) {
-                direction = GameViewCallbacks.NORTHWEST;
-            } else if (degrees >= 68 && degrees < 113) {
-                direction = GameViewCallbacks.NORTH;
-            } else if (degrees >= 113 && degrees < 158) {
-                direction = GameViewCallbacks.NORTHEAST;
-            } else if (degrees >= 158 && degrees < 203) {
-                direction = GameViewCallbacks.EAST;
-            } else if (degrees >= 203 && degrees < 248) {
-                direction = GameViewCallbacks.SOUTHEAST;
-            } else if (degrees >= 248 && degrees < 293) {
-                direction = GameViewCallbacks.SOUTH;
-            } else if (degrees >= 293 && degrees < 338) {
-                direction = GameViewCallbacks.SOUTHWEST;
-            }
-            if (mCallbacks != null) {
-                for (GameViewCallbacks callbacks: mCallbacks) {
-                    callbacks.onSwipe(direction);
-                }
-            }
-            return true;
-        }
+    public interface OnItemsClickedListener {
+        //After onTileClicked, when the tile has items on it. Bottom of the stack first.
+        void onItemsClicked(int x, int y, List<ItemTile> items);
     }
-}
\ No newline at end of file
+}
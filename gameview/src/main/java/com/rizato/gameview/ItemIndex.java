@@ -0,0 +1,109 @@
+package com.rizato.gameview;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The items on each cell of the visible grid, so finding what is on a cell doesn't scan every
+ * item. Each cell holds the index of its first item, and each item the index of the next one on
+ * the same cell. Cells go column by column, like the terrain.
+ *
+ * A cell's items come out in the order they were in the list, which is the order they stack in.
+ * Items off the grid are left out. The arrays are kept between builds, so building again for a
+ * screen of the same size doesn't allocate.
+ */
+class ItemIndex {
+    static final int NONE = -1;
+
+    private int[] mHead = new int[0];
+    private int[] mNext = new int[0];
+    private ItemTile[] mItems = new ItemTile[0];
+    private int mCount;
+    private int mHorizontalTileCount;
+    private int mVerticalTileCount;
+
+    /**
+     * Indexes the items for a grid of this many visible tiles.
+     */
+    void build(List<ItemTile> items, int horizontal, int vertical) {
+        int cells = horizontal * vertical;
+        if (mHead.length < cells) {
+            mHead = new int[cells];
+        }
+        Arrays.fill(mHead, 0, cells, NONE);
+        int count = items != null ? items.size() : 0;
+        if (mItems.length < count) {
+            mItems = new ItemTile[count];
+            mNext = new int[count];
+        }
+        //The list may not be random access, so copying it out first
+        int i = 0;
+        if (items != null) {
+            for (ItemTile item : items) {
+                mItems[i++] = item;
+            }
+        }
+        //Dropping items from the last build, so they can be collected
+        for (int j = count; j < mCount; j++) {
+            mItems[j] = null;
+        }
+        mCount = count;
+        mHorizontalTileCount = horizontal;
+        mVerticalTileCount = vertical;
+        //Backwards, so each cell's items end up in list order
+        for (i = count - 1; i >= 0; i--) {
+            ItemTile item = mItems[i];
+            int x = item.getX();
+            int y = item.getY();
+            if (x < 0 || x >= horizontal || y < 0 || y >= vertical) {
+                mNext[i] = NONE;
+                continue;
+            }
+            int cell = x * vertical + y;
+            mNext[i] = mHead[cell];
+            mHead[cell] = i;
+        }
+    }
+
+    //Whether the last build was for a grid this size
+    boolean isBuiltFor(int horizontal, int vertical) {
+        return mHorizontalTileCount == horizontal && mVerticalTileCount == vertical;
+    }
+
+    /**
+     * @return the first item on the cell, or NONE
+     */
+    int first(int x, int y) {
+        if (x < 0 || x >= mHorizontalTileCount || y < 0 || y >= mVerticalTileCount) {
+            return NONE;
+        }
+        return mHead[x * mVerticalTileCount + y];
+    }
+
+    //The item after this one on the same cell, or NONE
+    int next(int item) {
+        return mNext[item];
+    }
+
+    ItemTile get(int item) {
+        return mItems[item];
+    }
+
+    int getCount(int x, int y) {
+        int count = 0;
+        for (int i = first(x, y); i != NONE; i = mNext[i]) {
+            count++;
+        }
+        return count;
+    }
+
+    //A new list of the items on the cell, bottom of the stack first
+    List<ItemTile> getItems(int x, int y) {
+        List<ItemTile> items = new ArrayList<>(getCount(x, y));
+        for (int i = first(x, y); i != NONE; i = mNext[i]) {
+            items.add(mItems[i]);
+        }
+        return items;
+    }
+}
@@ -0,0 +1,211 @@
+package com.rizato.gameview;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.util.SparseArray;
+
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tile bitmaps scaled ahead of time to the size they are drawn at, so they can be drawn 1:1.
+ * Scaling every bitmap on every draw is slow on a software canvas, which the terrain layer
+ * always is.
+ *
+ * A set is built on a background thread for one tile size, from one generation of the tile
+ * bitmaps. Until a matching set is ready, the renderer scales as it draws. Sets are capped at a
+ * number of bytes, and tiles past the cap are scaled as they are drawn. A set being built
+ * counts against the cap along with the one it replaces, so the two never go over it together.
+ *
+ * Only touched from the drawing thread, apart from the build itself.
+ */
+class ScaledTileCache {
+    private static final long KEEP_ALIVE_SECONDS = 10;
+    //One background thread for every view. Builds are rare, and each one replaces the last.
+    private static final Executor sExecutor;
+
+    static {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, ScaledTileCache.class.getSimpleName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        sExecutor = executor;
+    }
+
+    private final int mImageTileSize;
+    private volatile int mMaxBytes;
+    private volatile Runnable mOnReady;
+    //The newest finished set
+    private volatile Result mResult;
+    private volatile boolean mBuilding;
+
+    //Stats
+    private volatile long mLastBuildNanos;
+    private volatile int mBuildCount;
+
+    ScaledTileCache(int imageTileSize, int maxBytes) {
+        mImageTileSize = imageTileSize;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return the scaled bitmaps for this size & generation, or null if they aren't ready
+     */
+    SparseArray<Bitmap> get(int tileSize, int generation) {
+        Result result = mResult;
+        if (result == null || result.tileSize != tileSize || result.generation != generation) {
+            return null;
+        }
+        return result.bitmaps;
+    }
+
+    /**
+     * Whether a build should start. True when the newest set is for another size or
+     * generation, or tiles were drawn that aren't in it and there is room for them.
+     */
+    boolean needsBuild(int tileSize, int generation, boolean missed) {
+        if (mBuilding || tileSize <= 0 || tileSize == mImageTileSize) {
+            //Already the right size, nothing to gain
+            return false;
+        }
+        Result result = mResult;
+        return result == null
+                || result.tileSize != tileSize
+                || result.generation != generation
+                || (missed && !result.full);
+    }
+
+    /**
+     * Scales the tiles in the background. The bitmaps come from the cache if there is one, or
+     * the mapping. Only bitmaps already loaded are scaled, the build never decodes. Tiles the
+     * last set already scaled at this size are kept. A last set that can't be reused (another
+     * size, or over a lowered cap) is dropped before the build starts.
+     *
+     * Call it from the drawing thread.
+     */
+    void build(final int tileSize, final int generation, final int[] tiles,
+               final SparseArray<Bitmap> mapping, final TileCache cache) {
+        mBuilding = true;
+        Result last = mResult;
+        final boolean reuse = last != null && last.tileSize == tileSize
+                && last.generation == generation && last.bytes <= mMaxBytes;
+        if (!reuse) {
+            //Nothing in it can be used, so it can go now rather than after the build
+            mResult = null;
+            last = null;
+        }
+        final Result previous = last;
+        //The previous set stays alive until this one replaces it. Only new bitmaps count here,
+        //the ones carried over are already in its bytes.
+        final int maxBytes = mMaxBytes - (previous != null ? previous.bytes : 0);
+        final Map<Integer, Bitmap> loaded = cache != null ? cache.holdLoaded() : null;
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.nanoTime();
+                    Result result = new Result(tileSize, generation, tiles.length);
+                    int added = 0;
+                    for (int tile : tiles) {
+                        Bitmap scaled = reuse ? previous.bitmaps.get(tile) : null;
+                        if (scaled == null) {
+                            Bitmap source = loaded != null ? loaded.get(tile) : mapping.get(tile);
+                            if (source == null) {
+                                //Not loaded yet. A later build picks it up.
+                                continue;
+                            }
+                            int width = source.getWidth() * tileSize / mImageTileSize;
+                            int height = source.getHeight() * tileSize / mImageTileSize;
+                            if (width <= 0 || height <= 0) {
+                                continue;
+                            }
+                            int bytes = width * height
+                                    * (source.getConfig() == Bitmap.Config.RGB_565 ? 2 : 4);
+                            if (added + bytes > maxBytes) {
+                                result.full = true;
+                                continue;
+                            }
+                            scaled = Bitmap.createScaledBitmap(source, width, height, true);
+                            added += scaled.getByteCount();
+                        }
+                        result.bitmaps.put(tile, scaled);
+                        result.bytes += scaled.getByteCount();
+                    }
+                    mResult = result;
+                    mLastBuildNanos = System.nanoTime() - start;
+                    mBuildCount++;
+                } finally {
+                    if (cache != null) {
+                        cache.releaseLoaded();
+                    }
+                    mBuilding = false;
+                }
+                Runnable onReady = mOnReady;
+                if (onReady != null) {
+                    onReady.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Called on the build thread when a set is ready, so the view can draw again.
+     */
+    void setOnReady(Runnable onReady) {
+        mOnReady = onReady;
+    }
+
+    //Takes effect from the next build
+    void setMaxBytes(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    //Bytes in the newest set
+    int getByteCount() {
+        Result result = mResult;
+        return result == null ? 0 : result.bytes;
+    }
+
+    long getLastBuildNanos() {
+        return mLastBuildNanos;
+    }
+
+    int getBuildCount() {
+        return mBuildCount;
+    }
+
+    private static class Result {
+        final int tileSize;
+        final int generation;
+        final SparseArray<Bitmap> bitmaps;
+        int bytes;
+        //Some tiles didn't fit
+        boolean full;
+
+        Result(int tileSize, int generation, int capacity) {
+            this.tileSize = tileSize;
+            this.generation = generation;
+            bitmaps = new SparseArray<>(capacity);
+        }
+    }
+}
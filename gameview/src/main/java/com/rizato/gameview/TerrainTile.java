@@ -2,8 +2,11 @@ package com.rizato.gameview;
 
 /**
  * This is a POJO for holding the tile information.
- * It holds the int for the mapping, as well as all of the bordering information.
- * We don't do any of the bordering yet though. That would be a pain.
+ * It holds the int for the mapping, as well as all of the bordering information. The view
+ * draws the borders when they are turned on (see {@link GameView#setBordersEnabled}).
+ *
+ * The static methods read the same information straight out of the packed int the server sends,
+ * so a whole grid can be kept as an int[] without an object per cell.
  */
 @SuppressWarnings("unused")
 public class TerrainTile {
@@ -23,11 +26,44 @@ public class TerrainTile {
 
     public TerrainTile(int terrain) {
         //Parses the border & tile info from the integer
-        mHasBorders = (terrain >> 29 & 0x1) == 1;
-        mIsInBorderEnabled = (terrain >> 30 & 0x1) == 1;
-        mIsOutBorderEnabled = (terrain >> 31 & 0x1) == 1;
-        mBorderPriority = terrain >> 16 & 0x1FFF;
-        mTile = terrain & 0xFFFF;
+        mHasBorders = hasBorders(terrain);
+        mIsInBorderEnabled = isInBorderEnabled(terrain);
+        mIsOutBorderEnabled = isOutBorderEnabled(terrain);
+        mBorderPriority = getBorderPriority(terrain);
+        mTile = getTile(terrain);
+    }
+
+    public static boolean hasBorders(int terrain) {
+        return (terrain >> 29 & 0x1) == 1;
+    }
+
+    public static boolean isInBorderEnabled(int terrain) {
+        return (terrain >> 30 & 0x1) == 1;
+    }
+
+    public static boolean isOutBorderEnabled(int terrain) {
+        return (terrain >> 31 & 0x1) == 1;
+    }
+
+    public static int getBorderPriority(int terrain) {
+        return terrain >> 16 & 0x1FFF;
+    }
+
+    public static int getTile(int terrain) {
+        return terrain & 0xFFFF;
+    }
+
+    //Packs the values back into the layout the server uses
+    public static int pack(int tile, int priority, boolean hasBorders, boolean bordersOut, boolean bordersIn) {
+        return (tile & 0xFFFF)
+                | (priority & 0x1FFF) << 16
+                | (hasBorders ? 1 << 29 : 0)
+                | (bordersIn ? 1 << 30 : 0)
+                | (bordersOut ? 1 << 31 : 0);
+    }
+
+    public int pack() {
+        return pack(mTile, mBorderPriority, mHasBorders, mIsOutBorderEnabled, mIsInBorderEnabled);
     }
 
     public boolean hasBorders() {
@@ -0,0 +1,164 @@
+package com.rizato.gameview;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.util.SparseIntArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs tile bitmaps into a few big sheets, so the GameView draws every tile from the same
+ * handful of bitmaps. On a hardware accelerated canvas each bitmap is its own texture, and draws
+ * from the same texture can be batched together.
+ *
+ * Tiles are packed in shelves, left to right and then top to bottom, as they are added. Once
+ * the last sheet is full, add() returns false and the tile has to be drawn on its own.
+ */
+@SuppressWarnings("unused")
+public class TileAtlas {
+    //Room between tiles, so filtering never picks up a neighbor's pixels
+    private static final int GUTTER = 1;
+    //sheet, left, top, right, bottom, source identity
+    private static final int REGION_SIZE = 6;
+
+    private final int mSheetSize;
+    private final int mMaxSheets;
+    private final List<Bitmap> mSheets;
+    private final Canvas mCanvas;
+    //Tile id to the index of its region
+    private final SparseIntArray mEntries;
+    private int[] mRegions;
+    private int mRegionCount;
+    //Where the next tile goes in the last sheet
+    private int mShelfX;
+    private int mShelfY;
+    private int mShelfHeight;
+
+    /**
+     * @param sheetSize width & height of each sheet in pixels
+     * @param maxSheets the most sheets to allocate. Each is sheetSize * sheetSize * 4 bytes.
+     */
+    public TileAtlas(int sheetSize, int maxSheets) {
+        mSheetSize = sheetSize;
+        mMaxSheets = maxSheets;
+        mSheets = new ArrayList<>();
+        mCanvas = new Canvas();
+        mEntries = new SparseIntArray();
+        mRegions = new int[64 * REGION_SIZE];
+    }
+
+    /**
+     * Copies the bitmap into the atlas. Adding a tile again with a different bitmap packs the
+     * new bitmap, and the old space goes unused.
+     *
+     * @return false if the bitmap doesn't fit, and has to be drawn on its own.
+     */
+    public boolean add(int tile, Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int identity = System.identityHashCode(bitmap);
+        int index = mEntries.get(tile, -1);
+        if (index >= 0 && mRegions[index * REGION_SIZE + 5] == identity) {
+            //Already packed
+            return true;
+        }
+        if (width + GUTTER > mSheetSize || height + GUTTER > mSheetSize) {
+            return false;
+        }
+        if (mSheets.isEmpty() || mShelfX + width + GUTTER > mSheetSize) {
+            //New shelf
+            mShelfY += mShelfHeight;
+            mShelfX = 0;
+            mShelfHeight = 0;
+        }
+        if (mSheets.isEmpty() || mShelfY + height + GUTTER > mSheetSize) {
+            if (mSheets.size() >= mMaxSheets) {
+                return false;
+            }
+            mSheets.add(Bitmap.createBitmap(mSheetSize, mSheetSize, Bitmap.Config.ARGB_8888));
+            mShelfX = 0;
+            mShelfY = 0;
+            mShelfHeight = 0;
+        }
+        int sheet = mSheets.size() - 1;
+        mCanvas.setBitmap(mSheets.get(sheet));
+        mCanvas.drawBitmap(bitmap, mShelfX, mShelfY, null);
+        mCanvas.setBitmap(null);
+
+        if ((mRegionCount + 1) * REGION_SIZE > mRegions.length) {
+            int[] bigger = new int[mRegions.length * 2];
+            System.arraycopy(mRegions, 0, bigger, 0, mRegionCount * REGION_SIZE);
+            mRegions = bigger;
+        }
+        int offset = mRegionCount * REGION_SIZE;
+        mRegions[offset] = sheet;
+        mRegions[offset + 1] = mShelfX;
+        mRegions[offset + 2] = mShelfY;
+        mRegions[offset + 3] = mShelfX + width;
+        mRegions[offset + 4] = mShelfY + height;
+        mRegions[offset + 5] = identity;
+        mEntries.put(tile, mRegionCount);
+        mRegionCount++;
+
+        mShelfX += width + GUTTER;
+        mShelfHeight = Math.max(mShelfHeight, height + GUTTER);
+        return true;
+    }
+
+    /**
+     * Finds a packed tile.
+     *
+     * @param source set to the tile's area of the sheet
+     * @return the sheet holding the tile, or null if it isn't packed
+     */
+    public Bitmap getSheet(int tile, Rect source) {
+        int index = mEntries.get(tile, -1);
+        if (index < 0) {
+            return null;
+        }
+        int offset = index * REGION_SIZE;
+        source.set(mRegions[offset + 1], mRegions[offset + 2],
+                mRegions[offset + 3], mRegions[offset + 4]);
+        return mSheets.get(mRegions[offset]);
+    }
+
+    public boolean contains(int tile) {
+        return mEntries.get(tile, -1) >= 0;
+    }
+
+    /**
+     * Forgets every tile. The sheets aren't recycled, since a frame may still be drawing them.
+     */
+    public void clear() {
+        mSheets.clear();
+        mEntries.clear();
+        mRegionCount = 0;
+        mShelfX = 0;
+        mShelfY = 0;
+        mShelfHeight = 0;
+    }
+
+    public int getSheetCount() {
+        return mSheets.size();
+    }
+
+    public int getMaxSheets() {
+        return mMaxSheets;
+    }
+
+    //Bytes in the sheets allocated so far
+    public int getByteCount() {
+        return mSheets.size() * mSheetSize * mSheetSize * 4;
+    }
+
+    //Bytes the sheets can grow to
+    public int getMaxByteCount() {
+        return mMaxSheets * mSheetSize * mSheetSize * 4;
+    }
+
+    public int getTileCount() {
+        return mEntries.size();
+    }
+}
@@ -0,0 +1,245 @@
+package com.rizato.gameview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A memory budgeted cache of tile bitmaps, for use instead of a plain mapping.
+ *
+ * Bitmaps are counted by their byte size, and the least recently drawn ones are evicted once
+ * the budget is used up. When the GameView asks for a tile that was evicted, it is decoded again
+ * through the TileDecoder, right there on the drawing thread. A tile that was never loaded is
+ * drawn as missing instead, and the decoder hears about it, so it can load it sooner. Evicted
+ * bitmaps are kept around briefly, and reused through inBitmap when a tile of the same size is
+ * decoded.
+ *
+ * Hit, miss and eviction counts come from LruCache (hitCount(), missCount(), evictionCount()).
+ */
+@SuppressWarnings("unused")
+public class TileCache extends LruCache<Integer, Bitmap> {
+    private static final int MAX_REUSABLE = 16;
+
+    private final TileDecoder mDecoder;
+    //Width << 16 | height of every tile decoded so far, and not removed since. Guarded by itself.
+    private final SparseIntArray mSizes;
+    //Tiles that decoded without any alpha. Guarded by mSizes.
+    private final SparseBooleanArray mOpaque;
+    private final List<Reusable> mReusable;
+    //Snapshots still being read. Guarded by mReusable.
+    private int mHolds;
+    private volatile Bitmap.Config mOpaqueConfig;
+    private volatile long mFrame;
+    private volatile int mReplacements;
+
+    /**
+     * @param maxBytes the memory budget for decoded bitmaps
+     */
+    public TileCache(int maxBytes, TileDecoder decoder) {
+        super(maxBytes);
+        mDecoder = decoder;
+        mSizes = new SparseIntArray();
+        mOpaque = new SparseBooleanArray();
+        mReusable = new ArrayList<>();
+        mOpaqueConfig = Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * Sets the config for tiles that have no transparency. RGB_565 halves their memory.
+     */
+    public void setOpaqueConfig(Bitmap.Config config) {
+        mOpaqueConfig = config;
+    }
+
+    public Bitmap.Config getOpaqueConfig() {
+        return mOpaqueConfig;
+    }
+
+    /**
+     * Decodes the tile and caches it. For warming the cache off of the UI thread. Filling in a
+     * tile that is already cached isn't a replacement: to change a tile's image, remove it first.
+     */
+    public void preload(int tile) {
+        Bitmap bitmap = decode(tile, false);
+        if (bitmap != null) {
+            put(tile, bitmap);
+        }
+    }
+
+    /**
+     * The bitmaps loaded right now, without decoding any or changing the eviction order. They
+     * stay safe to read from another thread until {@link #releaseLoaded()}, because evicted
+     * bitmaps aren't decoded into again while a snapshot is held.
+     */
+    public Map<Integer, Bitmap> holdLoaded() {
+        synchronized (mReusable) {
+            mHolds++;
+        }
+        return snapshot();
+    }
+
+    //Done reading the last snapshot from holdLoaded
+    public void releaseLoaded() {
+        synchronized (mReusable) {
+            mHolds--;
+        }
+    }
+
+    /**
+     * The GameView calls this at the start of every draw. Evicted bitmaps are only reused once
+     * a frame has passed, so a bitmap is never overwritten while the frame drawing it is still
+     * being rendered.
+     */
+    public void onFrame() {
+        mFrame++;
+    }
+
+    @Override
+    protected int sizeOf(Integer tile, Bitmap bitmap) {
+        return bitmap.getByteCount();
+    }
+
+    @Override
+    protected Bitmap create(Integer tile) {
+        //A miss. Only evicted tiles are decoded here, on the drawing thread.
+        boolean loaded;
+        synchronized (mSizes) {
+            loaded = mSizes.indexOfKey(tile) >= 0;
+        }
+        if (!loaded) {
+            mDecoder.onMiss(tile);
+            return null;
+        }
+        return decode(tile, true);
+    }
+
+    /**
+     * Counts the times a tile was removed on purpose, rather than evicted. Anything holding on to
+     * copies of the tiles (like the GameView's atlas) should drop them when this changes.
+     */
+    public int getReplacementCount() {
+        return mReplacements;
+    }
+
+    @Override
+    protected void entryRemoved(boolean evicted, Integer tile, Bitmap oldValue, Bitmap newValue) {
+        //A put over a cached tile is the same image filled in twice, like a worker finishing a
+        //tile that was already decoded again on a miss. Only removals change what is drawn.
+        if (!evicted && newValue == null) {
+            mReplacements++;
+            //Loaded again from scratch, not decoded on a miss
+            synchronized (mSizes) {
+                mSizes.delete(tile);
+                mOpaque.delete(tile);
+            }
+        }
+        if (evicted && oldValue.isMutable()) {
+            synchronized (mReusable) {
+                if (mReusable.size() >= MAX_REUSABLE) {
+                    mReusable.remove(0);
+                }
+                mReusable.add(new Reusable(oldValue, mFrame));
+            }
+        }
+    }
+
+    private Bitmap decode(int tile, boolean drawing) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        Bitmap.Config opaqueConfig = mOpaqueConfig;
+        int size;
+        boolean opaque;
+        synchronized (mSizes) {
+            size = mSizes.get(tile, -1);
+            opaque = mOpaque.get(tile);
+        }
+        options.inPreferredConfig = opaque ? opaqueConfig : Bitmap.Config.ARGB_8888;
+        if (size != -1) {
+            options.inBitmap = takeReusable(size >>> 16, size & 0xFFFF, options.inPreferredConfig);
+        }
+        Bitmap bitmap;
+        try {
+            bitmap = mDecoder.decode(tile, options, drawing);
+        } catch (IllegalArgumentException e) {
+            //Some formats can't decode into an existing bitmap on older versions
+            options.inBitmap = null;
+            bitmap = mDecoder.decode(tile, options, drawing);
+        }
+        if (bitmap == null) {
+            return null;
+        }
+        if (!bitmap.hasAlpha() && bitmap.getConfig() != opaqueConfig
+                && opaqueConfig != Bitmap.Config.ARGB_8888) {
+            Bitmap smaller = bitmap.copy(opaqueConfig, true);
+            if (smaller != null) {
+                bitmap.recycle();
+                bitmap = smaller;
+            }
+            opaque = true;
+        }
+        synchronized (mSizes) {
+            mSizes.put(tile, bitmap.getWidth() << 16 | bitmap.getHeight());
+            mOpaque.put(tile, opaque);
+        }
+        return bitmap;
+    }
+
+    //Finds an evicted bitmap of the exact size & config, from before this frame
+    private Bitmap takeReusable(int width, int height, Bitmap.Config config) {
+        synchronized (mReusable) {
+            if (mHolds > 0) {
+                //One of them may still be read from a snapshot
+                return null;
+            }
+            for (int i = 0; i < mReusable.size(); i++) {
+                Reusable reusable = mReusable.get(i);
+                Bitmap bitmap = reusable.bitmap;
+                if (reusable.frame < mFrame
+                        && bitmap.getWidth() == width
+                        && bitmap.getHeight() == height
+                        && bitmap.getConfig() == config) {
+                    mReusable.remove(i);
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes tiles for the cache.
+     */
+    public interface TileDecoder {
+        /**
+         * Called from preload, and on the drawing thread for a tile that was evicted.
+         *
+         * @param options pass these to BitmapFactory. They may hold a bitmap to decode into.
+         * @param drawing true on the drawing thread, which can be the UI thread. Skip anything
+         *                slow or locked, like a disk cache.
+         * @return the bitmap, or null if the tile isn't known
+         */
+        Bitmap decode(int tile, BitmapFactory.Options options, boolean drawing);
+
+        /**
+         * A tile that hasn't been loaded was drawn, and came out missing. Called on the drawing
+         * thread, so only hurry up the preload, don't decode here.
+         */
+        void onMiss(int tile);
+    }
+
+    private static class Reusable {
+        final Bitmap bitmap;
+        final long frame;
+
+        Reusable(Bitmap bitmap, long frame) {
+            this.bitmap = bitmap;
+            this.frame = frame;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.rizato.gameview;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Terrain already seen, kept by world position, so the view can look around it without asking
+ * the server. Each screen is merged into square chunks of packed ints (see {@link TerrainTile}),
+ * laid out column by column like the grid. Every packed value is a real cell, so each chunk
+ * also keeps a bit per cell for whether it has been seen. The least recently used chunks are
+ * dropped once the map is over its memory cap.
+ *
+ * The server never says where a screen is. Each one is lined up with the last by trying small
+ * shifts around the center, and taking the one where the most cells match. A screen that doesn't
+ * line up with anything (a teleport, or a new map) starts the world over.
+ *
+ * Flat terrain can line up more than one way. Ties go to the smallest shift, so standing still
+ * is never mistaken for a step.
+ *
+ * Not thread safe. The view uses it from the thread it takes screens on.
+ */
+@SuppressWarnings("unused")
+public class WorldMap {
+    public static final int DEFAULT_MAX_BYTES = 1 << 20;
+    private static final int CHUNK_SHIFT = 4;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int CHUNK_CELLS = CHUNK_SIZE * CHUNK_SIZE;
+    //The cells, and the seen bits
+    private static final int CHUNK_BYTES = CHUNK_CELLS * 4 + CHUNK_CELLS / 8;
+    //Furthest a screen is looked for from the last one, each way
+    private static final int MAX_SHIFT = 3;
+    //Share of the overlapping cells that must match for a shift to count
+    private static final float MIN_MATCH = 0.8f;
+
+    private final LinkedHashMap<Long, Chunk> mChunks;
+    private int mMaxChunks;
+
+    //World position of cell 0,0 of the last screen, and a copy of it to line the next one up with
+    private int mOriginX;
+    private int mOriginY;
+    private int[] mLast;
+    private int mLastWidth;
+    private int mLastHeight;
+    //How far the origin moved with the last screen
+    private int mLastShiftX;
+    private int mLastShiftY;
+
+    //Stats
+    private int mResetCount;
+
+    public WorldMap() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes memory for the chunks. The least recently used go past it.
+     */
+    public WorldMap(int maxBytes) {
+        mMaxChunks = Math.max(1, maxBytes / CHUNK_BYTES);
+        mChunks = new LinkedHashMap<Long, Chunk>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Chunk> eldest) {
+                return size() > mMaxChunks;
+            }
+        };
+    }
+
+    /**
+     * Adds a screen to the map, lined up with the last one.
+     *
+     * @param grid   the screen, column by column, ring included
+     * @param width  columns in the grid
+     * @param height rows in the grid
+     * @return false if it didn't line up, and the world was started over
+     */
+    public boolean merge(int[] grid, int width, int height) {
+        boolean found = true;
+        int originX = mOriginX;
+        int originY = mOriginY;
+        if (mLast == null) {
+            mOriginX = 0;
+            mOriginY = 0;
+        } else if (!locate(grid, width, height)) {
+            clear();
+            mResetCount++;
+            found = false;
+        }
+        mLastShiftX = found ? mOriginX - originX : 0;
+        mLastShiftY = found ? mOriginY - originY : 0;
+        for (int x = 0; x < width; x++) {
+            int worldX = mOriginX + x;
+            int y = 0;
+            while (y < height) {
+                //One column of one chunk at a time
+                int worldY = mOriginY + y;
+                Chunk chunk = getChunk(worldX >> CHUNK_SHIFT, worldY >> CHUNK_SHIFT, true);
+                int local = worldY & CHUNK_MASK;
+                int run = Math.min(CHUNK_SIZE - local, height - y);
+                int offset = (worldX & CHUNK_MASK) * CHUNK_SIZE + local;
+                System.arraycopy(grid, x * height + y, chunk.mCells, offset, run);
+                //A column of a chunk never straddles two longs
+                chunk.mSeen[offset >> 6] |= ((1L << run) - 1) << (offset & 63);
+                y += run;
+            }
+        }
+        if (mLast == null || mLast.length < grid.length) {
+            mLast = new int[grid.length];
+        }
+        System.arraycopy(grid, 0, mLast, 0, width * height);
+        mLastWidth = width;
+        mLastHeight = height;
+        return found;
+    }
+
+    /**
+     * Finds where the grid sits relative to the last screen, and moves the origin there. A
+     * resize keeps the center, so the search starts from the centers lined up.
+     */
+    private boolean locate(int[] grid, int width, int height) {
+        int guessX = (mLastWidth - width) / 2;
+        int guessY = (mLastHeight - height) / 2;
+        int bestX = 0;
+        int bestY = 0;
+        int bestMatches = -1;
+        int bestOverlap = 1;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int dy = -MAX_SHIFT; dy <= MAX_SHIFT; dy++) {
+            for (int dx = -MAX_SHIFT; dx <= MAX_SHIFT; dx++) {
+                int shiftX = guessX + dx;
+                int shiftY = guessY + dy;
+                //Cells of the new grid that were on the last one
+                int minX = Math.max(0, -shiftX);
+                int minY = Math.max(0, -shiftY);
+                int maxX = Math.min(width, mLastWidth - shiftX);
+                int maxY = Math.min(height, mLastHeight - shiftY);
+                if (minX >= maxX || minY >= maxY) {
+                    continue;
+                }
+                int overlap = (maxX - minX) * (maxY - minY);
+                //Gives up on a shift once it can't reach the minimum
+                int allowed = overlap - (int) Math.ceil(overlap * MIN_MATCH);
+                int misses = 0;
+                for (int x = minX; x < maxX && misses <= allowed; x++) {
+                    int i = x * height + minY;
+                    int j = (x + shiftX) * mLastHeight + minY + shiftY;
+                    for (int y = minY; y < maxY; y++, i++, j++) {
+                        if (grid[i] != mLast[j]) {
+                            misses++;
+                        }
+                    }
+                }
+                if (misses > allowed) {
+                    continue;
+                }
+                int matches = overlap - misses;
+                int distance = Math.abs(dx) + Math.abs(dy);
+                //Higher share of matches wins, then the smaller shift
+                long score = (long) matches * bestOverlap;
+                long best = (long) bestMatches * overlap;
+                if (score > best || (score == best && distance < bestDistance)) {
+                    bestX = shiftX;
+                    bestY = shiftY;
+                    bestMatches = matches;
+                    bestOverlap = overlap;
+                    bestDistance = distance;
+                }
+            }
+        }
+        if (bestMatches < 0) {
+            return false;
+        }
+        mOriginX += bestX;
+        mOriginY += bestY;
+        return true;
+    }
+
+    /**
+     * Copies part of the world into a grid, column by column. Cells not seen are 0 in the grid,
+     * and false in seen.
+     *
+     * @param left world column of the first cell
+     * @param top  world row of the first cell
+     * @param seen gets whether each cell has been seen, in the same order as out
+     */
+    public void copy(int left, int top, int width, int height, int[] out, boolean[] seen) {
+        for (int x = 0; x < width; x++) {
+            int worldX = left + x;
+            int y = 0;
+            while (y < height) {
+                int worldY = top + y;
+                Chunk chunk = getChunk(worldX >> CHUNK_SHIFT, worldY >> CHUNK_SHIFT, false);
+                int local = worldY & CHUNK_MASK;
+                int run = Math.min(CHUNK_SIZE - local, height - y);
+                int i = x * height + y;
+                if (chunk == null) {
+                    for (int end = i + run; i < end; i++) {
+                        out[i] = 0;
+                        seen[i] = false;
+                    }
+                } else {
+                    int offset = (worldX & CHUNK_MASK) * CHUNK_SIZE + local;
+                    System.arraycopy(chunk.mCells, offset, out, i, run);
+                    long bits = chunk.mSeen[offset >> 6] >>> (offset & 63);
+                    for (int end = i + run; i < end; i++, bits >>>= 1) {
+                        seen[i] = (bits & 1) != 0;
+                    }
+                }
+                y += run;
+            }
+        }
+    }
+
+    //Whether the cell at a world position has been seen
+    public boolean isSeen(int x, int y) {
+        Chunk chunk = getChunk(x >> CHUNK_SHIFT, y >> CHUNK_SHIFT, false);
+        return chunk != null && chunk.isSeen((x & CHUNK_MASK) * CHUNK_SIZE + (y & CHUNK_MASK));
+    }
+
+    //The packed cell at a world position, or 0 if it hasn't been seen
+    public int get(int x, int y) {
+        Chunk chunk = getChunk(x >> CHUNK_SHIFT, y >> CHUNK_SHIFT, false);
+        if (chunk == null) {
+            return 0;
+        }
+        return chunk.mCells[(x & CHUNK_MASK) * CHUNK_SIZE + (y & CHUNK_MASK)];
+    }
+
+    private Chunk getChunk(int chunkX, int chunkY, boolean create) {
+        Long key = ((long) chunkX << 32) | (chunkY & 0xFFFFFFFFL);
+        Chunk chunk = mChunks.get(key);
+        if (chunk == null && create) {
+            chunk = new Chunk();
+            mChunks.put(key, chunk);
+        }
+        return chunk;
+    }
+
+    //Forgets the whole world. The next screen is at 0,0.
+    public void clear() {
+        mChunks.clear();
+        mLast = null;
+        mOriginX = 0;
+        mOriginY = 0;
+    }
+
+    //World column of cell 0,0 of the last screen, ring included
+    public int getOriginX() {
+        return mOriginX;
+    }
+
+    //World row of cell 0,0 of the last screen, ring included
+    public int getOriginY() {
+        return mOriginY;
+    }
+
+    /**
+     * Columns the last screen moved by from the one before it. East is positive. 0 if it didn't
+     * line up.
+     */
+    public int getLastShiftX() {
+        return mLastShiftX;
+    }
+
+    //Rows the last screen moved by. South is positive.
+    public int getLastShiftY() {
+        return mLastShiftY;
+    }
+
+    //Drops the oldest chunks right away if the map is over the new cap
+    public void setMaxBytes(int maxBytes) {
+        mMaxChunks = Math.max(1, maxBytes / CHUNK_BYTES);
+        while (mChunks.size() > mMaxChunks) {
+            mChunks.remove(mChunks.keySet().iterator().next());
+        }
+    }
+
+    public int getMaxBytes() {
+        return mMaxChunks * CHUNK_BYTES;
+    }
+
+    public int getByteCount() {
+        return mChunks.size() * CHUNK_BYTES;
+    }
+
+    public int getChunkCount() {
+        return mChunks.size();
+    }
+
+    //Times a screen didn't line up, and the world started over
+    public int getResetCount() {
+        return mResetCount;
+    }
+
+    //Cells column by column, and a bit for each one that has been seen
+    private static class Chunk {
+        final int[] mCells = new int[CHUNK_CELLS];
+        final long[] mSeen = new long[CHUNK_CELLS / 64];
+
+        boolean isSeen(int cell) {
+            return (mSeen[cell >> 6] & 1L << (cell & 63)) != 0;
+        }
+    }
+}
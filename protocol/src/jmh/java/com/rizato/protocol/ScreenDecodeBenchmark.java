@@ -0,0 +1,228 @@
+package com.rizato.protocol;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Decoding throughput of ZIPPED_SCREEN frames, on synthetic screens the size of the default
+ * view (13x13), a big zoomed out view (50x50) and far past anything the server sends (200x200).
+ *
+ * Run with the gc profiler (the default for :protocol:jmh) to get the allocation rate. Decoding
+ * a screen once the buffers have grown should allocate nothing.
+ *
+ * perByteScreen is the decode the app used before the codec, on the same frames. Each benchmark
+ * also counts the inflated bytes it decoded, so the inflatedBytes line is bytes per second;
+ * divide by a million for MB/s, which compares across the sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ScreenDecodeBenchmark {
+    //Visible tiles on a side. The grid sent is two bigger, for the border ring.
+    @Param({"13", "50", "200"})
+    public int size;
+
+    private byte[] mBytes;
+    private ByteBuffer mFrame;
+    private int mInflatedLength;
+    private FrameDecoder mDecoder;
+    private ProtocolCodec mCodec;
+    private LastScreen mListener;
+
+    @Setup
+    public void setUp() throws IOException {
+        int side = size + 2;
+        mBytes = zippedScreen(side, side, size * size / 8, new Random(42));
+        mFrame = ByteBuffer.wrap(mBytes);
+        //The ulength field, after the header, size & zlength
+        mInflatedLength = ByteBuffer.wrap(mBytes).getInt(12);
+        mDecoder = new FrameDecoder();
+        mListener = new LastScreen();
+        mCodec = new ProtocolCodec(mListener);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mCodec.end();
+    }
+
+    //Just finding the frame boundaries, for comparison
+    @Benchmark
+    public int frame() {
+        mFrame.clear();
+        mDecoder.decode(mFrame);
+        return mDecoder.getLength();
+    }
+
+    //Framing, inflating, and decoding the grid & items
+    @Benchmark
+    public int screen(Inflated inflated) throws IOException {
+        mFrame.clear();
+        mDecoder.decode(mFrame);
+        mCodec.decode(mDecoder);
+        inflated.inflatedBytes += mInflatedLength;
+        return mListener.mChecksum;
+    }
+
+    /**
+     * The same screen read the old way, a byte at a time from an InflaterInputStream, with an
+     * object for every cell & item.
+     */
+    @Benchmark
+    public int perByteScreen(Inflated inflated) throws IOException {
+        DataInputStream zipped = new DataInputStream(new ByteArrayInputStream(mBytes));
+        zipped.skipBytes(4);
+        int size = zipped.readInt();
+        int width = (size & 0xffff0000) >> 16;
+        int height = size & 0xffff;
+        int zlength = zipped.readInt();
+        int ulength = zipped.readInt();
+        byte[] buf = new byte[zlength];
+        zipped.readFully(buf);
+        DataInputStream stream = new DataInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(buf)));
+        List<Cell> terrain = new ArrayList<>();
+        for (int i = 0; i < height; i++) {
+            for (int j = 0; j < width; j++) {
+                int tile = stream.readUnsignedByte()
+                        | stream.readUnsignedByte() << 8
+                        | stream.readUnsignedByte() << 16
+                        | stream.readUnsignedByte() << 24;
+                ulength -= 4;
+                terrain.add(new Cell(j, i, tile));
+            }
+        }
+        List<Cell> items = new ArrayList<>();
+        for (int i = 0; i < ulength / 4; i++) {
+            int y = stream.readUnsignedByte();
+            int x = stream.readUnsignedByte();
+            int tile = stream.readUnsignedByte() | stream.readUnsignedByte() << 8;
+            items.add(new Cell(x, y, tile));
+        }
+        inflated.inflatedBytes += mInflatedLength;
+        return terrain.get(terrain.size() - 1).tile + items.size();
+    }
+
+    //Inflated bytes decoded. A rate in throughput mode.
+    @State(Scope.Thread)
+    @AuxCounters
+    public static class Inflated {
+        public long inflatedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            inflatedBytes = 0;
+        }
+    }
+
+    //Stands in for the app's TerrainTile & ItemTile, which the old decode made one of per cell
+    private static class Cell {
+        final int x;
+        final int y;
+        final int tile;
+
+        Cell(int x, int y, int tile) {
+            this.x = x;
+            this.y = y;
+            this.tile = tile;
+        }
+    }
+
+    /**
+     * Builds a whole ZIPPED_SCREEN frame, header included. The terrain comes in patches of the
+     * same few tiles, so it compresses about as well as a real map.
+     */
+    static byte[] zippedScreen(int width, int height, int items, Random random)
+            throws IOException {
+        ByteBuffer raw = ByteBuffer.allocate((width * height + items) * 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                int tile = ((x / 4) * 3 + (y / 3)) % 7;
+                if (random.nextInt(10) == 0) {
+                    tile = 7 + random.nextInt(40);
+                }
+                //Tile, then the border priority above it
+                raw.putInt(tile | (tile + 1) << 16);
+            }
+        }
+        for (int i = 0; i < items; i++) {
+            raw.put((byte) random.nextInt(height - 2));
+            raw.put((byte) random.nextInt(width - 2));
+            raw.putShort((short) (100 + random.nextInt(200)));
+        }
+        byte[] inflated = raw.array();
+        Deflater deflater = new Deflater();
+        deflater.setInput(inflated);
+        deflater.finish();
+        byte[] zipped = new byte[inflated.length + 64];
+        int zlength = 0;
+        while (!deflater.finished()) {
+            zlength += deflater.deflate(zipped, zlength, zipped.length - zlength);
+        }
+        deflater.end();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(baos);
+        int length = 12 + zlength;
+        stream.writeByte(ProtocolCodec.ZIPPED_SCREEN);
+        stream.writeByte(length >>> 16);
+        stream.writeByte(length >>> 8);
+        stream.writeByte(length);
+        stream.writeInt(width << 16 | height);
+        stream.writeInt(zlength);
+        stream.writeInt(inflated.length);
+        stream.write(zipped, 0, zlength);
+        return baos.toByteArray();
+    }
+
+    //Touches the decoded screen, so none of the decoding can be skipped
+    private static class LastScreen implements ProtocolCodec.Listener {
+        int mChecksum;
+
+        @Override
+        public void onScreen(ScreenFrame screen) {
+            int cells = screen.getCellCount();
+            mChecksum = screen.getTerrain()[cells - 1] + screen.getItemCount();
+        }
+
+        @Override
+        public void onLogin(int version, byte result) {
+        }
+
+        @Override
+        public void onText(byte style, String message) {
+        }
+
+        @Override
+        public void onTileMapping(int tile, String path) {
+        }
+
+        @Override
+        public void onQuit() {
+        }
+    }
+}
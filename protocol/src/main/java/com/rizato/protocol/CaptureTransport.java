@@ -0,0 +1,106 @@
+package com.rizato.protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Wraps another transport, and writes every frame it reads to a file as it goes by. The file can
+ * be played back later with a {@link ReplayTransport}, with no server around.
+ *
+ * The file is a 4 byte {@link #MAGIC}, the wall clock time the capture started (a long, in
+ * milliseconds), and then a record per frame: the nanoseconds since the start (a long), and the
+ * frame exactly as it came off the wire, header included. Everything is big endian.
+ *
+ * Connecting again starts the file over.
+ */
+public class CaptureTransport implements Transport {
+    public static final int MAGIC = 0x4d544331;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Transport mTransport;
+    private final File mFile;
+
+    public CaptureTransport(Transport transport, File file) {
+        mTransport = transport;
+        mFile = file;
+    }
+
+    @Override
+    public synchronized void connect(String host, int port, Listener listener) throws IOException {
+        //The old capture has to be finished before the file is opened again
+        mTransport.close();
+        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(mFile), BUFFER_SIZE));
+        try {
+            stream.writeInt(MAGIC);
+            stream.writeLong(System.currentTimeMillis());
+            mTransport.connect(host, port, new Tee(listener, stream));
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        mTransport.write(data, offset, length);
+    }
+
+    @Override
+    public void close() {
+        mTransport.close();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Records each frame, then passes it on.
+     */
+    private static class Tee implements Listener {
+        private final Listener mListener;
+        private final DataOutputStream mStream;
+        private final long mStart;
+        private boolean mFailed;
+
+        Tee(Listener listener, DataOutputStream stream) {
+            mListener = listener;
+            mStream = stream;
+            mStart = System.nanoTime();
+        }
+
+        @Override
+        public void onFrame(FrameDecoder frame) {
+            if (!mFailed) {
+                try {
+                    int length = frame.getLength();
+                    mStream.writeLong(System.nanoTime() - mStart);
+                    mStream.writeByte(frame.getCommand());
+                    mStream.writeByte(length >>> 16);
+                    mStream.writeByte(length >>> 8);
+                    mStream.writeByte(length);
+                    mStream.write(frame.getBuffer(), 0, length);
+                } catch (IOException e) {
+                    //Out of space, probably. The session itself keeps going.
+                    e.printStackTrace();
+                    mFailed = true;
+                }
+            }
+            mListener.onFrame(frame);
+        }
+
+        @Override
+        public void onClosed(IOException cause) {
+            try {
+                mStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mListener.onClosed(cause);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.rizato.protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Transport over a non-blocking SocketChannel. A single selector thread does all of the reading
+ * and writing. Writes from other threads are copied into a direct buffer, and the selector is
+ * woken up to flush them.
+ */
+public class ChannelTransport implements Transport {
+    private static final String TAG = ChannelTransport.class.getSimpleName();
+    private static final int READ_CAPACITY = 16 * 1024;
+    private static final int WRITE_CAPACITY = 4 * 1024;
+    private static final long JOIN_TIMEOUT = 1000;
+
+    private final ByteBuffer mReadBuffer;
+    private final Object mWriteLock;
+    //Guarded by mWriteLock. Always left in fill mode.
+    private ByteBuffer mWriteBuffer;
+    private volatile boolean mWritePending;
+
+    private Selector mSelector;
+    private Thread mThread;
+    private volatile boolean mClosed;
+
+    public ChannelTransport() {
+        mReadBuffer = ByteBuffer.allocateDirect(READ_CAPACITY);
+        mWriteBuffer = ByteBuffer.allocateDirect(WRITE_CAPACITY);
+        mWriteLock = new Object();
+    }
+
+    @Override
+    public synchronized void connect(String host, int port, final Listener listener)
+            throws IOException {
+        close();
+        //Connecting in blocking mode keeps this the same as the socket transport. The caller
+        //is already off of the UI thread.
+        final SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        final Selector selector;
+        try {
+            channel.configureBlocking(false);
+            //Nagle would only add delay on top of the batching done by the NetworkHandlerThread
+            channel.socket().setTcpNoDelay(true);
+            selector = Selector.open();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        synchronized (mWriteLock) {
+            mWriteBuffer.clear();
+            mWritePending = false;
+            mSelector = selector;
+            mClosed = false;
+        }
+        mReadBuffer.clear();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop(selector, channel, listener);
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    //Selects until closed
+    private void loop(Selector selector, SocketChannel channel, Listener listener) {
+        IOException cause = null;
+        FrameDecoder decoder = new FrameDecoder();
+        try {
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            while (!mClosed) {
+                if (mWritePending) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+                selector.select();
+                //Only a selected key's ready ops are fresh. A wakeup for a write leaves the
+                //ones from the last select.
+                boolean selected = selector.selectedKeys().remove(key);
+                if (mClosed) {
+                    break;
+                }
+                if (!selected) {
+                    continue;
+                }
+                if (key.isReadable()) {
+                    int read = channel.read(mReadBuffer);
+                    if (read < 0) {
+                        //Server hung up
+                        break;
+                    }
+                    mReadBuffer.flip();
+                    while (decoder.decode(mReadBuffer)) {
+                        listener.onFrame(decoder);
+                    }
+                    //The decoder takes everything it is given
+                    mReadBuffer.clear();
+                }
+                if (key.isValid() && key.isWritable() && flush(channel)) {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+        } catch (IOException e) {
+            if (!mClosed) {
+                cause = e;
+            }
+        } catch (RuntimeException e) {
+            //A bug in the listener still closes the connection, and says why
+            cause = new IOException(e);
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            listener.onClosed(cause);
+        }
+    }
+
+    //Writes as much as the socket will take. Returns true once everything has been written.
+    private boolean flush(SocketChannel channel) throws IOException {
+        synchronized (mWriteLock) {
+            mWriteBuffer.flip();
+            channel.write(mWriteBuffer);
+            mWriteBuffer.compact();
+            mWritePending = mWriteBuffer.position() > 0;
+            return !mWritePending;
+        }
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        Selector selector;
+        synchronized (mWriteLock) {
+            if (mClosed || mSelector == null) {
+                throw new IOException("Transport is closed");
+            }
+            if (mWriteBuffer.remaining() < length) {
+                ByteBuffer bigger = ByteBuffer.allocateDirect(
+                        Integer.highestOneBit(mWriteBuffer.position() + length) << 1);
+                mWriteBuffer.flip();
+                bigger.put(mWriteBuffer);
+                mWriteBuffer = bigger;
+            }
+            mWriteBuffer.put(data, offset, length);
+            mWritePending = true;
+            selector = mSelector;
+        }
+        selector.wakeup();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mThread == null) {
+            return;
+        }
+        Thread thread = mThread;
+        synchronized (mWriteLock) {
+            mClosed = true;
+            mSelector.wakeup();
+            mSelector = null;
+        }
+        mThread = null;
+        if (thread != Thread.currentThread()) {
+            try {
+                thread.join(JOIN_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.rizato.protocol;
+
+import java.util.Locale;
+
+/**
+ * A command going up to the server, and what kind it is. The kind decides how it gets coalesced
+ * with commands that haven't been sent yet (see {@link CommandQueue}).
+ */
+public class Command {
+    //Typed in. Always sent, in order.
+    public static final int TEXT = 0;
+    //#view. Only the newest one matters.
+    public static final int VIEW = 1;
+    //A tap on the map. Always sent, in order, since every tap is a click.
+    public static final int MOUSE = 2;
+    //A step. Rate limited to the server tick.
+    public static final int MOVE = 3;
+
+    private final int mKind;
+    private final String mText;
+
+    private Command(int kind, String text) {
+        mKind = kind;
+        mText = text;
+    }
+
+    public static Command text(String text) {
+        return new Command(TEXT, text);
+    }
+
+    public static Command view(int horizontal, int vertical) {
+        return new Command(VIEW, String.format(Locale.US, "#view %d %d", horizontal, vertical));
+    }
+
+    public static Command mouse(int x, int y) {
+        return new Command(MOUSE, String.format(Locale.US, "mouse %d %d", x, y));
+    }
+
+    /**
+     * @param key the key for the direction, like numpad-8
+     */
+    public static Command move(String key) {
+        return new Command(MOVE, key);
+    }
+
+    public int getKind() {
+        return mKind;
+    }
+
+    public String getText() {
+        return mText;
+    }
+
+    /**
+     * Whether this command makes an unsent one pointless, so it can be dropped.
+     */
+    public boolean supersedes(Command older) {
+        return mKind == VIEW && older.mKind == VIEW;
+    }
+
+    @Override
+    public String toString() {
+        return mText;
+    }
+}
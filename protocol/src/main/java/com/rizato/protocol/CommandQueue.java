@@ -0,0 +1,212 @@
+package com.rizato.protocol;
+
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Commands waiting for the next write, with stale ones dropped.
+ *
+ * A newer #view replaces an unsent one. Everything else goes out in the order it was queued.
+ * Moves are let through by a token bucket that refills once per server tick, with a small burst.
+ * A move that finds the bucket empty is held until the next token, along with everything queued
+ * after it, so nothing overtakes a move. A newer move replaces a held one, and goes to the back
+ * of the line, so frantic swiping turns into one step per tick in the latest direction.
+ *
+ * Only used from the network thread.
+ */
+public class CommandQueue {
+    private final List<Command> mPending;
+    //A held move, then whatever was queued after it. Empty if no move is held.
+    private final List<Command> mHeld;
+    private final long mMoveInterval;
+    private final int mMoveBurst;
+    private Listener mListener;
+    private int mTokens;
+    private long mLastRefill;
+
+    //Metrics
+    private volatile int mSize;
+    private volatile long mSuperseded;
+    private volatile long mThrottled;
+
+    /**
+     * @param moveInterval milliseconds between moves, once the burst is used up
+     * @param moveBurst    moves that can go out back to back
+     */
+    public CommandQueue(long moveInterval, int moveBurst) {
+        mPending = new ArrayList<>();
+        mHeld = new ArrayList<>();
+        mMoveInterval = moveInterval;
+        mMoveBurst = moveBurst;
+        mTokens = moveBurst;
+        mLastRefill = Long.MIN_VALUE;
+    }
+
+    /**
+     * Adds a command, dropping whatever it makes stale.
+     *
+     * @param now the current time in milliseconds, from a monotonic clock
+     * @return the number of commands dropped
+     */
+    public int offer(Command command, long now) {
+        int dropped = 0;
+        if (command.getKind() == Command.MOVE) {
+            if (mHeld.isEmpty() && takeToken(now)) {
+                mPending.add(command);
+            } else {
+                if (!mHeld.isEmpty()) {
+                    mHeld.remove(0);
+                    dropped++;
+                    mThrottled++;
+                }
+                mHeld.add(command);
+                //Whatever waited behind the dropped move was queued before this one
+                while (mHeld.get(0).getKind() != Command.MOVE) {
+                    mPending.add(mHeld.remove(0));
+                }
+            }
+        } else {
+            dropped += supersede(mPending, command);
+            dropped += supersede(mHeld, command);
+            if (mHeld.isEmpty()) {
+                mPending.add(command);
+            } else {
+                mHeld.add(command);
+            }
+        }
+        updateSize();
+        return dropped;
+    }
+
+    //Drops the commands the new one makes stale
+    private int supersede(List<Command> commands, Command command) {
+        int dropped = 0;
+        for (int i = commands.size() - 1; i >= 0; i--) {
+            if (command.supersedes(commands.get(i))) {
+                commands.remove(i);
+                dropped++;
+                mSuperseded++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Moves the held move, and everything queued after it, into the queue if there is a token
+     * for it.
+     *
+     * @return true if it was released
+     */
+    public boolean releaseHeldMove(long now) {
+        if (mHeld.isEmpty() || !takeToken(now)) {
+            return false;
+        }
+        mPending.addAll(mHeld);
+        mHeld.clear();
+        updateSize();
+        return true;
+    }
+
+    /**
+     * @return milliseconds until the held move can go, or -1 if no move is held
+     */
+    public long getHeldMoveDelay(long now) {
+        if (mHeld.isEmpty()) {
+            return -1;
+        }
+        refill(now);
+        return mTokens > 0 ? 0 : mLastRefill + mMoveInterval - now;
+    }
+
+    /**
+     * Encodes everything queued into the writer, oldest first. A held move, and what is behind
+     * it, stays held.
+     *
+     * @return the number of commands encoded
+     */
+    public int drainTo(CommandWriter writer) throws UTFDataFormatException {
+        int count = mPending.size();
+        try {
+            for (int i = 0; i < count; i++) {
+                Command command = mPending.get(i);
+                writer.writeCommand(command.getText());
+                if (command.getKind() == Command.MOVE && mListener != null) {
+                    mListener.onMoveWritten(command);
+                }
+            }
+        } finally {
+            //A command too long to encode is dropped with the rest, rather than stuck forever
+            mPending.clear();
+            updateSize();
+        }
+        return count;
+    }
+
+    //Null to stop listening
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public boolean isEmpty() {
+        return mPending.isEmpty();
+    }
+
+    //Commands queued or held
+    public int size() {
+        return mSize;
+    }
+
+    //Views dropped because a newer one replaced them
+    public long getSupersededCount() {
+        return mSuperseded;
+    }
+
+    //Moves dropped because a newer move came in while they waited for a token
+    public long getThrottledCount() {
+        return mThrottled;
+    }
+
+    private boolean takeToken(long now) {
+        refill(now);
+        if (mTokens == 0) {
+            return false;
+        }
+        if (mTokens == mMoveBurst) {
+            //The bucket was full, so the next token is a whole interval from now
+            mLastRefill = now;
+        }
+        mTokens--;
+        return true;
+    }
+
+    private void refill(long now) {
+        if (mLastRefill == Long.MIN_VALUE) {
+            mLastRefill = now;
+            return;
+        }
+        long ticks = (now - mLastRefill) / mMoveInterval;
+        if (ticks <= 0) {
+            return;
+        }
+        if (mTokens + ticks >= mMoveBurst) {
+            mTokens = mMoveBurst;
+            mLastRefill = now;
+        } else {
+            mTokens += ticks;
+            mLastRefill += ticks * mMoveInterval;
+        }
+    }
+
+    private void updateSize() {
+        mSize = mPending.size() + mHeld.size();
+    }
+
+    /**
+     * Hears about the moves that actually go out, as they are encoded into the writer. Moves
+     * dropped for a newer one never show up. Called on the thread that drains the queue.
+     */
+    public interface Listener {
+        void onMoveWritten(Command move);
+    }
+}
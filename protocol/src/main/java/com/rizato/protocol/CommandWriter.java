@@ -0,0 +1,161 @@
+package com.rizato.protocol;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+
+/**
+ * Collects outgoing commands in one reusable buffer, so a burst of them goes out in a single
+ * transport write.
+ *
+ * Strings are encoded the same as DataOutputStream.writeUTF (a 2 byte length, then modified
+ * UTF-8), which is what the server reads. Only the network thread encodes & flushes. The
+ * counters can be read from anywhere.
+ */
+public class CommandWriter {
+    private static final int INITIAL_CAPACITY = 512;
+
+    private byte[] mBuffer;
+    private int mLength;
+    //Commands encoded since the last flush
+    private int mBatched;
+
+    //Metrics
+    private volatile long mWrites;
+    private volatile long mBytesWritten;
+    private volatile long mCommandsWritten;
+    private volatile int mLastWriteBytes;
+    private volatile int mMaxBatch;
+
+    public CommandWriter() {
+        mBuffer = new byte[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Adds a command to the current batch.
+     */
+    public void writeCommand(String command) throws UTFDataFormatException {
+        writeUTF(command);
+        mBatched++;
+    }
+
+    public void writeInt(int value) {
+        ensureCapacity(4);
+        mBuffer[mLength++] = (byte) (value >>> 24);
+        mBuffer[mLength++] = (byte) (value >>> 16);
+        mBuffer[mLength++] = (byte) (value >>> 8);
+        mBuffer[mLength++] = (byte) value;
+    }
+
+    public void writeShort(int value) {
+        ensureCapacity(2);
+        mBuffer[mLength++] = (byte) (value >>> 8);
+        mBuffer[mLength++] = (byte) value;
+    }
+
+    /**
+     * Same output as DataOutputStream.writeUTF, without the per call allocations.
+     */
+    public void writeUTF(String value) throws UTFDataFormatException {
+        int chars = value.length();
+        int utfLength = 0;
+        for (int i = 0; i < chars; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                utfLength++;
+            } else if (c > 0x07FF) {
+                utfLength += 3;
+            } else {
+                utfLength += 2;
+            }
+        }
+        if (utfLength > 0xFFFF) {
+            throw new UTFDataFormatException("encoded string too long: " + utfLength + " bytes");
+        }
+        ensureCapacity(utfLength + 2);
+        byte[] buffer = mBuffer;
+        int position = mLength;
+        buffer[position++] = (byte) (utfLength >>> 8);
+        buffer[position++] = (byte) utfLength;
+        for (int i = 0; i < chars; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buffer[position++] = (byte) c;
+            } else if (c > 0x07FF) {
+                buffer[position++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                buffer[position++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                buffer[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        mLength = position;
+    }
+
+    private void ensureCapacity(int extra) {
+        int needed = mLength + extra;
+        if (needed > mBuffer.length) {
+            byte[] grown = new byte[Integer.highestOneBit(needed - 1) << 1];
+            System.arraycopy(mBuffer, 0, grown, 0, mLength);
+            mBuffer = grown;
+        }
+    }
+
+    /**
+     * Writes everything buffered in one go. The buffer is emptied even if the write fails, the
+     * connection is gone by then anyway.
+     */
+    public void flush(Transport transport) throws IOException {
+        if (mLength == 0) {
+            return;
+        }
+        int length = mLength;
+        int batched = mBatched;
+        mLength = 0;
+        mBatched = 0;
+        transport.write(mBuffer, 0, length);
+        mWrites++;
+        mBytesWritten += length;
+        mCommandsWritten += batched;
+        mLastWriteBytes = length;
+        if (batched > mMaxBatch) {
+            mMaxBatch = batched;
+        }
+    }
+
+    //Bytes waiting for the next flush
+    public int size() {
+        return mLength;
+    }
+
+    //Commands waiting for the next flush
+    public int getPendingCommands() {
+        return mBatched;
+    }
+
+    public long getWriteCount() {
+        return mWrites;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public long getCommandsWritten() {
+        return mCommandsWritten;
+    }
+
+    public int getLastWriteBytes() {
+        return mLastWriteBytes;
+    }
+
+    //Most commands that went out in a single write
+    public int getMaxBatch() {
+        return mMaxBatch;
+    }
+
+    public float getAverageBytesPerWrite() {
+        long writes = mWrites;
+        return writes == 0 ? 0 : (float) mBytesWritten / writes;
+    }
+}
@@ -0,0 +1,120 @@
+package com.rizato.protocol;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Inflates the zlib blocks inside of frames. There is one of these per connection.
+ *
+ * It keeps a single Inflater that is reset between frames, and an output buffer that grows to
+ * the largest block seen. Once the buffer is big enough, inflating a block allocates nothing.
+ * Call {@link #end()} when the connection closes, to free the Inflater's native memory.
+ *
+ * The inflated bytes can be read as a stream, or in bulk through little endian buffer views
+ * (the server writes the screen grid little endian).
+ */
+public class Decompressor {
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+
+    private final Inflater mInflater;
+    private final ReusableInputStream mOutputStream;
+    private final DataInputStream mOutput;
+    private byte[] mBuffer;
+    private int mLength;
+    //Views over mBuffer, made again when it grows
+    private ByteBuffer mBytes;
+    private IntBuffer mInts;
+
+    public Decompressor() {
+        mInflater = new Inflater();
+        mBuffer = new byte[INITIAL_CAPACITY];
+        mOutputStream = new ReusableInputStream(mBuffer);
+        mOutput = new DataInputStream(mOutputStream);
+        wrap();
+    }
+
+    private void wrap() {
+        mBytes = ByteBuffer.wrap(mBuffer).order(ByteOrder.LITTLE_ENDIAN);
+        mInts = mBytes.asIntBuffer();
+    }
+
+    /**
+     * Inflates the whole block.
+     *
+     * @param expected the inflated size the server told us, used to size the buffer up front.
+     * @return a stream over the inflated bytes. Only valid until the next call.
+     */
+    public DataInputStream inflate(byte[] input, int offset, int length, int expected)
+            throws IOException {
+        mInflater.reset();
+        mInflater.setInput(input, offset, length);
+        if (expected > mBuffer.length) {
+            mBuffer = new byte[Integer.highestOneBit(expected - 1) << 1];
+        }
+        int total = 0;
+        try {
+            while (!mInflater.finished()) {
+                if (total == mBuffer.length) {
+                    //Server undersold the size
+                    byte[] bigger = new byte[mBuffer.length << 1];
+                    System.arraycopy(mBuffer, 0, bigger, 0, total);
+                    mBuffer = bigger;
+                }
+                int count = mInflater.inflate(mBuffer, total, mBuffer.length - total);
+                if (count == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                    throw new EOFException("Compressed block ended early");
+                }
+                total += count;
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+        mLength = total;
+        mOutputStream.reset(mBuffer, total);
+        if (mBytes.array() != mBuffer) {
+            wrap();
+        }
+        return mOutput;
+    }
+
+    /**
+     * The inflated bytes from the last call, little endian, from position 0 up to the limit.
+     * Reading moves the position, so it is only good for one pass.
+     */
+    public ByteBuffer getLittleEndianBuffer() {
+        mBytes.clear();
+        mBytes.limit(mLength);
+        return mBytes;
+    }
+
+    /**
+     * The inflated bytes from the last call as little endian ints, for reading a whole grid
+     * with one get. Trailing bytes that don't make a whole int are left out.
+     */
+    public IntBuffer getIntBuffer() {
+        mInts.clear();
+        mInts.limit(mLength / 4);
+        return mInts;
+    }
+
+    //Inflated bytes from the last call. Only the first getLength() are valid.
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    //Frees the inflater. Nothing can be inflated after this.
+    public void end() {
+        mInflater.end();
+    }
+}
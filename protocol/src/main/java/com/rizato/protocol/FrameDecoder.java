@@ -0,0 +1,143 @@
+package com.rizato.protocol;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads whole frames from the server connection.
+ *
+ * A frame is a 1 byte command, a 3 byte big endian length, and then the payload. The decoder
+ * either blocks on a stream until the entire payload has arrived ({@link #next()}), or is fed
+ * whatever bytes a non-blocking channel had ({@link #decode(ByteBuffer)}). Either way handlers
+ * never see a partial frame. The payload lives in a buffer that is reused between frames, and
+ * only grows when a bigger frame shows up.
+ */
+public class FrameDecoder {
+    private static final int HEADER_LENGTH = 4;
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+
+    private final DataInputStream mInputStream;
+    private final byte[] mHeader;
+    private final ReusableInputStream mPayloadStream;
+    private final DataInputStream mPayload;
+    private byte[] mBuffer;
+    private byte mCommand;
+    private int mLength;
+    //Progress through the current frame when being fed from a channel
+    private int mHeaderFilled;
+    private int mPayloadFilled;
+
+    /**
+     * Creates a decoder that is fed through {@link #decode(ByteBuffer)}.
+     */
+    public FrameDecoder() {
+        this(null);
+    }
+
+    public FrameDecoder(InputStream inputStream) {
+        if (inputStream == null || inputStream instanceof DataInputStream) {
+            mInputStream = (DataInputStream) inputStream;
+        } else {
+            mInputStream = new DataInputStream(inputStream);
+        }
+        mHeader = new byte[HEADER_LENGTH];
+        mBuffer = new byte[INITIAL_CAPACITY];
+        mPayloadStream = new ReusableInputStream(mBuffer);
+        mPayload = new DataInputStream(mPayloadStream);
+    }
+
+    /**
+     * Blocks until the next frame has been read completely.
+     *
+     * @return false if the stream ended cleanly between frames.
+     * @throws EOFException if the stream ended part way through a frame.
+     */
+    public boolean next() throws IOException {
+        int command = mInputStream.read();
+        if (command < 0) {
+            return false;
+        }
+        mHeader[0] = (byte) command;
+        mInputStream.readFully(mHeader, 1, HEADER_LENGTH - 1);
+        startFrame();
+        mInputStream.readFully(mBuffer, 0, mLength);
+        mPayloadStream.reset(mBuffer, mLength);
+        return true;
+    }
+
+    /**
+     * Consumes bytes from the buffer until a frame is complete, or the buffer is empty.
+     * Call it again while it returns true, there may be more frames in the buffer.
+     *
+     * @return true if a whole frame is now available.
+     */
+    public boolean decode(ByteBuffer in) {
+        if (mHeaderFilled < HEADER_LENGTH) {
+            int count = Math.min(in.remaining(), HEADER_LENGTH - mHeaderFilled);
+            in.get(mHeader, mHeaderFilled, count);
+            mHeaderFilled += count;
+            if (mHeaderFilled < HEADER_LENGTH) {
+                return false;
+            }
+            startFrame();
+            mPayloadFilled = 0;
+        }
+        int count = Math.min(in.remaining(), mLength - mPayloadFilled);
+        in.get(mBuffer, mPayloadFilled, count);
+        mPayloadFilled += count;
+        if (mPayloadFilled < mLength) {
+            return false;
+        }
+        mHeaderFilled = 0;
+        mPayloadStream.reset(mBuffer, mLength);
+        return true;
+    }
+
+    //Parses the header, and makes sure the buffer can hold the payload
+    private void startFrame() {
+        mCommand = mHeader[0];
+        mLength = (mHeader[1] & 0xff) << 16 | (mHeader[2] & 0xff) << 8 | (mHeader[3] & 0xff);
+        if (mLength > mBuffer.length) {
+            //Growing to the next power of two, so a slowly increasing frame size doesn't
+            //reallocate every time
+            mBuffer = new byte[Integer.highestOneBit(mLength - 1) << 1];
+        }
+    }
+
+    public byte getCommand() {
+        return mCommand;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * The raw payload of the current frame. Only the first {@link #getLength()} bytes are valid,
+     * and the contents are overwritten by the next call to {@link #next()}.
+     */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * A stream over the payload of the current frame. Reading past the end of the frame throws
+     * an EOFException instead of eating into the next frame.
+     */
+    public DataInputStream getPayload() {
+        return mPayload;
+    }
+
+    //Bytes in the current frame that no handler has read yet
+    public int remaining() {
+        return mPayloadStream.available();
+    }
+
+    //Offset into the buffer of the next unread payload byte
+    public int position() {
+        return mPayloadStream.position();
+    }
+}
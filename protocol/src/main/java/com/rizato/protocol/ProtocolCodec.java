@@ -0,0 +1,179 @@
+package com.rizato.protocol;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.IntBuffer;
+
+/**
+ * Turns frames from the server into typed events.
+ *
+ * This is the whole of the server to client wire format, with nothing Android in it, so it runs
+ * (and can be benchmarked) on a plain JVM. The app hooks a listener up to it and does the
+ * Android specific parts: posting to the UI, loading bitmaps.
+ *
+ * One per connection, called from whichever thread reads the frames. Call {@link #end()} when
+ * the connection closes.
+ */
+public class ProtocolCodec {
+    public final static byte LOGIN_RESPONSE = 2;
+    public final static byte ZIPPED_SCREEN = 24;
+    public final static byte TEXT_OUT = 11;
+    public final static byte TILE_MAPPINGS = 8;
+    public final static byte QUIT = 13;
+    //The login result that isn't followed by a message
+    public final static byte LOGIN_OK = 3;
+
+    private final Listener mListener;
+    private final Decompressor mDecompressor;
+    private final ScreenFrame mScreen;
+
+    //Stats, for the last screen
+    private long mInflateNanos;
+    private long mDecodeNanos;
+
+    public ProtocolCodec(Listener listener) {
+        mListener = listener;
+        mDecompressor = new Decompressor();
+        mScreen = new ScreenFrame();
+    }
+
+    /**
+     * Decodes the frame, and calls the listener. Unknown frames are ignored.
+     *
+     * @throws IOException if the frame is malformed. Only that frame is lost, the next one can
+     *                     still be decoded.
+     */
+    public void decode(FrameDecoder frame) throws IOException {
+        DataInputStream payload = frame.getPayload();
+        switch (frame.getCommand()) {
+            case LOGIN_RESPONSE:
+                readLogin(payload);
+                break;
+            case TEXT_OUT:
+                readText(payload);
+                break;
+            case TILE_MAPPINGS:
+                readTiles(frame);
+                break;
+            case ZIPPED_SCREEN:
+                readScreen(frame);
+                break;
+            case QUIT:
+                mListener.onQuit();
+                break;
+            default:
+                //Unknown frames are already off the connection. Nothing to skip.
+                break;
+        }
+    }
+
+    //Frees the inflater. Nothing can be decoded after this.
+    public void end() {
+        mDecompressor.end();
+    }
+
+    private void readLogin(DataInputStream stream) throws IOException {
+        int version = stream.readInt();
+        byte result = stream.readByte();
+        mListener.onLogin(version, result);
+        if (result != LOGIN_OK) {
+            //Why it failed
+            readText(stream);
+        }
+    }
+
+    private void readText(DataInputStream stream) throws IOException {
+        byte style = stream.readByte();
+        String message = stream.readUTF();
+        mListener.onText(style, message);
+    }
+
+    private void readTiles(FrameDecoder frame) throws IOException {
+        DataInputStream zipped = frame.getPayload();
+        int zlength = zipped.readInt();
+        int ulength = zipped.readInt();
+        checkLength(frame, zlength);
+        DataInputStream stream = mDecompressor.inflate(frame.getBuffer(), frame.position(),
+                zlength, ulength);
+        zipped.skipBytes(zlength);
+        //The inflated stream is bounded to this block, so available() is what is left of it
+        while (stream.available() > 0) {
+            int tile = stream.readShort();
+            String path = stream.readUTF();
+            mListener.onTileMapping(tile, path);
+        }
+    }
+
+    private void readScreen(FrameDecoder frame) throws IOException {
+        DataInputStream zipped = frame.getPayload();
+        int size = zipped.readInt();
+        int width = (size & 0xffff0000) >> 16;
+        int height = size & 0xffff;
+        int zlength = zipped.readInt();
+        int ulength = zipped.readInt();
+        checkLength(frame, zlength);
+        //Inflating straight out of the frame buffer
+        long start = System.nanoTime();
+        mDecompressor.inflate(frame.getBuffer(), frame.position(), zlength, ulength);
+        long inflated = System.nanoTime();
+        zipped.skipBytes(zlength);
+        //The grid is little endian ints, and each item record is 4 bytes, so the whole block
+        //comes out in two bulk copies.
+        IntBuffer ints = mDecompressor.getIntBuffer();
+        int cells = width * height;
+        if (ints.remaining() < cells) {
+            throw new EOFException("Screen is missing terrain");
+        }
+        int items = ints.remaining() - cells;
+        ScreenFrame screen = mScreen;
+        screen.ensureCapacity(cells, items);
+        ints.get(screen.mTerrain, 0, cells);
+        ints.get(screen.mItems, 0, items);
+        screen.mWidth = width;
+        screen.mHeight = height;
+        screen.mItemCount = items;
+        mInflateNanos = inflated - start;
+        mDecodeNanos = System.nanoTime() - inflated;
+        mListener.onScreen(screen);
+    }
+
+    //The zipped block has to be inside the frame, or the inflater reads past the end of it
+    private static void checkLength(FrameDecoder frame, int zlength) throws IOException {
+        if (zlength < 0 || zlength > frame.remaining()) {
+            throw new IOException("Zipped length " + zlength + " doesn't fit in the "
+                    + frame.remaining() + " bytes left of the frame");
+        }
+    }
+
+    //Time spent inflating the last screen. Valid from onScreen on.
+    public long getLastInflateNanos() {
+        return mInflateNanos;
+    }
+
+    //Time spent reading the grid & items out of the last screen, after inflating it
+    public long getLastDecodeNanos() {
+        return mDecodeNanos;
+    }
+
+    /**
+     * Gets the decoded messages. Called on the thread that called decode.
+     */
+    public interface Listener {
+        /**
+         * @param result {@link #LOGIN_OK}, or a failure. A failure is followed by onText with
+         *               the reason.
+         */
+        void onLogin(int version, byte result);
+
+        void onText(byte style, String message);
+
+        //One tile id to image path pair from a TILE_MAPPINGS block
+        void onTileMapping(int tile, String path);
+
+        //The screen is only valid during the call
+        void onScreen(ScreenFrame screen);
+
+        void onQuit();
+    }
+}
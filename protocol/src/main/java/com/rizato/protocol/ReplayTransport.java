@@ -0,0 +1,183 @@
+package com.rizato.protocol;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a file from a {@link CaptureTransport} back through the same listener a live connection
+ * would use. Host and port are ignored, and anything written is dropped (but counted).
+ *
+ * Frames are either played at the pace they were recorded (scaled by the speed), or as fast as
+ * the listener takes them. The file is memory mapped, so reading it costs next to nothing next
+ * to the decoding. Captures have to be under 2GB.
+ *
+ * The counters make it usable as a benchmark. Played as fast as possible, frames over elapsed
+ * time is the decoding throughput. Played at the recorded pace, the lateness is how far the
+ * listener fell behind the real session.
+ */
+public class ReplayTransport implements Transport {
+    private static final String TAG = ReplayTransport.class.getSimpleName();
+    //Play the frames back to back, with no waiting
+    public static final float AS_FAST_AS_POSSIBLE = 0;
+    private static final long JOIN_TIMEOUT = 1000;
+
+    private final File mFile;
+    private final float mSpeed;
+    private Thread mThread;
+    private volatile boolean mClosed;
+
+    //Stats
+    private volatile long mFrames;
+    private volatile long mBytes;
+    private volatile long mElapsedNanos;
+    private volatile long mMaxLateNanos;
+    private volatile long mTotalLateNanos;
+    private volatile long mBytesWritten;
+
+    /**
+     * @param speed 1 for the recorded pace, 2 for twice as fast, and so on. Or
+     *              {@link #AS_FAST_AS_POSSIBLE}.
+     */
+    public ReplayTransport(File file, float speed) {
+        mFile = file;
+        mSpeed = speed;
+    }
+
+    @Override
+    public synchronized void connect(String host, int port, final Listener listener)
+            throws IOException {
+        close();
+        final MappedByteBuffer buffer;
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            //The mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            file.close();
+        }
+        if (buffer.remaining() < 12 || buffer.getInt() != CaptureTransport.MAGIC) {
+            throw new IOException(mFile + " is not a capture");
+        }
+        //When it was recorded. Not needed to play it.
+        buffer.getLong();
+        mClosed = false;
+        mFrames = 0;
+        mBytes = 0;
+        mElapsedNanos = 0;
+        mMaxLateNanos = 0;
+        mTotalLateNanos = 0;
+        mBytesWritten = 0;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                play(buffer, listener);
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    //Feeds the frames to the listener until the file ends
+    private void play(MappedByteBuffer buffer, Listener listener) {
+        IOException cause = null;
+        FrameDecoder decoder = new FrameDecoder();
+        long start = System.nanoTime();
+        try {
+            while (!mClosed && buffer.remaining() >= 8) {
+                long recorded = buffer.getLong();
+                if (mSpeed > 0) {
+                    long due = start + (long) (recorded / mSpeed);
+                    long wait = due - System.nanoTime();
+                    while (wait > 0 && !mClosed) {
+                        LockSupport.parkNanos(wait);
+                        wait = due - System.nanoTime();
+                    }
+                    long late = -wait;
+                    mTotalLateNanos += late;
+                    if (late > mMaxLateNanos) {
+                        mMaxLateNanos = late;
+                    }
+                }
+                if (mClosed) {
+                    break;
+                }
+                if (!decoder.decode(buffer)) {
+                    throw new EOFException("Capture ends part way through a frame");
+                }
+                listener.onFrame(decoder);
+                mFrames++;
+                mBytes += decoder.getLength() + 4;
+                mElapsedNanos = System.nanoTime() - start;
+            }
+        } catch (IOException e) {
+            cause = e;
+        } catch (RuntimeException e) {
+            //A bug in the listener still closes the connection, and says why
+            cause = new IOException(e);
+        } finally {
+            listener.onClosed(cause);
+        }
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        if (mClosed) {
+            throw new IOException("Transport is closed");
+        }
+        mBytesWritten += length;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mThread == null) {
+            return;
+        }
+        mClosed = true;
+        Thread thread = mThread;
+        mThread = null;
+        //Wakes it if it is waiting for the next frame
+        LockSupport.unpark(thread);
+        if (thread != Thread.currentThread()) {
+            try {
+                thread.join(JOIN_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    //Frames played so far
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    //Frame bytes played so far, headers included
+    public long getByteCount() {
+        return mBytes;
+    }
+
+    //Time from the start until the last frame was handled
+    public long getElapsedNanos() {
+        return mElapsedNanos;
+    }
+
+    //Furthest any frame started behind its recorded time. Zero when playing as fast as possible.
+    public long getMaxLateNanos() {
+        return mMaxLateNanos;
+    }
+
+    public long getAverageLateNanos() {
+        long frames = mFrames;
+        return frames == 0 ? 0 : mTotalLateNanos / frames;
+    }
+
+    //Bytes the client tried to send
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+}
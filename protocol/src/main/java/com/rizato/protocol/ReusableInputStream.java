@@ -0,0 +1,25 @@
+package com.rizato.protocol;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * ByteArrayInputStream that can be pointed at a new buffer, so we don't need a new stream
+ * (and a new DataInputStream around it) for every frame.
+ */
+public class ReusableInputStream extends ByteArrayInputStream {
+    public ReusableInputStream(byte[] buf) {
+        super(buf, 0, 0);
+    }
+
+    public void reset(byte[] buf, int length) {
+        this.buf = buf;
+        this.pos = 0;
+        this.mark = 0;
+        this.count = length;
+    }
+
+    //How far into the buffer we have read
+    public int position() {
+        return pos;
+    }
+}
@@ -0,0 +1,66 @@
+package com.rizato.protocol;
+
+/**
+ * One decoded ZIPPED_SCREEN. The arrays are reused for the next screen, so copy anything that
+ * has to outlive the {@link ProtocolCodec.Listener#onScreen(ScreenFrame)} call.
+ *
+ * Terrain is the whole grid, border ring included, stored column by column the same way the
+ * server sends it. Each cell is a packed int (tile, border priority and border flags).
+ *
+ * Items are kept as the raw records from the server, read as one little endian int: the y in
+ * the low byte, then the x, then the tile in the top 16 bits.
+ */
+public class ScreenFrame {
+    int mWidth;
+    int mHeight;
+    int[] mTerrain = new int[0];
+    int[] mItems = new int[0];
+    int mItemCount;
+
+    //Columns in the grid, ring included
+    public int getWidth() {
+        return mWidth;
+    }
+
+    //Rows in the grid, ring included
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getCellCount() {
+        return mWidth * mHeight;
+    }
+
+    /**
+     * The packed grid. Only the first {@link #getCellCount()} entries are this screen.
+     */
+    public int[] getTerrain() {
+        return mTerrain;
+    }
+
+    public int getItemCount() {
+        return mItemCount;
+    }
+
+    public int getItemX(int i) {
+        return (mItems[i] >>> 8) & 0xff;
+    }
+
+    public int getItemY(int i) {
+        return mItems[i] & 0xff;
+    }
+
+    public int getItemTile(int i) {
+        return mItems[i] >>> 16;
+    }
+
+    //Makes sure the arrays can hold a screen this size
+    void ensureCapacity(int cells, int items) {
+        if (mTerrain.length < cells) {
+            mTerrain = new int[cells];
+        }
+        if (mItems.length < items) {
+            mItems = new int[items];
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.rizato.protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Transport over a plain blocking socket. Reads happen on a thread of their own, and writes go
+ * straight to the socket on the caller's thread.
+ */
+public class SocketTransport implements Transport {
+    private static final String TAG = SocketTransport.class.getSimpleName();
+    private static final long JOIN_TIMEOUT = 1000;
+
+    private Socket mSocket;
+    private OutputStream mOutputStream;
+    private Thread mThread;
+    private volatile boolean mClosed;
+
+    @Override
+    public synchronized void connect(String host, int port, final Listener listener)
+            throws IOException {
+        close();
+        mClosed = false;
+        final Socket socket = new Socket(host, port);
+        //Commands are already batched before they get here. No reason to hold them back more.
+        socket.setTcpNoDelay(true);
+        mSocket = socket;
+        mOutputStream = socket.getOutputStream();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(socket, listener);
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    //Reads until the socket closes
+    private void read(Socket socket, Listener listener) {
+        IOException cause = null;
+        try {
+            FrameDecoder decoder = new FrameDecoder(socket.getInputStream());
+            while (!mClosed && decoder.next()) {
+                listener.onFrame(decoder);
+            }
+        } catch (IOException e) {
+            //Closing the socket underneath the read lands here too
+            if (!mClosed) {
+                cause = e;
+            }
+        } catch (RuntimeException e) {
+            //A bug in the listener still closes the connection, and says why
+            cause = new IOException(e);
+        } finally {
+            closeQuietly(socket);
+            listener.onClosed(cause);
+        }
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        OutputStream stream = mOutputStream;
+        if (stream == null || mClosed) {
+            throw new IOException("Transport is closed");
+        }
+        stream.write(data, offset, length);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mThread == null) {
+            return;
+        }
+        mClosed = true;
+        closeQuietly(mSocket);
+        Thread thread = mThread;
+        mThread = null;
+        mSocket = null;
+        mOutputStream = null;
+        if (thread != Thread.currentThread()) {
+            try {
+                thread.join(JOIN_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
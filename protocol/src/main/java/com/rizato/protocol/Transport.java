@@ -0,0 +1,42 @@
+package com.rizato.protocol;
+
+import java.io.IOException;
+
+/**
+ * The connection to the server. Implementations own whatever threads they need to read, and
+ * hand every complete frame to the listener.
+ *
+ * A transport can be connected again after it has been closed.
+ */
+public interface Transport {
+
+    /**
+     * Opens the connection and starts reading. Closes any previous connection first.
+     */
+    void connect(String host, int port, Listener listener) throws IOException;
+
+    void write(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Closes the connection, and waits for the reading thread to finish. Safe to call from the
+     * listener.
+     */
+    void close();
+
+    /**
+     * Gets the frames read off of the connection. Called on the transport's reading thread.
+     */
+    interface Listener {
+        /**
+         * The frame is only valid until this returns. The decoder reuses its buffer.
+         */
+        void onFrame(FrameDecoder frame);
+
+        /**
+         * The connection is gone. Cause is null if it was closed on purpose, or the server
+         * hung up cleanly. A RuntimeException thrown out of onFrame ends the connection too, and
+         * comes here wrapped as the cause.
+         */
+        void onClosed(IOException cause);
+    }
+}
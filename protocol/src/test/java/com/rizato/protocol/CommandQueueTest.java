@@ -0,0 +1,253 @@
+package com.rizato.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CommandQueueTest {
+    private static final long INTERVAL = 100;
+    private static final int BURST = 2;
+
+    private CommandQueue mQueue;
+    private CommandWriter mWriter;
+    private Recorder mTransport;
+
+    @Before
+    public void setUp() {
+        mQueue = new CommandQueue(INTERVAL, BURST);
+        mWriter = new CommandWriter();
+        mTransport = new Recorder();
+    }
+
+    @Test
+    public void heldMoveIsNotOvertaken() throws IOException {
+        mQueue.offer(Command.move("numpad-8"), 0);
+        mQueue.offer(Command.move("numpad-8"), 0);
+        //Out of tokens, so this one is held, and so is everything after it
+        mQueue.offer(Command.move("numpad-6"), 0);
+        mQueue.offer(Command.text("say hi"), 0);
+        mQueue.offer(Command.mouse(3, 4), 0);
+        send(0);
+        assertEquals(Arrays.asList("numpad-8", "numpad-8"), mTransport.mSent);
+        assertEquals(3, mQueue.size());
+        assertEquals(INTERVAL, mQueue.getHeldMoveDelay(0));
+
+        assertTrue(mQueue.releaseHeldMove(INTERVAL));
+        send(INTERVAL);
+        assertEquals(Arrays.asList("numpad-8", "numpad-8", "numpad-6", "say hi", "mouse 3 4"),
+                mTransport.mSent);
+    }
+
+    @Test
+    public void newerMoveReplacesHeldMoveAtTheBack() throws IOException {
+        useUpTokens();
+        send(0);
+        mQueue.offer(Command.move("numpad-4"), 0);
+        mQueue.offer(Command.text("say hi"), 0);
+        assertEquals(1, mQueue.offer(Command.move("numpad-2"), 0));
+        assertEquals(1, mQueue.getThrottledCount());
+        //The text was only waiting on the dropped move
+        send(0);
+        assertEquals(Arrays.asList("numpad-8", "numpad-8", "say hi"), mTransport.mSent);
+
+        assertTrue(mQueue.releaseHeldMove(INTERVAL));
+        send(INTERVAL);
+        assertEquals(Arrays.asList("numpad-8", "numpad-8", "say hi", "numpad-2"),
+                mTransport.mSent);
+    }
+
+    @Test
+    public void everyMouseIsSent() throws IOException {
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, mQueue.offer(Command.mouse(i, i), 0));
+        }
+        send(0);
+        assertEquals(Arrays.asList("mouse 0 0", "mouse 1 1", "mouse 2 2", "mouse 3 3",
+                "mouse 4 4"), mTransport.mSent);
+        assertEquals(0, mQueue.getSupersededCount());
+    }
+
+    @Test
+    public void newerViewReplacesUnsentView() throws IOException {
+        mQueue.offer(Command.view(13, 13), 0);
+        mQueue.offer(Command.text("say hi"), 0);
+        assertEquals(1, mQueue.offer(Command.view(21, 15), 0));
+        useUpTokens();
+        mQueue.offer(Command.move("numpad-6"), 0);
+        //Waits behind the move, so the one already queued is dropped
+        assertEquals(1, mQueue.offer(Command.view(9, 9), 0));
+        assertEquals(1, mQueue.offer(Command.view(11, 11), 0));
+        send(0);
+        assertTrue(mQueue.releaseHeldMove(INTERVAL));
+        send(INTERVAL);
+        assertEquals(Arrays.asList("say hi", "numpad-8", "numpad-8", "numpad-6", "#view 11 11"),
+                mTransport.mSent);
+        assertEquals(3, mQueue.getSupersededCount());
+    }
+
+    @Test
+    public void listenerHearsOnlyMovesWritten() throws IOException {
+        final List<String> written = new ArrayList<>();
+        mQueue.setListener(new CommandQueue.Listener() {
+            @Override
+            public void onMoveWritten(Command move) {
+                written.add(move.getText());
+            }
+        });
+        useUpTokens();
+        mQueue.offer(Command.text("say hi"), 0);
+        mQueue.offer(Command.move("numpad-4"), 0);
+        mQueue.offer(Command.move("numpad-6"), 0);
+        send(0);
+        assertEquals(Arrays.asList("numpad-8", "numpad-8"), written);
+        assertTrue(mQueue.releaseHeldMove(INTERVAL));
+        send(INTERVAL);
+        //The dropped move never went out
+        assertEquals(Arrays.asList("numpad-8", "numpad-8", "numpad-6"), written);
+    }
+
+    /**
+     * Thousands of random commands, sent the way the network thread does it: batches every
+     * 20ms or so, and the held move released as soon as there is a token.
+     */
+    @Test
+    public void randomCommands() throws IOException {
+        Random random = new Random(7);
+        List<String> offered = new ArrayList<>();
+        List<Integer> kinds = new ArrayList<>();
+        long now = 0;
+        long lastDrain = 0;
+        //The bucket starts filling from the first command
+        long start = -1;
+        int moves = 0;
+        String lastMove = null;
+        String lastView = null;
+        for (int i = 0; i < 20000; i++) {
+            now += random.nextInt(15);
+            Command command;
+            int roll = random.nextInt(10);
+            if (roll < 5) {
+                command = Command.move("numpad-" + (1 + random.nextInt(9)) + " " + moves++);
+                lastMove = command.getText();
+            } else if (roll < 7) {
+                command = Command.view(random.nextInt(50), i);
+                lastView = command.getText();
+            } else if (roll < 9) {
+                command = Command.mouse(random.nextInt(50), i);
+            } else {
+                command = Command.text("say " + i);
+            }
+            if (start < 0) {
+                start = now;
+            }
+            offered.add(command.getText());
+            kinds.add(command.getKind());
+            mQueue.offer(command, now);
+            if (mQueue.getHeldMoveDelay(now) == 0) {
+                assertTrue(mQueue.releaseHeldMove(now));
+            }
+            if (now - lastDrain >= 20) {
+                send(now);
+                lastDrain = now;
+            }
+        }
+        //Lets the last held move out
+        now += INTERVAL;
+        mQueue.releaseHeldMove(now);
+        send(now);
+
+        assertTrue(mQueue.isEmpty());
+        assertEquals(0, mQueue.size());
+        assertEquals(-1, mQueue.getHeldMoveDelay(now));
+
+        List<String> sent = mTransport.mSent;
+        assertEquals(offered.size(), sent.size() + mQueue.getSupersededCount()
+                + mQueue.getThrottledCount());
+        assertEquals(sent.size(), mWriter.getCommandsWritten());
+        assertEquals(mTransport.mBytes, mWriter.getBytesWritten());
+        //Sent in the order they were offered, with only views & moves left out
+        int j = 0;
+        for (int i = 0; i < offered.size(); i++) {
+            if (j < sent.size() && offered.get(i).equals(sent.get(j))) {
+                j++;
+            } else {
+                int kind = kinds.get(i);
+                assertTrue("Dropped " + offered.get(i),
+                        kind == Command.VIEW || kind == Command.MOVE);
+            }
+        }
+        assertEquals(sent.size(), j);
+        //The newest of each is never dropped
+        assertEquals(lastMove, lastOf(sent, "numpad-"));
+        assertEquals(lastView, lastOf(sent, "#view"));
+        //Never more moves out by any time than the bucket allows
+        List<Long> moveTimes = mTransport.mMoveTimes;
+        for (int i = 0; i < moveTimes.size(); i++) {
+            assertTrue("Move " + i + " went out too soon",
+                    i + 1 <= BURST + (moveTimes.get(i) - start) / INTERVAL);
+        }
+        //And the bucket isn't holding moves back for no reason
+        assertTrue(moveTimes.size() >= (now - start) / INTERVAL / 2);
+    }
+
+    private void useUpTokens() {
+        for (int i = 0; i < BURST; i++) {
+            mQueue.offer(Command.move("numpad-8"), 0);
+        }
+    }
+
+    private void send(long now) throws IOException {
+        mTransport.mNow = now;
+        mQueue.drainTo(mWriter);
+        mWriter.flush(mTransport);
+    }
+
+    private static String lastOf(List<String> sent, String prefix) {
+        for (int i = sent.size() - 1; i >= 0; i--) {
+            if (sent.get(i).startsWith(prefix)) {
+                return sent.get(i);
+            }
+        }
+        return null;
+    }
+
+    //Decodes what would have gone to the server
+    private static class Recorder implements Transport {
+        final List<String> mSent = new ArrayList<>();
+        final List<Long> mMoveTimes = new ArrayList<>();
+        long mBytes;
+        long mNow;
+
+        @Override
+        public void connect(String host, int port, Listener listener) {
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            mBytes += length;
+            DataInputStream stream = new DataInputStream(
+                    new ByteArrayInputStream(data, offset, length));
+            while (stream.available() > 0) {
+                String command = stream.readUTF();
+                mSent.add(command);
+                if (command.startsWith("numpad-")) {
+                    mMoveTimes.add(mNow);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
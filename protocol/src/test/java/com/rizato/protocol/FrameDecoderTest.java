@@ -0,0 +1,227 @@
+package com.rizato.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameDecoderTest {
+
+    @Test
+    public void nextReadsHeaderSplitAcrossReads() throws IOException {
+        byte[] payload = payload(10, 1);
+        //One byte per read, so the header comes in four pieces
+        FrameDecoder decoder = new FrameDecoder(new Trickle(frame(7, payload), 1));
+        assertTrue(decoder.next());
+        assertFrame(decoder, 7, payload);
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void nextReadsPayloadSplitAcrossReads() throws IOException {
+        //Bigger than the starting buffer, in reads that don't line up with anything
+        byte[] payload = payload(20000, 2);
+        FrameDecoder decoder = new FrameDecoder(new Trickle(frame(24, payload), 333));
+        assertTrue(decoder.next());
+        assertFrame(decoder, 24, payload);
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void nextReadsSeveralFramesInOneBuffer() throws IOException {
+        byte[] first = payload(5, 3);
+        byte[] second = payload(9000, 4);
+        byte[] third = payload(1, 5);
+        FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(
+                concat(frame(2, first), frame(8, second), frame(11, third))));
+        assertTrue(decoder.next());
+        assertFrame(decoder, 2, first);
+        assertTrue(decoder.next());
+        assertFrame(decoder, 8, second);
+        assertTrue(decoder.next());
+        assertFrame(decoder, 11, third);
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void nextReadsZeroLengthPayload() throws IOException {
+        byte[] after = payload(3, 6);
+        FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(
+                concat(frame(13, new byte[0]), frame(11, after))));
+        assertTrue(decoder.next());
+        assertFrame(decoder, 13, new byte[0]);
+        assertTrue(decoder.next());
+        assertFrame(decoder, 11, after);
+    }
+
+    @Test(expected = EOFException.class)
+    public void nextThrowsOnEofInHeader() throws IOException {
+        byte[] frame = frame(24, payload(10, 7));
+        new FrameDecoder(new ByteArrayInputStream(Arrays.copyOf(frame, 2))).next();
+    }
+
+    @Test
+    public void nextThrowsOnEofInPayload() throws IOException {
+        byte[] whole = frame(2, payload(4, 8));
+        byte[] frame = frame(24, payload(100, 9));
+        FrameDecoder decoder = new FrameDecoder(new ByteArrayInputStream(
+                concat(whole, Arrays.copyOf(frame, 50))));
+        assertTrue(decoder.next());
+        try {
+            decoder.next();
+            throw new AssertionError("Read a frame that was cut off");
+        } catch (EOFException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void decodeReadsHeaderSplitAcrossBuffers() {
+        byte[] payload = payload(10, 1);
+        byte[] frame = frame(7, payload);
+        FrameDecoder decoder = new FrameDecoder();
+        for (int i = 0; i < 3; i++) {
+            ByteBuffer piece = ByteBuffer.wrap(frame, i, 1);
+            assertFalse(decoder.decode(piece));
+            assertEquals(0, piece.remaining());
+        }
+        assertTrue(decoder.decode(ByteBuffer.wrap(frame, 3, frame.length - 3)));
+        assertFrame(decoder, 7, payload);
+    }
+
+    @Test
+    public void decodeReadsPayloadSplitAcrossBuffers() {
+        byte[] payload = payload(20000, 2);
+        byte[] frame = frame(24, payload);
+        FrameDecoder decoder = new FrameDecoder();
+        int offset = 0;
+        int frames = 0;
+        while (offset < frame.length) {
+            int count = Math.min(777, frame.length - offset);
+            if (decoder.decode(ByteBuffer.wrap(frame, offset, count))) {
+                frames++;
+            }
+            offset += count;
+        }
+        assertEquals(1, frames);
+        assertFrame(decoder, 24, payload);
+    }
+
+    @Test
+    public void decodeReadsSeveralFramesInOneBuffer() {
+        byte[] first = payload(5, 3);
+        byte[] second = payload(9000, 4);
+        byte[] third = payload(1, 5);
+        ByteBuffer in = ByteBuffer.wrap(concat(frame(2, first), frame(8, second),
+                frame(11, third)));
+        FrameDecoder decoder = new FrameDecoder();
+        assertTrue(decoder.decode(in));
+        assertFrame(decoder, 2, first);
+        assertTrue(decoder.decode(in));
+        assertFrame(decoder, 8, second);
+        assertTrue(decoder.decode(in));
+        assertFrame(decoder, 11, third);
+        assertEquals(0, in.remaining());
+        assertFalse(decoder.decode(in));
+    }
+
+    @Test
+    public void decodeReadsZeroLengthPayload() {
+        byte[] after = payload(3, 6);
+        ByteBuffer in = ByteBuffer.wrap(concat(frame(13, new byte[0]), frame(11, after)));
+        FrameDecoder decoder = new FrameDecoder();
+        assertTrue(decoder.decode(in));
+        assertFrame(decoder, 13, new byte[0]);
+        assertEquals(after.length + 4, in.remaining());
+        assertTrue(decoder.decode(in));
+        assertFrame(decoder, 11, after);
+    }
+
+    @Test
+    public void decodeWaitsWhenInputEndsMidFrame() {
+        byte[] payload = payload(100, 9);
+        byte[] frame = frame(24, payload);
+        FrameDecoder decoder = new FrameDecoder();
+        //Running dry part way through is not an error. The rest comes with the next read.
+        assertFalse(decoder.decode(ByteBuffer.wrap(frame, 0, 50)));
+        assertFalse(decoder.decode(ByteBuffer.wrap(frame, 50, 0)));
+        assertTrue(decoder.decode(ByteBuffer.wrap(frame, 50, frame.length - 50)));
+        assertFrame(decoder, 24, payload);
+    }
+
+    private static void assertFrame(FrameDecoder decoder, int command, byte[] payload) {
+        assertEquals(command, decoder.getCommand());
+        assertEquals(payload.length, decoder.getLength());
+        assertEquals(payload.length, decoder.remaining());
+        assertEquals(0, decoder.position());
+        assertArrayEquals(payload, Arrays.copyOf(decoder.getBuffer(), decoder.getLength()));
+    }
+
+    private static byte[] payload(int length, int seed) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (i * 31 + seed);
+        }
+        return payload;
+    }
+
+    private static byte[] frame(int command, byte[] payload) {
+        int length = payload.length;
+        byte[] frame = new byte[length + 4];
+        frame[0] = (byte) command;
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        System.arraycopy(payload, 0, frame, 4, length);
+        return frame;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            bytes.write(part, 0, part.length);
+        }
+        return bytes.toByteArray();
+    }
+
+    //Hands out at most a few bytes a read, like a slow socket
+    private static class Trickle extends InputStream {
+        private final byte[] mData;
+        private final int mMaxRead;
+        private int mPosition;
+
+        Trickle(byte[] data, int maxRead) {
+            mData = data;
+            mMaxRead = maxRead;
+        }
+
+        @Override
+        public int read() {
+            return mPosition < mData.length ? mData[mPosition++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (mPosition == mData.length) {
+                return -1;
+            }
+            int count = Math.min(Math.min(length, mMaxRead), mData.length - mPosition);
+            System.arraycopy(mData, mPosition, buffer, offset, count);
+            mPosition += count;
+            return count;
+        }
+    }
+}
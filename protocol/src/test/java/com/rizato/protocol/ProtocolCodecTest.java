@@ -0,0 +1,261 @@
+package com.rizato.protocol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProtocolCodecTest {
+    private static final int SIDE = 52;
+    private static final int ITEMS = 300;
+
+    private FrameDecoder mDecoder;
+    private ProtocolCodec mCodec;
+    private Screens mListener;
+
+    @Before
+    public void setUp() {
+        mDecoder = new FrameDecoder();
+        mListener = new Screens();
+        mCodec = new ProtocolCodec(mListener);
+    }
+
+    @After
+    public void tearDown() {
+        mCodec.end();
+    }
+
+    @Test
+    public void decodesScreen() throws IOException {
+        decode(zippedScreen(SIDE, SIDE, ITEMS, 1, -1));
+        assertEquals(1, mListener.mCount);
+        assertEquals(SIDE, mListener.mWidth);
+        assertEquals(SIDE, mListener.mHeight);
+        assertEquals(ITEMS, mListener.mItems);
+        assertEquals(tile(SIDE - 1, SIDE - 1, 1), mListener.mLast);
+        ScreenFrame screen = mListener.mScreen;
+        for (int i = 0; i < ITEMS; i++) {
+            assertEquals("x of item " + i, i % SIDE, screen.getItemX(i));
+            assertEquals("y of item " + i, i % SIDE, screen.getItemY(i));
+            assertEquals("tile of item " + i, 100 + i, screen.getItemTile(i));
+        }
+    }
+
+    @Test
+    public void itemsKeepTheirOwnXAndY() throws IOException {
+        //Different sides, so a swapped x & y shows
+        decode(zippedScreen(SIDE, 9, ITEMS, 1, -1));
+        ScreenFrame screen = mListener.mScreen;
+        assertEquals(ITEMS, screen.getItemCount());
+        for (int i = 0; i < ITEMS; i++) {
+            assertEquals("x of item " + i, i % SIDE, screen.getItemX(i));
+            assertEquals("y of item " + i, i % 9, screen.getItemY(i));
+        }
+    }
+
+    @Test
+    public void decodesEveryTileMapping() throws IOException {
+        String[] paths = {"terrain/grass.png", "terrain/water.png", "items/sword.png"};
+        decode(tileMappings(paths));
+        //Every mapping, the last one in the block included
+        assertEquals(Arrays.asList(1, 2, 3), mListener.mTiles);
+        assertEquals(Arrays.asList(paths), mListener.mPaths);
+    }
+
+    /**
+     * Once the buffers have grown to the screen size, decoding another screen the same size
+     * shouldn't allocate at all.
+     */
+    @Test
+    public void steadyStateScreensDoNotAllocate() throws IOException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        ByteBuffer[] frames = new ByteBuffer[4];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = ByteBuffer.wrap(zippedScreen(SIDE, SIDE, ITEMS, i, -1));
+        }
+        //Grows the buffers, and gets the decode path compiled
+        for (int i = 0; i < 2000; i++) {
+            decode(frames[i % frames.length]);
+        }
+        //What reading the counter costs by itself
+        long before = threads.getThreadAllocatedBytes(thread);
+        long overhead = threads.getThreadAllocatedBytes(thread) - before;
+
+        int decodes = 1000;
+        before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < decodes; i++) {
+            decode(frames[i % frames.length]);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before - overhead;
+        assertEquals(2000 + decodes, mListener.mCount);
+        //Less than a byte a screen. Anything real would be at least an object header each time.
+        assertTrue("Allocated " + allocated + " bytes over " + decodes + " screens",
+                allocated < decodes);
+    }
+
+    @Test
+    public void zippedLengthPastTheFrameIsRejected() throws IOException {
+        ByteBuffer frame = ByteBuffer.wrap(zippedScreen(SIDE, SIDE, ITEMS, 1, 1 << 20));
+        try {
+            decode(frame);
+            fail("Decoded a screen with a zipped length past the end of the frame");
+        } catch (IOException e) {
+            //Expected
+        }
+        assertEquals(0, mListener.mCount);
+        //The codec is still good for the next frame
+        decode(zippedScreen(SIDE, SIDE, ITEMS, 1, -1));
+        assertEquals(1, mListener.mCount);
+    }
+
+    @Test(expected = IOException.class)
+    public void negativeZippedLengthIsRejected() throws IOException {
+        decode(zippedScreen(SIDE, SIDE, ITEMS, 1, Integer.MIN_VALUE));
+    }
+
+    private void decode(byte[] frame) throws IOException {
+        decode(ByteBuffer.wrap(frame));
+    }
+
+    private void decode(ByteBuffer frame) throws IOException {
+        frame.clear();
+        assertTrue(mDecoder.decode(frame));
+        mCodec.decode(mDecoder);
+    }
+
+    private static int tile(int x, int y, int seed) {
+        return (x / 4 + y / 3 + seed) % 7;
+    }
+
+    /**
+     * A whole TILE_MAPPINGS frame, with the paths mapped to tiles 1 and up.
+     */
+    private static byte[] tileMappings(String[] paths) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        DataOutputStream mappings = new DataOutputStream(raw);
+        for (int i = 0; i < paths.length; i++) {
+            mappings.writeShort(i + 1);
+            mappings.writeUTF(paths[i]);
+        }
+        byte[] inflated = raw.toByteArray();
+        byte[] zipped = deflate(inflated);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(bytes);
+        int payload = 8 + zipped.length;
+        stream.writeByte(ProtocolCodec.TILE_MAPPINGS);
+        stream.writeByte(payload >>> 16);
+        stream.writeByte(payload >>> 8);
+        stream.writeByte(payload);
+        stream.writeInt(zipped.length);
+        stream.writeInt(inflated.length);
+        stream.write(zipped);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] inflated) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(inflated);
+        deflater.finish();
+        byte[] zipped = new byte[inflated.length + 64];
+        int length = 0;
+        while (!deflater.finished()) {
+            length += deflater.deflate(zipped, length, zipped.length - length);
+        }
+        deflater.end();
+        return Arrays.copyOf(zipped, length);
+    }
+
+    /**
+     * A whole ZIPPED_SCREEN frame, header included.
+     *
+     * @param zlength the zipped length to claim, or -1 for the real one
+     */
+    private static byte[] zippedScreen(int width, int height, int items, int seed, int zlength)
+            throws IOException {
+        ByteBuffer raw = ByteBuffer.allocate((width * height + items) * 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                raw.putInt(tile(x, y, seed));
+            }
+        }
+        for (int i = 0; i < items; i++) {
+            raw.put((byte) (i % height));
+            raw.put((byte) (i % width));
+            raw.putShort((short) (100 + i));
+        }
+        byte[] inflated = raw.array();
+        byte[] zipped = deflate(inflated);
+        int length = zipped.length;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(bytes);
+        int payload = 12 + length;
+        stream.writeByte(ProtocolCodec.ZIPPED_SCREEN);
+        stream.writeByte(payload >>> 16);
+        stream.writeByte(payload >>> 8);
+        stream.writeByte(payload);
+        stream.writeInt(width << 16 | height);
+        stream.writeInt(zlength == -1 ? length : zlength);
+        stream.writeInt(inflated.length);
+        stream.write(zipped, 0, length);
+        return bytes.toByteArray();
+    }
+
+    private static class Screens implements ProtocolCodec.Listener {
+        int mCount;
+        int mWidth;
+        int mHeight;
+        int mItems;
+        int mLast;
+        //Reused by the codec, so only good until the next screen
+        ScreenFrame mScreen;
+        final List<Integer> mTiles = new ArrayList<>();
+        final List<String> mPaths = new ArrayList<>();
+
+        @Override
+        public void onScreen(ScreenFrame screen) {
+            mCount++;
+            mWidth = screen.getWidth();
+            mHeight = screen.getHeight();
+            mItems = screen.getItemCount();
+            mLast = screen.getTerrain()[screen.getCellCount() - 1];
+            mScreen = screen;
+        }
+
+        @Override
+        public void onLogin(int version, byte result) {
+        }
+
+        @Override
+        public void onText(byte style, String message) {
+        }
+
+        @Override
+        public void onTileMapping(int tile, String path) {
+            mTiles.add(tile);
+            mPaths.add(path);
+        }
+
+        @Override
+        public void onQuit() {
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package com.rizato.server;
+
+import com.rizato.protocol.ChannelTransport;
+import com.rizato.protocol.FrameDecoder;
+import com.rizato.protocol.SocketTransport;
+import com.rizato.protocol.Transport;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the client's readers on a desktop JVM, the way the app uses them:
+ *
+ * - poll: the old loop, spinning on available() and sleeping 10ms for the rest of a frame
+ * - socket: SocketTransport, a thread blocking in FrameDecoder.next()
+ * - channel: ChannelTransport, one selector thread for both directions
+ *
+ * For each it prints the CPU used while the connection is idle, the time from a frame's header
+ * being written to the frame being handed over (whole, and with the payload a couple of
+ * milliseconds behind the header, like a slow link), and against a stand in server in its own
+ * process: read & write syscalls per frame (from /proc/self/io, so Linux only) and the thread
+ * count while connected & after reconnecting.
+ *
+ * Run it with ./gradlew :server:bench. The screen rate & view for the stand in server can be
+ * passed the same way as for :server:run.
+ */
+public class ClientBench {
+    private static final String HOST = "127.0.0.1";
+    private static final int SERVER_PORT = 2223;
+    private static final long IDLE_MILLIS = 3000;
+    private static final long SERVER_MILLIS = 5000;
+    private static final int LATENCY_FRAMES = 500;
+    private static final long LATENCY_PERIOD_MILLIS = 10;
+    //Delay between the header and the rest, for the split frames
+    private static final long SPLIT_DELAY_MILLIS = 2;
+    private static final int PAYLOAD_LENGTH = 2048;
+    private static final int RECONNECTS = 5;
+    private static final String[] READERS = {"poll", "socket", "channel"};
+
+    public static void main(String[] args) throws Exception {
+        String[] serverArgs = args.length > 0 ? args
+                : new String[]{"--screen-rate", "30", "--view", "50", "--chat-rate", "10"};
+        Process server = startServer(serverArgs);
+        try {
+            for (String reader : READERS) {
+                idle(reader);
+                latency(reader, false);
+                latency(reader, true);
+                server(reader);
+            }
+        } finally {
+            server.destroy();
+        }
+    }
+
+    //CPU used by the process while connected to a server that sends nothing
+    private static void idle(String reader) throws Exception {
+        ServerSocket listener = new ServerSocket(0);
+        Reader client = open(reader);
+        client.connect(HOST, listener.getLocalPort());
+        Socket socket = listener.accept();
+        Thread.sleep(500);
+        long cpu = getProcessCpuTime();
+        long start = System.nanoTime();
+        Thread.sleep(IDLE_MILLIS);
+        double used = (getProcessCpuTime() - cpu) / 1e6 / ((System.nanoTime() - start) / 1e9);
+        client.close();
+        socket.close();
+        listener.close();
+        System.out.println(String.format("%-7s idle: %.1f ms CPU a second", reader, used));
+    }
+
+    //From the first byte of each frame going out to the reader handing the frame over
+    private static void latency(String reader, final boolean split) throws Exception {
+        final ServerSocket listener = new ServerSocket(0);
+        final long[] written = new long[LATENCY_FRAMES];
+        final long[] latencies = new long[LATENCY_FRAMES];
+        final AtomicInteger received = new AtomicInteger();
+        Reader client = open(reader);
+        client.setSink(new Sink() {
+            @Override
+            public void onFrame(byte[] payload, int length) {
+                long now = System.nanoTime();
+                int seq = (payload[0] & 0xff) << 8 | (payload[1] & 0xff);
+                latencies[seq] = now - written[seq];
+                received.incrementAndGet();
+            }
+        });
+        client.connect(HOST, listener.getLocalPort());
+        Socket socket = listener.accept();
+        socket.setTcpNoDelay(true);
+        OutputStream out = socket.getOutputStream();
+        byte[] frame = new byte[PAYLOAD_LENGTH + 4];
+        frame[0] = 1;
+        frame[1] = (byte) (PAYLOAD_LENGTH >>> 16);
+        frame[2] = (byte) (PAYLOAD_LENGTH >>> 8);
+        frame[3] = (byte) PAYLOAD_LENGTH;
+        for (int seq = 0; seq < LATENCY_FRAMES; seq++) {
+            frame[4] = (byte) (seq >>> 8);
+            frame[5] = (byte) seq;
+            written[seq] = System.nanoTime();
+            if (split) {
+                out.write(frame, 0, 4 + PAYLOAD_LENGTH / 2);
+                out.flush();
+                Thread.sleep(SPLIT_DELAY_MILLIS);
+                out.write(frame, 4 + PAYLOAD_LENGTH / 2, PAYLOAD_LENGTH / 2);
+            } else {
+                out.write(frame);
+            }
+            out.flush();
+            Thread.sleep(LATENCY_PERIOD_MILLIS);
+        }
+        long deadline = System.currentTimeMillis() + 1000;
+        while (received.get() < LATENCY_FRAMES && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        client.close();
+        socket.close();
+        listener.close();
+        int count = received.get();
+        //The split frames are timed from the header too, so the delay is taken back off
+        long offset = split ? SPLIT_DELAY_MILLIS * 1000000 : 0;
+        for (int i = 0; i < LATENCY_FRAMES; i++) {
+            latencies[i] -= offset;
+        }
+        Arrays.sort(latencies);
+        System.out.println(String.format("%-7s %s frames: header to dispatch p50 %.0f us, "
+                        + "p99 %.0f us, max %.0f us (%d of %d frames)", reader,
+                split ? "split" : "whole", latencies[LATENCY_FRAMES / 2] / 1e3,
+                latencies[LATENCY_FRAMES * 99 / 100] / 1e3, latencies[LATENCY_FRAMES - 1] / 1e3,
+                count, LATENCY_FRAMES));
+    }
+
+    //Syscalls per frame from the stand in server, and threads through a few reconnects
+    private static void server(String reader) throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final AtomicInteger frames = new AtomicInteger();
+        Sink counter = new Sink() {
+            @Override
+            public void onFrame(byte[] payload, int length) {
+                frames.incrementAndGet();
+            }
+        };
+        int before = threads.getThreadCount();
+        Reader client = open(reader);
+        client.setSink(counter);
+        client.connect(HOST, SERVER_PORT);
+        client.write(login());
+        //Past the login & tile mappings
+        Thread.sleep(1000);
+        int connected = threads.getThreadCount();
+        long[] io = readProcessIo();
+        int start = frames.get();
+        Thread.sleep(SERVER_MILLIS);
+        long[] after = readProcessIo();
+        int count = frames.get() - start;
+        client.close();
+        for (int i = 0; i < RECONNECTS; i++) {
+            client.connect(HOST, SERVER_PORT);
+            client.write(login());
+            Thread.sleep(200);
+            client.close();
+        }
+        Thread.sleep(200);
+        int closed = threads.getThreadCount();
+        System.out.println(String.format("%-7s stand in server: %d frames in %ds, "
+                        + "%.2f reads & %.2f writes a frame, threads %d before, %d connected, "
+                        + "%d after %d reconnects", reader, count, SERVER_MILLIS / 1000,
+                (after[0] - io[0]) / (double) count, (after[1] - io[1]) / (double) count,
+                before, connected, closed, RECONNECTS));
+    }
+
+    //Same as the app's login, with a made up name
+    private static byte[] login() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(1);
+        out.writeShort(13);
+        out.writeShort(13);
+        out.writeUTF("bench");
+        out.writeUTF("");
+        out.writeUTF("Client Bench");
+        return bytes.toByteArray();
+    }
+
+    private static Process startServer(String[] args) throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+                + "java";
+        String[] command = new String[args.length + 6];
+        command[0] = java;
+        command[1] = "-cp";
+        command[2] = System.getProperty("java.class.path");
+        command[3] = MapServer.class.getName();
+        command[4] = "--port";
+        command[5] = String.valueOf(SERVER_PORT);
+        System.arraycopy(args, 0, command, 6, args.length);
+        Process process = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        //Waits for it to listen
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket(HOST, SERVER_PORT).close();
+                return process;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        process.destroy();
+        throw new IOException("The stand in server didn't start");
+    }
+
+    private static long getProcessCpuTime() {
+        return ((com.sun.management.OperatingSystemMXBean)
+                ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    //syscr & syscw for this process
+    private static long[] readProcessIo() throws IOException {
+        long[] io = new long[2];
+        BufferedReader in = new BufferedReader(new FileReader("/proc/self/io"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("syscr:")) {
+                    io[0] = Long.parseLong(line.substring(6).trim());
+                } else if (line.startsWith("syscw:")) {
+                    io[1] = Long.parseLong(line.substring(6).trim());
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return io;
+    }
+
+    private static Reader open(String reader) {
+        switch (reader) {
+            case "poll":
+                return new PollReader();
+            case "socket":
+                return new TransportReader(new SocketTransport());
+            default:
+                return new TransportReader(new ChannelTransport());
+        }
+    }
+
+    private interface Sink {
+        void onFrame(byte[] payload, int length);
+    }
+
+    private interface Reader {
+        void setSink(Sink sink);
+
+        void connect(String host, int port) throws IOException;
+
+        void write(byte[] data) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private static class TransportReader implements Reader, Transport.Listener {
+        private final Transport mTransport;
+        private volatile Sink mSink;
+
+        TransportReader(Transport transport) {
+            mTransport = transport;
+        }
+
+        @Override
+        public void setSink(Sink sink) {
+            mSink = sink;
+        }
+
+        @Override
+        public void connect(String host, int port) throws IOException {
+            mTransport.connect(host, port, this);
+        }
+
+        @Override
+        public void write(byte[] data) throws IOException {
+            mTransport.write(data, 0, data.length);
+        }
+
+        @Override
+        public void close() {
+            mTransport.close();
+        }
+
+        @Override
+        public void onFrame(FrameDecoder frame) {
+            Sink sink = mSink;
+            if (sink != null) {
+                sink.onFrame(frame.getBuffer(), frame.getLength());
+            }
+        }
+
+        @Override
+        public void onClosed(IOException cause) {
+            if (cause != null) {
+                cause.printStackTrace();
+            }
+        }
+    }
+
+    //The reading loop the app had before FrameDecoder, as it was
+    private static class PollReader implements Reader, Runnable {
+        private Socket mSocket;
+        private DataInputStream mInputStream;
+        private Thread mThread;
+        private volatile boolean mCancelled;
+        private volatile Sink mSink;
+        private byte[] mBuffer = new byte[8 * 1024];
+
+        @Override
+        public void setSink(Sink sink) {
+            mSink = sink;
+        }
+
+        @Override
+        public void connect(String host, int port) throws IOException {
+            mSocket = new Socket(host, port);
+            mSocket.setTcpNoDelay(true);
+            mInputStream = new DataInputStream(mSocket.getInputStream());
+            mCancelled = false;
+            mThread = new Thread(this, "PollReader");
+            mThread.start();
+        }
+
+        @Override
+        public void write(byte[] data) throws IOException {
+            mSocket.getOutputStream().write(data);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mCancelled = true;
+            mSocket.close();
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!mCancelled) {
+                    if (mInputStream.available() > 0) {
+                        //The command, which the bench doesn't care about
+                        mInputStream.readByte();
+                        int length = (mInputStream.readByte() & 0xff) << 16
+                                | (mInputStream.readByte() & 0xff) << 8
+                                | (mInputStream.readByte() & 0xff);
+                        while (mInputStream.available() < length && !mCancelled) {
+                            //Sleeping if not enough data
+                            Thread.sleep(10);
+                        }
+                        if (length > mBuffer.length) {
+                            mBuffer = new byte[length];
+                        }
+                        mInputStream.readFully(mBuffer, 0, length);
+                        Sink sink = mSink;
+                        if (sink != null) {
+                            sink.onFrame(mBuffer, length);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                //Closed underneath the read
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.rizato.server;
+
+import com.rizato.protocol.ProtocolCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * One connected client. The thread running it reads the login and then the commands, while the
+ * shared scheduler sends screens and chat on a timer.
+ *
+ * The player walks an endless {@link World}, one tile per numpad command. Every screen is a whole
+ * grid, like the real server sends.
+ */
+class ClientSession implements Runnable {
+    private static final int VERSION = 1;
+    private static final byte STYLE_NORMAL = 0;
+
+    private final Socket mSocket;
+    private final ServerConfig mConfig;
+    private final World mWorld;
+    private final ScheduledExecutorService mScheduler;
+    private final FrameSender mSender;
+    private final Deflater mDeflater;
+    private final Payload mPayload;
+    private final DataOutputStream mPayloadStream;
+
+    //Guarded by this. The reader changes them, the screen timer reads them.
+    private int mX;
+    private int mY;
+    private int mWidth;
+    private int mHeight;
+
+    private String mName;
+    private ByteBuffer mRaw;
+    private byte[] mZipped;
+    private ScheduledFuture<?> mScreens;
+    private ScheduledFuture<?> mChat;
+    private int mChatLine;
+
+    //Stats
+    private long mCommands;
+    private long mScreenCount;
+
+    ClientSession(Socket socket, ServerConfig config, World world,
+                  ScheduledExecutorService scheduler) throws IOException {
+        mSocket = socket;
+        mConfig = config;
+        mWorld = world;
+        mScheduler = scheduler;
+        mSender = new FrameSender(new BufferedOutputStream(socket.getOutputStream()), config);
+        mDeflater = new Deflater(Deflater.BEST_SPEED);
+        mPayload = new Payload();
+        mPayloadStream = new DataOutputStream(mPayload);
+        mWidth = config.view;
+        mHeight = config.view;
+        mRaw = ByteBuffer.allocate(0);
+        mZipped = new byte[0];
+    }
+
+    @Override
+    public void run() {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    mSocket.getInputStream()));
+            login(in);
+            sendTileMappings();
+            sendText("Welcome to the stand in server, " + mName + ".");
+            startTimers();
+            while (true) {
+                String command = in.readUTF();
+                mCommands++;
+                if (!handle(command)) {
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            //Client hung up
+        } catch (IOException e) {
+            System.out.println(mSocket.getRemoteSocketAddress() + " " + e.getMessage());
+        } finally {
+            stopTimers();
+            mSender.close();
+            mDeflater.end();
+            try {
+                mSocket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            System.out.println(String.format("%s (%s) left: %d commands in, %d screens, "
+                            + "%d frames, %d bytes out",
+                    mSocket.getRemoteSocketAddress(), mName, mCommands, mScreenCount,
+                    mSender.getFrameCount(), mSender.getByteCount()));
+        }
+    }
+
+    //Anything goes, the same as the client's login packet
+    private void login(DataInputStream in) throws IOException {
+        in.readInt();
+        in.readShort();
+        in.readShort();
+        mName = in.readUTF();
+        //Password
+        in.readUTF();
+        String client = in.readUTF();
+        System.out.println(mSocket.getRemoteSocketAddress() + " logged in as " + mName
+                + " with " + client);
+        sendLoginOk();
+    }
+
+    private void startTimers() {
+        long screenPeriod = (long) (1000000 / mConfig.screenRate);
+        mScreens = mScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sendScreen();
+                } catch (IOException e) {
+                    stopTimers();
+                }
+            }
+        }, 0, screenPeriod, TimeUnit.MICROSECONDS);
+        if (mConfig.chatRate > 0) {
+            long chatPeriod = (long) (1000000 / mConfig.chatRate);
+            mChat = mScheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sendText("Chat line " + (++mChatLine) + " from the flood");
+                    } catch (IOException e) {
+                        stopTimers();
+                    }
+                }
+            }, chatPeriod, chatPeriod, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private synchronized void stopTimers() {
+        if (mScreens != null) {
+            mScreens.cancel(false);
+        }
+        if (mChat != null) {
+            mChat.cancel(false);
+        }
+    }
+
+    /**
+     * @return false to end the session
+     */
+    private boolean handle(String command) throws IOException {
+        if (command.startsWith("numpad-")) {
+            move(command.substring("numpad-".length()));
+        } else if (command.startsWith("#view ")) {
+            String[] parts = command.split(" ");
+            if (parts.length == 3) {
+                try {
+                    view(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+                } catch (NumberFormatException e) {
+                    sendText("Bad view: " + command);
+                }
+            }
+        } else if (command.startsWith("mouse ")) {
+            //Nothing to click on. Just say where it landed.
+            sendText("You look at " + command.substring("mouse ".length()));
+        } else if (command.equals("quit")) {
+            sendQuit();
+            return false;
+        } else {
+            sendText(mName + ": " + command);
+        }
+        return true;
+    }
+
+    private synchronized void move(String key) {
+        switch (key) {
+            case "1": mX--; mY++; break;
+            case "2": mY++; break;
+            case "3": mX++; mY++; break;
+            case "4": mX--; break;
+            case "6": mX++; break;
+            case "7": mX--; mY--; break;
+            case "8": mY--; break;
+            case "9": mX++; mY--; break;
+            default: break;
+        }
+    }
+
+    private synchronized void view(int width, int height) {
+        //The item records only have a byte for each coordinate
+        int max = Math.min(mConfig.maxView, 255);
+        mWidth = Math.max(1, Math.min(max, width));
+        mHeight = Math.max(1, Math.min(max, height));
+    }
+
+    /**
+     * Sends the view around the player, plus the ring of tiles outside it the client uses for
+     * borders. Cells go column by column, as little endian ints, then the items on the visible
+     * tiles.
+     */
+    private synchronized void sendScreen() throws IOException {
+        int width = mWidth + 2;
+        int height = mHeight + 2;
+        //Top left of the grid, ring included
+        int left = mX - mWidth / 2 - 1;
+        int top = mY - mHeight / 2 - 1;
+        int cells = width * height;
+        //Room for every visible tile to hold an item, plus the player
+        int capacity = (cells + mWidth * mHeight + 1) * 4;
+        if (mRaw.capacity() < capacity) {
+            mRaw = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        ByteBuffer raw = mRaw;
+        raw.clear();
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                raw.putInt(mWorld.getTerrain(left + x, top + y));
+            }
+        }
+        for (int x = 0; x < mWidth; x++) {
+            for (int y = 0; y < mHeight; y++) {
+                int item = mWorld.getItem(left + 1 + x, top + 1 + y);
+                if (item >= 0) {
+                    putItem(raw, x, y, item);
+                }
+            }
+        }
+        putItem(raw, mWidth / 2, mHeight / 2, mWorld.getPlayerTile());
+        int ulength = raw.position();
+        int zlength = deflate(raw.array(), ulength);
+
+        DataOutputStream payload = startPayload();
+        payload.writeInt(width << 16 | height);
+        payload.writeInt(zlength);
+        payload.writeInt(ulength);
+        payload.write(mZipped, 0, zlength);
+        sendPayload(ProtocolCodec.ZIPPED_SCREEN);
+        mScreenCount++;
+    }
+
+    //y, then x, then the tile, read by the client as one little endian int
+    private static void putItem(ByteBuffer raw, int x, int y, int tile) {
+        raw.put((byte) y);
+        raw.put((byte) x);
+        raw.putShort((short) tile);
+    }
+
+    private synchronized void sendTileMappings() throws IOException {
+        ByteArrayOutputStream mappings = new ByteArrayOutputStream();
+        DataOutputStream stream = new DataOutputStream(mappings);
+        //Extra tiles are never drawn, only decoded. They go ahead of the real ones, numbered
+        //after them, so the tiles on screen wait behind them like in a real burst.
+        int extra = mConfig.terrainTiles.length + mConfig.itemTiles.length + 1;
+        for (int i = 0; i < mConfig.extraMappings; i++) {
+            stream.writeShort(extra + i);
+            stream.writeUTF(mConfig.terrainTiles[i % mConfig.terrainTiles.length]);
+        }
+        int tile = 0;
+        for (String path : mConfig.terrainTiles) {
+            stream.writeShort(tile++);
+            stream.writeUTF(path);
+        }
+        for (String path : mConfig.itemTiles) {
+            stream.writeShort(tile++);
+            stream.writeUTF(path);
+        }
+        stream.writeShort(tile);
+        stream.writeUTF(mConfig.playerTile);
+        byte[] raw = mappings.toByteArray();
+        int zlength = deflate(raw, raw.length);
+
+        DataOutputStream payload = startPayload();
+        payload.writeInt(zlength);
+        payload.writeInt(raw.length);
+        payload.write(mZipped, 0, zlength);
+        sendPayload(ProtocolCodec.TILE_MAPPINGS);
+    }
+
+    private synchronized void sendLoginOk() throws IOException {
+        DataOutputStream payload = startPayload();
+        payload.writeInt(VERSION);
+        payload.writeByte(ProtocolCodec.LOGIN_OK);
+        sendPayload(ProtocolCodec.LOGIN_RESPONSE);
+    }
+
+    private synchronized void sendQuit() throws IOException {
+        startPayload();
+        sendPayload(ProtocolCodec.QUIT);
+    }
+
+    private synchronized void sendText(String message) throws IOException {
+        DataOutputStream payload = startPayload();
+        payload.writeByte(STYLE_NORMAL);
+        payload.writeUTF(message);
+        sendPayload(ProtocolCodec.TEXT_OUT);
+    }
+
+    //Zips the first length bytes of data into mZipped, and returns how many came out
+    private int deflate(byte[] data, int length) {
+        //Deflate can grow incompressible data slightly
+        int bound = length + length / 1000 + 64;
+        if (mZipped.length < bound) {
+            mZipped = new byte[bound];
+        }
+        mDeflater.reset();
+        mDeflater.setInput(data, 0, length);
+        mDeflater.finish();
+        int zlength = 0;
+        while (!mDeflater.finished()) {
+            zlength += mDeflater.deflate(mZipped, zlength, mZipped.length - zlength);
+        }
+        return zlength;
+    }
+
+    //Callers hold the lock from here until sendPayload
+    private DataOutputStream startPayload() {
+        mPayload.reset();
+        return mPayloadStream;
+    }
+
+    private void sendPayload(byte command) throws IOException {
+        mSender.send(command, mPayload.getBuffer(), mPayload.size());
+    }
+
+    //Lets the sender copy the payload straight out, without toByteArray's copy
+    private static class Payload extends ByteArrayOutputStream {
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
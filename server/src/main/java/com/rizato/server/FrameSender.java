@@ -0,0 +1,98 @@
+package com.rizato.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes frames to one client, after the configured latency and jitter.
+ *
+ * Each frame is copied and handed to a single thread that writes it once it is due. A frame is
+ * never due before the one sent ahead of it, so jitter bunches frames up like a slow link does,
+ * but never reorders them.
+ */
+class FrameSender {
+    private final OutputStream mStream;
+    private final int mLatency;
+    private final int mJitter;
+    private final Random mRandom;
+    private final ScheduledExecutorService mWriter;
+    private long mLastDue;
+    private volatile boolean mFailed;
+
+    //Stats
+    private volatile long mFrames;
+    private volatile long mBytes;
+
+    FrameSender(OutputStream stream, ServerConfig config) {
+        mStream = stream;
+        mLatency = Math.max(0, config.latency);
+        mJitter = Math.max(0, config.jitter);
+        mRandom = new Random();
+        mWriter = new ScheduledThreadPoolExecutor(1);
+    }
+
+    /**
+     * Queues a frame. The header is added here.
+     *
+     * @throws IOException if an earlier write failed, meaning the client is gone
+     */
+    synchronized void send(byte command, byte[] payload, int length) throws IOException {
+        if (mFailed) {
+            throw new IOException("Client is gone");
+        }
+        final byte[] frame = new byte[length + 4];
+        frame[0] = command;
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        System.arraycopy(payload, 0, frame, 4, length);
+        long now = System.nanoTime();
+        long delay = mLatency + (mJitter > 0 ? mRandom.nextInt(mJitter + 1) : 0);
+        long due = Math.max(mLastDue, now + TimeUnit.MILLISECONDS.toNanos(delay));
+        mLastDue = due;
+        //Equal delays run in the order they were queued
+        mWriter.schedule(new Runnable() {
+            @Override
+            public void run() {
+                write(frame);
+            }
+        }, due - now, TimeUnit.NANOSECONDS);
+    }
+
+    private void write(byte[] frame) {
+        if (mFailed) {
+            return;
+        }
+        try {
+            mStream.write(frame);
+            mStream.flush();
+            mFrames++;
+            mBytes += frame.length;
+        } catch (IOException e) {
+            //The reader notices the closed socket and ends the session
+            mFailed = true;
+        }
+    }
+
+    //Stops after what is already queued is written
+    void close() {
+        mWriter.shutdown();
+        try {
+            mWriter.awaitTermination(mLatency + mJitter + 1000, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    long getFrameCount() {
+        return mFrames;
+    }
+
+    long getByteCount() {
+        return mBytes;
+    }
+}
@@ -0,0 +1,72 @@
+package com.rizato.server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * A stand in for the real map server, for testing the client against a known load without one.
+ * It speaks the same wire format (login, tile mappings, zipped screens, text and quit), and walks
+ * each player around a made up {@link World}.
+ *
+ * The screen rate, view size, item density and chat flood are all set on the command line, and
+ * latency & jitter can be added to every frame to see how the client copes with a slow link.
+ * Point the app at the machine running it, on the same port.
+ */
+public class MapServer {
+    private final ServerConfig mConfig;
+    private final World mWorld;
+    //Screens and chat for every client run on these
+    private final ScheduledExecutorService mScheduler;
+
+    public MapServer(ServerConfig config) {
+        mConfig = config;
+        mWorld = new World(config);
+        mScheduler = new ScheduledThreadPoolExecutor(
+                Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    //Takes clients until the process is killed
+    public void serve() throws IOException {
+        ServerSocket server = new ServerSocket(mConfig.port);
+        System.out.println(String.format("Listening on %d: %.1f screens/s, view %d, "
+                        + "item density %.2f, chat %.1f/s, latency %dms + %dms jitter",
+                mConfig.port, mConfig.screenRate, mConfig.view, mConfig.itemDensity,
+                mConfig.chatRate, mConfig.latency, mConfig.jitter));
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                ClientSession session = new ClientSession(socket, mConfig, mWorld, mScheduler);
+                new Thread(session, "Client " + socket.getRemoteSocketAddress()).start();
+            }
+        } finally {
+            server.close();
+            mScheduler.shutdownNow();
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--help")) {
+            System.out.println(ServerConfig.usage());
+            return;
+        }
+        ServerConfig config;
+        try {
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(ServerConfig.usage());
+            System.exit(1);
+            return;
+        }
+        try {
+            new MapServer(config).serve();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
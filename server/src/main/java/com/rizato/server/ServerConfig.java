@@ -0,0 +1,93 @@
+package com.rizato.server;
+
+/**
+ * Settings for the stand in server, read from the command line as --name value pairs.
+ */
+public class ServerConfig {
+    public int port = 2222;
+    //Screens sent to each client a second
+    public float screenRate = 5;
+    //Visible tiles on a side, until the client sends #view
+    public int view = 13;
+    //Largest view a client can ask for
+    public int maxView = 200;
+    //Chance any one tile has an item on it
+    public float itemDensity = 0.05f;
+    //Chat lines sent to each client a second. 0 for none.
+    public float chatRate = 0;
+    //Added to every frame sent, in milliseconds
+    public int latency = 0;
+    //Up to this much more is added at random, in milliseconds. Frames still arrive in order.
+    public int jitter = 0;
+    //Paths sent in TILE_MAPPINGS. The client loads art/game/[path].gif.
+    public String[] terrainTiles = {"grass", "dirt", "water", "sand", "stone", "forest", "snow"};
+    public String[] itemTiles = {"rock", "chest", "bones", "flower"};
+    public String playerTile = "player";
+    //More mappings, reusing the terrain paths, sent ahead of the real ones for a big burst
+    public int extraMappings = 0;
+
+    /**
+     * @throws IllegalArgumentException if an option is unknown or missing its value
+     */
+    public static ServerConfig parse(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (int i = 0; i < args.length; i += 2) {
+            String name = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException(name + " needs a value");
+            }
+            String value = args[i + 1];
+            switch (name) {
+                case "--port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "--screen-rate":
+                    config.screenRate = Float.parseFloat(value);
+                    break;
+                case "--view":
+                    config.view = Integer.parseInt(value);
+                    break;
+                case "--max-view":
+                    config.maxView = Integer.parseInt(value);
+                    break;
+                case "--item-density":
+                    config.itemDensity = Float.parseFloat(value);
+                    break;
+                case "--chat-rate":
+                    config.chatRate = Float.parseFloat(value);
+                    break;
+                case "--latency":
+                    config.latency = Integer.parseInt(value);
+                    break;
+                case "--jitter":
+                    config.jitter = Integer.parseInt(value);
+                    break;
+                case "--terrain-tiles":
+                    config.terrainTiles = value.split(",");
+                    break;
+                case "--item-tiles":
+                    config.itemTiles = value.split(",");
+                    break;
+                case "--player-tile":
+                    config.playerTile = value;
+                    break;
+                case "--extra-mappings":
+                    config.extraMappings = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+        if (config.screenRate <= 0) {
+            throw new IllegalArgumentException("--screen-rate has to be more than 0");
+        }
+        return config;
+    }
+
+    public static String usage() {
+        return "MapServer [--port 2222] [--screen-rate 5] [--view 13] [--max-view 200]\n"
+                + "          [--item-density 0.05] [--chat-rate 0] [--latency 0] [--jitter 0]\n"
+                + "          [--terrain-tiles a,b,c] [--item-tiles a,b] [--player-tile name]\n"
+                + "          [--extra-mappings 0]";
+    }
+}
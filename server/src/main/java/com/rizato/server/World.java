@@ -0,0 +1,70 @@
+package com.rizato.server;
+
+/**
+ * An endless map, worked out from the coordinates alone so nothing has to be stored. The same
+ * spot always has the same terrain and items, for every client.
+ *
+ * Tile ids are handed out in the order of the mappings: terrain first, then items, then the
+ * player.
+ */
+public class World {
+    //Terrain comes in patches this many tiles across, so it compresses like a real map
+    private static final int PATCH = 6;
+    //Where the border priority sits in a packed cell
+    private static final int PRIORITY_SHIFT = 16;
+    private static final int HAS_BORDERS = 1 << 29;
+    //Every tile takes & gives borders, so the client's border drawing gets a workout
+    private static final int BORDERS_IN = 1 << 30;
+    private static final int BORDERS_OUT = 1 << 31;
+
+    private final int mTerrainCount;
+    private final int mItemCount;
+    //Items per 2^16 tiles
+    private final int mItemThreshold;
+
+    public World(ServerConfig config) {
+        mTerrainCount = config.terrainTiles.length;
+        mItemCount = config.itemTiles.length;
+        float density = Math.max(0, Math.min(1, config.itemDensity));
+        mItemThreshold = (int) (density * 0x10000);
+    }
+
+    /**
+     * The packed cell the client expects: the tile in the low 16 bits, its border priority
+     * above that, and the border flags on top.
+     */
+    public int getTerrain(int x, int y) {
+        //Patches, with their edges roughed up a little
+        int px = floorDiv(x + (hash(x, y, 1) & 1), PATCH);
+        int py = floorDiv(y + (hash(x, y, 2) & 1), PATCH);
+        int tile = (hash(px, py, 3) & 0x7fffffff) % mTerrainCount;
+        return tile | (tile + 1) << PRIORITY_SHIFT | HAS_BORDERS | BORDERS_IN | BORDERS_OUT;
+    }
+
+    //The item tile lying at x, y, or -1 for none
+    public int getItem(int x, int y) {
+        if (mItemCount == 0 || (hash(x, y, 4) & 0xffff) >= mItemThreshold) {
+            return -1;
+        }
+        return mTerrainCount + (hash(x, y, 5) & 0x7fffffff) % mItemCount;
+    }
+
+    public int getPlayerTile() {
+        return mTerrainCount + mItemCount;
+    }
+
+    //Rounds toward negative infinity, so patches don't double up around 0
+    private static int floorDiv(int a, int b) {
+        int q = a / b;
+        return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+    }
+
+    //Cheap, well mixed hash of a spot
+    private static int hash(int x, int y, int salt) {
+        int h = x * 0x27d4eb2d ^ y * 0x165667b1 ^ salt * 0x9e3779b9;
+        h ^= h >>> 15;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}